@@ -0,0 +1,86 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.benchmarks;
+
+import java.security.PublicKey;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.tokhn.core.Address;
+import io.tokhn.node.InvalidNetworkException;
+import io.tokhn.util.Base58;
+
+/*
+ * Making addresses from keys, bytes and Base58, and Base58 itself, which
+ * every string address in a model or a wallet goes through.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AddressBenchmark {
+	private PublicKey publicKey;
+	private byte[] bytes;
+	private String base58;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(Fixtures.SEED);
+		publicKey = Fixtures.getKeyPair(random).getPublic();
+		Address address = new Address(publicKey, Fixtures.NETWORK);
+		bytes = address.getBytes();
+		base58 = Base58.encode(bytes);
+	}
+	
+	@Benchmark
+	public Address fromPublicKey() {
+		return new Address(publicKey, Fixtures.NETWORK);
+	}
+	
+	@Benchmark
+	public Address fromBytes() throws InvalidNetworkException {
+		return new Address(bytes);
+	}
+	
+	@Benchmark
+	public Address fromBase58() throws InvalidNetworkException {
+		return new Address(base58);
+	}
+	
+	@Benchmark
+	public String base58Encode() {
+		return Base58.encode(bytes);
+	}
+	
+	@Benchmark
+	public byte[] base58Decode() {
+		return Base58.decode(base58);
+	}
+}
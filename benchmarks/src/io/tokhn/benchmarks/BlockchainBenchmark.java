@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.benchmarks;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.tokhn.core.Block;
+import io.tokhn.core.Blockchain;
+import io.tokhn.store.BlockStore;
+import io.tokhn.store.HeapBlockStore;
+import io.tokhn.store.HeapUTXOStore;
+import io.tokhn.store.MapDBBlockStore;
+import io.tokhn.store.MapDBUTXOStore;
+import io.tokhn.store.OffHeapUTXOStore;
+import io.tokhn.store.UTXOStore;
+
+/*
+ * Adds a whole synthetic chain to a fresh Blockchain, which is validation,
+ * UTXO updates and the store writes for every block. Each invocation is the
+ * whole chain, so divide by the blocks for the time per block.
+ * 
+ * The MapDB stores always use BStore-TEST.db and UStore-TEST.db in the
+ * working directory, which are deleted after each invocation, so this won't
+ * run where those files already exist.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class BlockchainBenchmark {
+	private static final File[] MAPDB_FILES = { new File("BStore-" + Fixtures.NETWORK + ".db"), new File("UStore-" + Fixtures.NETWORK + ".db") };
+	@Param({ "HEAP", "OFFHEAP", "MAPDB" })
+	private String store;
+	@Param({ "100" })
+	private int blocks;
+	@Param({ "1", "10" })
+	private int transactions;
+	private List<Block> fixture;
+	private BlockStore bStore;
+	private UTXOStore uStore;
+	private Blockchain chain;
+	
+	@Setup(Level.Trial)
+	public void setupChain() {
+		for(File file : MAPDB_FILES) {
+			if(file.exists()) {
+				throw new IllegalStateException(file + " already exists, so run the benchmarks from another directory");
+			}
+		}
+		fixture = Fixtures.newChain(blocks, transactions);
+	}
+	
+	@Setup(Level.Invocation)
+	public void setupStores() throws Exception {
+		if(store.equals("MAPDB")) {
+			bStore = new MapDBBlockStore(Fixtures.NETWORK);
+			uStore = new MapDBUTXOStore(Fixtures.NETWORK);
+		} else if(store.equals("OFFHEAP")) {
+			bStore = new HeapBlockStore(Fixtures.NETWORK);
+			uStore = new OffHeapUTXOStore(Fixtures.NETWORK);
+		} else {
+			bStore = new HeapBlockStore(Fixtures.NETWORK);
+			uStore = new HeapUTXOStore(Fixtures.NETWORK);
+		}
+		chain = new Blockchain(Fixtures.NETWORK, bStore, uStore);
+	}
+	
+	@TearDown(Level.Invocation)
+	public void tearDownStores() throws Exception {
+		//the writer has to finish before the stores it writes to are closed
+		chain.close();
+		if(bStore instanceof AutoCloseable) {
+			((AutoCloseable) bStore).close();
+		}
+		if(uStore instanceof AutoCloseable) {
+			((AutoCloseable) uStore).close();
+		}
+		for(File file : MAPDB_FILES) {
+			file.delete();
+		}
+	}
+	
+	@Benchmark
+	public Blockchain addBlockToChain() {
+		for(Block block : fixture) {
+			if(!chain.addBlockToChain(block)) {
+				throw new IllegalStateException(block + " was rejected");
+			}
+		}
+		return chain;
+	}
+}
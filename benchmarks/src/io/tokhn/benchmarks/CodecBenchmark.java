@@ -0,0 +1,179 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.benchmarks;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.tokhn.codec.BlockSerializer;
+import io.tokhn.codec.CheckpointSerializer;
+import io.tokhn.codec.HashSerializer;
+import io.tokhn.codec.LocalBlockSerializer;
+import io.tokhn.codec.TxLocationSerializer;
+import io.tokhn.codec.UTXOSerializer;
+import io.tokhn.core.Block;
+import io.tokhn.core.Blockchain;
+import io.tokhn.core.Checkpoint;
+import io.tokhn.core.InvalidChainException;
+import io.tokhn.core.LocalBlock;
+import io.tokhn.core.TxLocation;
+import io.tokhn.core.UTXO;
+import io.tokhn.store.HeapBlockStore;
+import io.tokhn.store.HeapUTXOStore;
+import io.tokhn.util.Hash;
+
+/*
+ * Every MapDB serializer in io.tokhn.codec, both ways, which is what each
+ * store read and write pays on top of MapDB itself.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+	@Param({ "1", "100" })
+	private int transactions;
+	private final BlockSerializer blockSerializer = new BlockSerializer();
+	private final LocalBlockSerializer localBlockSerializer = new LocalBlockSerializer();
+	private final CheckpointSerializer checkpointSerializer = new CheckpointSerializer();
+	private final HashSerializer hashSerializer = new HashSerializer();
+	private final TxLocationSerializer txLocationSerializer = new TxLocationSerializer();
+	private final UTXOSerializer utxoSerializer = new UTXOSerializer();
+	private Block block;
+	private LocalBlock localBlock;
+	private Checkpoint checkpoint;
+	private Hash hash;
+	private TxLocation txLocation;
+	private UTXO utxo;
+	private byte[] blockBytes;
+	private byte[] localBlockBytes;
+	private byte[] checkpointBytes;
+	private byte[] hashBytes;
+	private byte[] txLocationBytes;
+	private byte[] utxoBytes;
+	
+	@Setup
+	public void setup() throws IOException, InvalidChainException {
+		Random random = new Random(Fixtures.SEED);
+		List<Block> blocks = Fixtures.newChain(2, transactions);
+		Blockchain chain = new Blockchain(Fixtures.NETWORK, new HeapBlockStore(Fixtures.NETWORK), new HeapUTXOStore(Fixtures.NETWORK));
+		blocks.forEach(b -> chain.addBlockToChain(b));
+		chain.close();
+		block = blocks.get(blocks.size() - 1);
+		localBlock = chain.getLatestBlock();
+		checkpoint = new Checkpoint(Fixtures.NETWORK, null, localBlock);
+		hash = Fixtures.newHash(random);
+		txLocation = new TxLocation(hash, random.nextInt(1000), random.nextInt(100));
+		utxo = Fixtures.newUtxo(random);
+		
+		blockBytes = serialize(blockSerializer, block);
+		localBlockBytes = serialize(localBlockSerializer, localBlock);
+		checkpointBytes = serialize(checkpointSerializer, checkpoint);
+		hashBytes = serialize(hashSerializer, hash);
+		txLocationBytes = serialize(txLocationSerializer, txLocation);
+		utxoBytes = serialize(utxoSerializer, utxo);
+	}
+	
+	@Benchmark
+	public byte[] serializeBlock() throws IOException {
+		return serialize(blockSerializer, block);
+	}
+	
+	@Benchmark
+	public Block deserializeBlock() throws IOException {
+		return deserialize(blockSerializer, blockBytes);
+	}
+	
+	@Benchmark
+	public byte[] serializeLocalBlock() throws IOException {
+		return serialize(localBlockSerializer, localBlock);
+	}
+	
+	@Benchmark
+	public LocalBlock deserializeLocalBlock() throws IOException {
+		return deserialize(localBlockSerializer, localBlockBytes);
+	}
+	
+	@Benchmark
+	public byte[] serializeCheckpoint() throws IOException {
+		return serialize(checkpointSerializer, checkpoint);
+	}
+	
+	@Benchmark
+	public Checkpoint deserializeCheckpoint() throws IOException {
+		return deserialize(checkpointSerializer, checkpointBytes);
+	}
+	
+	@Benchmark
+	public byte[] serializeHash() throws IOException {
+		return serialize(hashSerializer, hash);
+	}
+	
+	@Benchmark
+	public Hash deserializeHash() throws IOException {
+		return deserialize(hashSerializer, hashBytes);
+	}
+	
+	@Benchmark
+	public byte[] serializeTxLocation() throws IOException {
+		return serialize(txLocationSerializer, txLocation);
+	}
+	
+	@Benchmark
+	public TxLocation deserializeTxLocation() throws IOException {
+		return deserialize(txLocationSerializer, txLocationBytes);
+	}
+	
+	@Benchmark
+	public byte[] serializeUtxo() throws IOException {
+		return serialize(utxoSerializer, utxo);
+	}
+	
+	@Benchmark
+	public UTXO deserializeUtxo() throws IOException {
+		return deserialize(utxoSerializer, utxoBytes);
+	}
+	
+	private static <T> byte[] serialize(Serializer<T> serializer, T value) throws IOException {
+		DataOutput2 out = new DataOutput2();
+		serializer.serialize(out, value);
+		return out.copyBytes();
+	}
+	
+	private static <T> T deserialize(Serializer<T> serializer, byte[] bytes) throws IOException {
+		return serializer.deserialize(new DataInput2.ByteArray(bytes), bytes.length);
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.benchmarks;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+import java.security.Security;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import io.tokhn.core.Address;
+import io.tokhn.core.Block;
+import io.tokhn.core.InvalidChainException;
+import io.tokhn.core.TXI;
+import io.tokhn.core.TXO;
+import io.tokhn.core.Token;
+import io.tokhn.core.Transaction;
+import io.tokhn.core.UTXO;
+import io.tokhn.node.Network;
+import io.tokhn.util.ChainGenerator;
+import io.tokhn.util.ChainGenerator.Fork;
+import io.tokhn.util.Hash;
+
+/*
+ * Synthetic keys, transactions and chains for the benchmarks. Everything but
+ * the keys, signatures and chain timestamps comes from a seeded Random, so
+ * two runs measure the same data.
+ * 
+ * Chains come from the ChainGenerator the load test uses, so they are
+ * valid when added to a fresh Blockchain.
+ */
+public class Fixtures {
+	public static final Network NETWORK = Network.TEST;
+	public static final long SEED = 1337;
+	//blocks and transactions that don't go in a chain don't need a recent time
+	public static final long TIMESTAMP = 1514764800;
+	//generating keys is slow, so addresses are picked from a pool
+	private static final int ADDRESSES = 16;
+	private static final List<KeyPair> keys = new ArrayList<>();
+	
+	static {
+		Security.addProvider(new BouncyCastleProvider());
+		for(int itr = 0; itr < ADDRESSES; itr++) {
+			keys.add(newKeyPair());
+		}
+	}
+	
+	public static KeyPair newKeyPair() {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("ECDSA", "BC");
+			generator.initialize(new ECGenParameterSpec("prime192v1"), new SecureRandom());
+			return generator.generateKeyPair();
+		} catch(NoSuchAlgorithmException | NoSuchProviderException | InvalidAlgorithmParameterException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	public static KeyPair getKeyPair(Random random) {
+		return keys.get(random.nextInt(keys.size()));
+	}
+	
+	public static Address getAddress(Random random) {
+		return new Address(getKeyPair(random).getPublic(), NETWORK);
+	}
+	
+	public static Hash newHash(Random random) {
+		byte[] bytes = new byte[32];
+		random.nextBytes(bytes);
+		return new Hash(bytes);
+	}
+	
+	/**
+	 * 
+	 * @return A signed transaction spending outputs that don't exist, which is fine for anything but adding it to a chain
+	 */
+	public static Transaction newTransaction(Random random, int inputs, int outputs) {
+		List<TXI> txis = new ArrayList<>();
+		for(int itr = 0; itr < inputs; itr++) {
+			TXI txi = new TXI(newHash(random), random.nextInt(4));
+			txi.sign(getKeyPair(random).getPrivate());
+			txis.add(txi);
+		}
+		List<TXO> txos = new ArrayList<>();
+		for(int itr = 0; itr < outputs; itr++) {
+			txos.add(new TXO(getAddress(random), Token.valueOfInMegas(1 + random.nextInt(1_000_000))));
+		}
+		return new Transaction(TIMESTAMP, txis, txos);
+	}
+	
+	/**
+	 * 
+	 * @return A block of the given number of transactions plus a reward, which isn't mined
+	 */
+	public static Block newBlock(Random random, int transactions) {
+		List<Transaction> txs = new LinkedList<>();
+		txs.add(Transaction.rewardOf(getAddress(random), 1));
+		for(int itr = 0; itr < transactions; itr++) {
+			txs.add(newTransaction(random, 2, 2));
+		}
+		return new Block(NETWORK, 1 + random.nextInt(1000), newHash(random), TIMESTAMP, txs, 1, random.nextLong());
+	}
+	
+	public static UTXO newUtxo(Random random) {
+		return new UTXO(NETWORK, newHash(random), random.nextInt(4), getAddress(random), Token.valueOfInMegas(1 + random.nextInt(1_000_000)));
+	}
+	
+	/**
+	 * 
+	 * @param transactions The regular transactions in each block besides the reward, each with two outputs
+	 * @return A chain without forks on top of the TEST genesis block, in order and without the genesis block
+	 */
+	public static List<Block> newChain(int blocks, int transactions) {
+		try {
+			return new ChainGenerator(SEED, blocks, transactions, 2, ADDRESSES, 0, Fork.NONE, 0, 0).generate();
+		} catch(InvalidChainException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.tokhn.core.Block;
+import io.tokhn.core.Transaction;
+import io.tokhn.core.UTXO;
+import io.tokhn.grpc.BlockModel;
+import io.tokhn.grpc.TransactionModel;
+import io.tokhn.grpc.UtxoModel;
+import io.tokhn.util.GRPC;
+import io.tokhn.util.Hash;
+
+/*
+ * Turning blocks, transactions and UTXOs into their models and back. Models
+ * decode lazily, so decoding is measured both for what relay needs, the
+ * hash, and for everything validation reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GRPCBenchmark {
+	@Param({ "1", "100" })
+	private int transactions;
+	@Param({ "false", "true" })
+	private boolean legacyStrings;
+	private Block block;
+	private BlockModel blockModel;
+	private Transaction tx;
+	private TransactionModel txModel;
+	private UTXO utxo;
+	private UtxoModel utxoModel;
+	
+	@Setup
+	public void setup() {
+		GRPC.setLegacyStrings(legacyStrings);
+		Random random = new Random(Fixtures.SEED);
+		block = Fixtures.newBlock(random, transactions);
+		blockModel = GRPC.transform(block);
+		tx = Fixtures.newTransaction(random, 2, 2);
+		txModel = GRPC.transform(Fixtures.NETWORK, tx);
+		utxo = Fixtures.newUtxo(random);
+		utxoModel = GRPC.transform(utxo);
+	}
+	
+	@Benchmark
+	public BlockModel encodeBlock() {
+		return GRPC.transform(block);
+	}
+	
+	@Benchmark
+	public Hash decodeBlockHash() {
+		return GRPC.transform(blockModel).getHash();
+	}
+	
+	@Benchmark
+	public int decodeBlock() {
+		Block decoded = GRPC.transform(blockModel);
+		return decoded.getTransactions().stream().mapToInt(t -> t.getTxis().size() + t.getTxos().size()).sum() + decoded.getPreviousHash().hashCode();
+	}
+	
+	@Benchmark
+	public TransactionModel encodeTransaction() {
+		return GRPC.transform(Fixtures.NETWORK, tx);
+	}
+	
+	@Benchmark
+	public int decodeTransaction() {
+		Transaction decoded = GRPC.transform(txModel);
+		return decoded.getId().hashCode() + decoded.getTxis().size() + decoded.getTxos().size();
+	}
+	
+	@Benchmark
+	public UtxoModel encodeUtxo() {
+		return GRPC.transform(utxo);
+	}
+	
+	@Benchmark
+	public UTXO decodeUtxo() {
+		return GRPC.transform(utxoModel);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.tokhn.core.Block;
+import io.tokhn.core.Transaction;
+import io.tokhn.util.Hash;
+
+/*
+ * Hashing raw bytes, which everything else builds on, and hashing blocks
+ * and transactions the way mining and validation do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+	@Param({ "1", "100" })
+	private int transactions;
+	private byte[] hashBytes;
+	private byte[] kilobyte;
+	private Block block;
+	private Transaction tx;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(Fixtures.SEED);
+		hashBytes = Fixtures.newHash(random).getBytes();
+		kilobyte = new byte[1024];
+		random.nextBytes(kilobyte);
+		block = Fixtures.newBlock(random, transactions);
+		tx = Fixtures.newTransaction(random, 2, 2);
+	}
+	
+	@Benchmark
+	public Hash hashOfHash() {
+		return Hash.of(hashBytes);
+	}
+	
+	@Benchmark
+	public Hash hashOfKilobyte() {
+		return Hash.of(kilobyte);
+	}
+	
+	@Benchmark
+	public Hash blockHash() {
+		return Block.hash(block.getIndex(), block.getPreviousHash(), block.getTimestamp(), block.getTransactions(), block.getDifficulty(), block.getNonce());
+	}
+	
+	@Benchmark
+	public Hash transactionHash() {
+		return Transaction.hash(tx.getTimestamp(), tx.getType(), tx.getTxis(), tx.getTxos());
+	}
+}
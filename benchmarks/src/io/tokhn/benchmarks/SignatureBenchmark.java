@@ -0,0 +1,77 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.benchmarks;
+
+import java.security.KeyPair;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.tokhn.core.TXI;
+
+/*
+ * Signing and verifying a single TXI.
+ * 
+ * TXI.verify decodes the signature as if it were the public key, which
+ * fails, so until that is fixed this measures the work verify does before
+ * it gives up. Numbers from before and after the fix aren't comparable.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SignatureBenchmark {
+	private KeyPair keyPair;
+	private TXI unsigned;
+	private TXI signed;
+	
+	@Setup
+	public void setup() {
+		Random random = new Random(Fixtures.SEED);
+		keyPair = Fixtures.getKeyPair(random);
+		unsigned = new TXI(Fixtures.newHash(random), 0);
+		signed = new TXI(Fixtures.newHash(random), 1);
+		signed.sign(keyPair.getPrivate());
+	}
+	
+	@Benchmark
+	public byte[] sign() {
+		unsigned.sign(keyPair.getPrivate());
+		return unsigned.getSignature();
+	}
+	
+	@Benchmark
+	public boolean verify() {
+		try {
+			return signed.verify();
+		} catch(IllegalArgumentException e) {
+			return false;
+		}
+	}
+}
@@ -41,8 +41,12 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import io.tokhn.core.Block;
 import io.tokhn.core.Blockchain;
+import io.tokhn.core.ChainState;
+import io.tokhn.core.InvalidChainException;
 import io.tokhn.core.LocalBlock;
 import io.tokhn.core.UTXO;
+import io.tokhn.node.Admission;
+import io.tokhn.node.Admission.Priority;
 import io.tokhn.node.InvalidNetworkException;
 import io.tokhn.node.Message;
 import io.tokhn.node.Network;
@@ -57,8 +61,13 @@ import io.tokhn.node.message.TransactionMessage;
 import io.tokhn.node.message.UtxoMessage;
 import io.tokhn.node.message.UtxoRequestMessage;
 import io.tokhn.node.message.WelcomeMessage;
+import io.tokhn.store.CachingBlockStore;
+import io.tokhn.store.CachingUTXOStore;
 import io.tokhn.store.MapDBBlockStore;
 import io.tokhn.store.MapDBUTXOStore;
+import io.tokhn.util.Hash;
+import io.tokhn.util.Log;
+import io.tokhn.util.Metrics;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -69,6 +78,7 @@ public class Daemon extends Thread {
 	private final Map<Socket, NetworkThread> peers = Collections.synchronizedMap(new HashMap<>());
 	private Map<Network, Blockchain> chains = new HashMap<>();
 	private ServerSocket serverSocket;
+	private Admission admission = null;
 	
 	@Option(names = { "-h", "--help" }, usageHelp = true, description = "displays this help message and exit")
 	private boolean helpRequested = false;
@@ -82,6 +92,27 @@ public class Daemon extends Thread {
 	@Option(names = { "-mp", "--max-peers" }, required = false, description = "the maximum number of peers")
 	private int MAX_PEERS = 10;
 	
+	@Option(names = { "-rv", "--revalidate" }, required = false, description = "revalidates the whole chain in the background on startup")
+	private boolean revalidate = false;
+	
+	@Option(names = { "-pl", "--peer-limit" }, required = false, description = "the units of work a single host can use each second on each kind of message, 0 for no limits")
+	private double PEER_LIMIT = 50;
+	
+	@Option(names = { "-pb", "--peer-burst" }, required = false, description = "the units of work a single host can use at once on each kind of message")
+	private double PEER_BURST = 200;
+	
+	@Option(names = { "-nl", "--node-limit" }, required = false, description = "the units of work all hosts together can use each second")
+	private double NODE_LIMIT = 1000;
+	
+	@Option(names = { "-nb", "--node-burst" }, required = false, description = "the units of work all hosts together can use at once")
+	private double NODE_BURST = 4000;
+	
+	@Option(names = { "-ll", "--log-level" }, required = false, description = "the most detailed log lines to write, one of ERROR, WARN, INFO or DEBUG")
+	private Log.Level LOG_LEVEL = Log.Level.INFO;
+	
+	@Option(names = { "-md", "--metrics-dump" }, required = false, description = "the seconds between writing every metric to the log, 0 to never write them")
+	private long METRICS_DUMP = 60;
+	
 	@Option(names = { "-v", "--version" }, versionHelp = true, description = "print version information and exit")
 	private boolean versionRequested;
 	
@@ -93,8 +124,37 @@ public class Daemon extends Thread {
 	
 	@Override
 	public void run() {
+		Log.setLevel(LOG_LEVEL);
+		Metrics.gauge("daemon.peers", () -> peers.size());
+		if(PEER_LIMIT > 0) {
+			admission = new Admission(PEER_LIMIT, PEER_BURST, NODE_LIMIT, NODE_BURST);
+		}
+		
 		networks.forEach(n -> {
-			chains.put(n, new Blockchain(n, new MapDBBlockStore(n), new MapDBUTXOStore(n)));
+			try {
+				Blockchain chain = new Blockchain(n, new CachingBlockStore(new MapDBBlockStore(n)), new CachingUTXOStore(new MapDBUTXOStore(n)));
+				chains.put(n, chain);
+				//the UTXO cache holds back changes between flushes, so they are written out on the way down
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						chain.flush();
+						chain.close();
+					}
+				});
+				if(revalidate) {
+					chain.revalidate().whenComplete((v, e) -> {
+						if(e != null) {
+							System.err.printf("%s chain failed revalidation: %s\n", n, e.getMessage());
+							System.exit(-1);
+						}
+						System.out.printf("%s chain revalidated\n", n);
+					});
+				}
+			} catch(InvalidChainException e) {
+				System.err.printf("%s chain is corrupt: %s\n", n, e.getMessage());
+				System.exit(-1);
+			}
 			
 			// this is the start of client code
 			Socket peerSocket = new Socket();
@@ -107,7 +167,7 @@ public class Daemon extends Thread {
 				}
 			} catch(IOException e) {
 				//TODO: reconnect to lost peer connection
-				System.err.printf("%s with %s\n", e, peerSocket.getInetAddress());
+				Log.warn("%s with %s", e, peerSocket.getInetAddress());
 			}
 		});
 		
@@ -119,12 +179,18 @@ public class Daemon extends Thread {
 				broadcastMessage(new PingMessage(Network.TKHN));
 			}
 		}, 30, 30, TimeUnit.SECONDS);
+		if(METRICS_DUMP > 0) {
+			//there is no RPC to ask for them here, so they go in the log instead
+			executor.scheduleWithFixedDelay(() -> {
+				Metrics.getAll(null).entrySet().forEach(e -> Log.info("%s", Metrics.toString(e)));
+			}, METRICS_DUMP, METRICS_DUMP, TimeUnit.SECONDS);
+		}
 		
 		// this is the start of server code
 		try {
 			serverSocket = new ServerSocket(PORT);
 		} catch(IOException e) {
-			System.out.println(e);
+			Log.error("%s", e);
 		}
 		
 		while(true) {
@@ -146,14 +212,14 @@ public class Daemon extends Thread {
 					nt.start();
 				}
 			} catch(IOException e) {
-				System.out.println(e);
+				Log.error("%s", e);
 			}
 		}
 	}
 	
 	public WelcomeMessage getWelcomeMessage(Network network) {
-		Blockchain chain = chains.get(network);
-		WelcomeMessage welcomeMessage = new WelcomeMessage(network, Instant.now().getEpochSecond(), chain.getDifficulty(), chain.getReward(), chain.getLatestBlock());
+		ChainState state = chains.get(network).getState();
+		WelcomeMessage welcomeMessage = new WelcomeMessage(network, Instant.now().getEpochSecond(), state.getDifficulty(), state.getReward(), state.getLatestBlock());
 		return welcomeMessage;
 	}
 	
@@ -173,6 +239,8 @@ public class Daemon extends Thread {
 		} else if(chain.addBlockToChain(blockMessage.block)) {
 			// broadcast new block to peers
 			broadcastMessage(blockMessage);
+		} else {
+			requestMissingAncestor(chain, blockMessage.block, source);
 		}
 	}
 	
@@ -215,7 +283,7 @@ public class Daemon extends Thread {
 		}
 	}
 	
-	public void handlePartialChainMessage(PartialChainMessage partialChainMessage) {
+	public void handlePartialChainMessage(PartialChainMessage partialChainMessage, Socket source) {
 		Blockchain chain = chains.get(partialChainMessage.getNetwork());
 		List<Block> blocks = partialChainMessage.blocks;
 		for(Block b : blocks) {
@@ -224,6 +292,10 @@ public class Daemon extends Thread {
 				chain.addBlockToChain(b);
 			}
 		}
+		//blocks that arrived out of order will have connected by now, so only ask for what is still missing
+		blocks.stream().map(b -> chain.getMissingAncestor(b.getHash())).filter(h -> h != null).distinct().forEach(h -> {
+			sendPeerMessage(source, new BlockRequestMessage(partialChainMessage.getNetwork(), h));
+		});
 	}
 	
 	public void handlePartialChainRequestMessage(PartialChainRequestMessage partialChainRequestMessage, Socket source) {
@@ -233,7 +305,11 @@ public class Daemon extends Thread {
 			LinkedList<Block> blocks = new LinkedList<>();
 			LocalBlock b = chain.getLatestBlock();
 			while(b != null) {
-				if(b.getIndex() >= partialChainRequestMessage.startIndex && b.getIndex() <= partialChainRequestMessage.endIndex) {
+				if(b.getIndex() < partialChainRequestMessage.startIndex) {
+					//everything further back is before the range
+					break;
+				}
+				if(b.getIndex() <= partialChainRequestMessage.endIndex) {
 					blocks.addFirst(b);
 				}
 				b = chain.getBlock(b.getPreviousHash());
@@ -251,13 +327,20 @@ public class Daemon extends Thread {
 		sendPeerMessage(source, new UtxoMessage(utxoRequestMessage.getNetwork(), utxos));
 	}
 	
+	private void requestMissingAncestor(Blockchain chain, Block block, Socket source) {
+		Hash missing = chain.getMissingAncestor(block.getHash());
+		if(missing != null) {
+			sendPeerMessage(source, new BlockRequestMessage(chain.getNetwork(), missing));
+		}
+	}
+	
 	private void sendPeerMessage(Socket peer, Message message) {
 		try {
 			message.addRelayHost(serverSocket.getInetAddress());
 			
 			peers.get(peer).sendMessage(message);
 		} catch(IOException e) {
-			System.err.println(e);
+			Log.warn("%s", e);
 			// you're outta here
 			peers.remove(peer);
 		}
@@ -272,7 +355,7 @@ public class Daemon extends Thread {
 				NetworkThread nt = p.getValue();
 				nt.sendMessage(message);
 			} catch(IOException e) {
-				System.err.println(e);
+				Log.warn("%s", e);
 				// you're outta here
 				remove.add(p.getKey());
 			}
@@ -280,6 +363,37 @@ public class Daemon extends Thread {
 		remove.stream().forEach(s -> peers.remove(s));
 	}
 	
+	/*
+	 * same costs as the gRPC calls in AdmissionInterceptor, with one unit
+	 * being about a block lookup
+	 */
+	private boolean admit(Message message, Socket source) {
+		if(admission == null) {
+			return true;
+		}
+		
+		String peer = source.getInetAddress().getHostAddress();
+		String request = message.getClass().getSimpleName();
+		if(message instanceof BlockMessage || message instanceof BlockRequestMessage) {
+			return admission.admit(peer, request, Priority.BLOCK, 1);
+		} else if(message instanceof TransactionMessage) {
+			return admission.admit(peer, request, Priority.TRANSACTION, 1);
+		} else if(message instanceof PartialChainRequestMessage) {
+			//the blocks are found by walking back from the tip, so it costs however far back the range starts
+			PartialChainRequestMessage partialChainRequestMessage = (PartialChainRequestMessage) message;
+			int length = chains.get(partialChainRequestMessage.getNetwork()).getLength();
+			return admission.admit(peer, request, Priority.SYNC, 10 + Math.max(0, length - partialChainRequestMessage.startIndex) / Admission.BLOCKS_PER_UNIT);
+		} else if(message instanceof PartialChainMessage) {
+			//every block in it gets validated
+			return admission.admit(peer, request, Priority.SYNC, 1 + ((PartialChainMessage) message).blocks.size());
+		} else if(message instanceof UtxoRequestMessage) {
+			//this scans the whole UTXO set
+			return admission.admit(peer, request, Priority.QUERY, 50);
+		} else {
+			return admission.admit(peer, request, Priority.SYNC, 1);
+		}
+	}
+	
 	private boolean validMessage(Message message) {
 		if(message == null) {
 			return false;
@@ -304,7 +418,7 @@ public class Daemon extends Thread {
 		
 		public NetworkThread(Socket clientSocket) {
 			this.clientSocket = clientSocket;
-			System.out.printf("Connected to peer %s\n", clientSocket.getInetAddress());
+			Log.info("Connected to peer %s", clientSocket.getInetAddress());
 		}
 		
 		@Override
@@ -324,55 +438,61 @@ public class Daemon extends Thread {
 						// client unexpectedly terminated connection
 						break;
 					} catch(ClassNotFoundException e) {
-						System.err.println(e);
+						Log.warn("%s", e);
 						break;
 					}
 					
+					if(read != null) {
+						Metrics.meter("daemon.messages." + read.getClass().getSimpleName()).mark();
+					}
 					if(!validMessage((Message) read)) {
-						System.err.println("invalid message");
+						Log.warn("invalid message from %s", clientSocket.getInetAddress());
 					} else if(read instanceof ExitMessage) {
 						break;
+					} else if(!admit((Message) read, clientSocket)) {
+						//the peer is sending more than we are willing to do for it
+						Log.debug("dropped %s from %s", read.getClass().getSimpleName(), clientSocket.getInetAddress());
 					} else if(read instanceof BlockMessage) {
 						BlockMessage blockMessage = (BlockMessage) read;
-						System.out.println(blockMessage);
+						Log.debug("%s", blockMessage);
 						handleBlockMessage(blockMessage, clientSocket);
 					} else if(read instanceof TransactionMessage) {
 						TransactionMessage transactionMessage = (TransactionMessage) read;
-						System.out.println(transactionMessage);
+						Log.debug("%s", transactionMessage);
 						handleTransactionMessage(transactionMessage);
 					} else if(read instanceof WelcomeMessage) {
 						WelcomeMessage welcomeMessage = (WelcomeMessage) read;
-						System.out.println(welcomeMessage);
+						Log.debug("%s", welcomeMessage);
 						handleWelcomeMessage(welcomeMessage, clientSocket);
 					} else if(read instanceof DifficultyMessage) {
 						DifficultyMessage difficultyMessage = (DifficultyMessage) read;
-						System.out.println(difficultyMessage);
+						Log.debug("%s", difficultyMessage);
 						handleDifficultyMessage(difficultyMessage, clientSocket);
 					} else if(read instanceof BlockRequestMessage) {
 						BlockRequestMessage blockRequestMessage = (BlockRequestMessage) read;
-						System.out.println(blockRequestMessage);
+						Log.debug("%s", blockRequestMessage);
 						handleBlockRequestMessage(blockRequestMessage, clientSocket);
 					} else if(read instanceof PartialChainMessage) {
 						PartialChainMessage partialChainMessage = (PartialChainMessage) read;
-						System.out.println(partialChainMessage);
-						handlePartialChainMessage(partialChainMessage);
+						Log.debug("%s", partialChainMessage);
+						handlePartialChainMessage(partialChainMessage, clientSocket);
 					} else if(read instanceof PartialChainRequestMessage) {
 						PartialChainRequestMessage partialChainRequestMessage = (PartialChainRequestMessage) read;
-						System.out.println(partialChainRequestMessage);
+						Log.debug("%s", partialChainRequestMessage);
 						handlePartialChainRequestMessage(partialChainRequestMessage, clientSocket);
 					} else if(read instanceof UtxoMessage) {
 						UtxoMessage utxoMessage = (UtxoMessage) read;
-						System.out.println(utxoMessage);
+						Log.debug("%s", utxoMessage);
 					} else if(read instanceof UtxoRequestMessage) {
 						UtxoRequestMessage utxoRequestMessage = (UtxoRequestMessage) read;
-						System.out.println(utxoRequestMessage);
+						Log.debug("%s", utxoRequestMessage);
 						handleUtxoRequestMessage(utxoRequestMessage, clientSocket);
 					}
 				}
 				ois.close();
 				clientSocket.close();
 			} catch(IOException e) {
-				System.err.printf("%s with %s\n", e, clientSocket.getInetAddress());
+				Log.warn("%s with %s", e, clientSocket.getInetAddress());
 			}
 		}
 		
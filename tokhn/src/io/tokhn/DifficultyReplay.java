@@ -0,0 +1,176 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package io.tokhn;
+
+import java.security.Security;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import io.tokhn.core.Block;
+import io.tokhn.core.Blockchain;
+import io.tokhn.core.InvalidChainException;
+import io.tokhn.core.LocalBlock;
+import io.tokhn.core.Transaction;
+import io.tokhn.node.Network;
+import io.tokhn.node.NetworkParams;
+import io.tokhn.store.HeapBlockStore;
+import io.tokhn.store.HeapUTXOStore;
+import io.tokhn.store.MapDBBlockStore;
+import io.tokhn.store.MapDBUTXOStore;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/*
+ * Replays a chain from genesis and checks the difficulty schedule stored with
+ * every block against the difficulty computed by walking back through the
+ * BlockStore. The chain is either the one on disk for the network or one
+ * generated in memory with block times that move the difficulty up and down.
+ */
+@Command(name = "Difficulty Replay", version = { "Tokhn 0.0.1", "(c) 2018 Matt Liotta" }, showDefaultValues = true)
+public class DifficultyReplay implements Runnable {
+	@Option(names = { "-h", "--help" }, usageHelp = true, description = "displays this help message and exit")
+	private boolean helpRequested = false;
+	
+	@Option(names = { "-n", "--network" }, required = false, description = "the network")
+	private Network network = Network.TKHN;
+	
+	@Option(names = { "-g", "--generate" }, required = false, description = "the number of blocks to generate in memory instead of replaying the chain on disk")
+	private int generate = 0;
+	
+	@Option(names = { "-s", "--seed" }, required = false, description = "the seed used to pick block times for generated chains")
+	private long seed = 1337;
+	
+	public static void main(String[] args) {
+		Security.addProvider(new BouncyCastleProvider());
+		CommandLine.run(new DifficultyReplay(), System.out, args);
+	}
+	
+	@Override
+	public void run() {
+		Blockchain chain = null;
+		try {
+			if(generate > 0) {
+				chain = new Blockchain(network, new HeapBlockStore(network), new HeapUTXOStore(network));
+				generate(chain);
+			} else {
+				chain = new Blockchain(network, new MapDBBlockStore(network), new MapDBUTXOStore(network));
+			}
+		} catch(InvalidChainException e) {
+			System.err.println(e);
+			System.exit(-1);
+		}
+		
+		LinkedList<LocalBlock> blocks = new LinkedList<>();
+		for(LocalBlock b = chain.getLatestBlock(); b != null; b = chain.getBlock(b.getPreviousHash())) {
+			blocks.addFirst(b);
+		}
+		
+		int checked = 0;
+		int legacy = 0;
+		int mismatches = 0;
+		LocalBlock parent = null;
+		for(LocalBlock b : blocks) {
+			if(!b.hasDifficultySchedule()) {
+				legacy++;
+			} else {
+				int expected = getReferenceDifficulty(chain, b);
+				if(b.getNextDifficulty() != expected) {
+					System.err.printf("%s stored next difficulty %d, expected %d\n", b, b.getNextDifficulty(), expected);
+					mismatches++;
+				}
+			}
+			if(parent != null && b.getDifficulty() < getReferenceDifficulty(chain, parent)) {
+				System.err.printf("%s has difficulty %d below the required %d\n", b, b.getDifficulty(), getReferenceDifficulty(chain, parent));
+				mismatches++;
+			}
+			parent = b;
+			checked++;
+		}
+		
+		int tipExpected = getReferenceDifficulty(chain, chain.getLatestBlock());
+		if(chain.getDifficulty() != tipExpected) {
+			System.err.printf("Chain difficulty is %d, expected %d\n", chain.getDifficulty(), tipExpected);
+			mismatches++;
+		}
+		chain.close();
+		
+		System.out.printf("Checked %d blocks (%d without a stored schedule), current difficulty %d, %d mismatches\n", checked, legacy, chain.getDifficulty(), mismatches);
+		if(mismatches > 0) {
+			System.exit(-1);
+		}
+	}
+	
+	/*
+	 * this is the difficulty rule done the slow way: walk back to the start of
+	 * the retarget window through the store and compare the elapsed time
+	 */
+	private int getReferenceDifficulty(Blockchain chain, LocalBlock block) {
+		NetworkParams params = network.getParams();
+		int interval = params.getDifficultyAdjustmentInterval();
+		if(block.getIndex() % interval != 0 || block.getIndex() == 0) {
+			return block.getDifficulty();
+		}
+		
+		LocalBlock prevAdjustmentBlock = block;
+		for(int itr = 1; itr < interval; itr++) {
+			prevAdjustmentBlock = chain.getBlock(prevAdjustmentBlock.getPreviousHash());
+		}
+		int timeExpected = params.getBlockGenerationInterval() * interval;
+		long timeTaken = block.getTimestamp() - prevAdjustmentBlock.getTimestamp();
+		if(timeTaken < timeExpected / 2) {
+			return prevAdjustmentBlock.getDifficulty() + 1;
+		} else if(timeTaken > timeExpected * 2) {
+			return Math.max(prevAdjustmentBlock.getDifficulty() - 1, 1);
+		} else {
+			return prevAdjustmentBlock.getDifficulty();
+		}
+	}
+	
+	private void generate(Blockchain chain) {
+		NetworkParams params = network.getParams();
+		int interval = params.getDifficultyAdjustmentInterval();
+		//each retarget window is mined fast, on time, or slow, so the difficulty goes up, stays, or goes down
+		long[] gaps = { 1, params.getBlockGenerationInterval(), params.getBlockGenerationInterval() * 3 };
+		Random random = new Random(seed);
+		long timestamp = chain.getLatestBlock().getTimestamp();
+		long gap = gaps[0];
+		
+		for(int itr = 0; itr < generate; itr++) {
+			LocalBlock tail = chain.getLatestBlock();
+			if(tail.getIndex() % interval == 0) {
+				gap = gaps[random.nextInt(gaps.length)];
+			}
+			timestamp += gap;
+			int difficulty = chain.getDifficulty();
+			List<Transaction> transactions = new LinkedList<>();
+			transactions.add(Transaction.rewardOf(network.getCharityAddress(), chain.getReward()));
+			
+			Block block = null;
+			for(long nonce = 0; block == null || !Block.hashMatchesDifficulty(block.getHash(), difficulty); nonce++) {
+				block = new Block(network, tail.getIndex() + 1, tail.getHash(), timestamp, transactions, difficulty, nonce);
+			}
+			if(!chain.addBlockToChain(block)) {
+				System.err.printf("Generated %s was rejected\n", block);
+				System.exit(-1);
+			}
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn;
+
+import java.security.Security;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.LongStream;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import io.grpc.ManagedChannel;
+import io.grpc.ManagedChannelBuilder;
+import io.grpc.stub.StreamObserver;
+import io.tokhn.core.Block;
+import io.tokhn.core.Blockchain;
+import io.tokhn.core.InvalidChainException;
+import io.tokhn.grpc.BlockModel;
+import io.tokhn.grpc.MetricModel;
+import io.tokhn.grpc.MetricsRequest;
+import io.tokhn.grpc.TokhnServiceGrpc;
+import io.tokhn.grpc.TokhnServiceGrpc.TokhnServiceBlockingStub;
+import io.tokhn.grpc.WelcomeModel;
+import io.tokhn.grpc.WelcomeRequest;
+import io.tokhn.grpc.WelcomeRequest.PeerType;
+import io.tokhn.store.HeapBlockStore;
+import io.tokhn.store.HeapUTXOStore;
+import io.tokhn.store.OffHeapUTXOStore;
+import io.tokhn.store.UTXOStore;
+import io.tokhn.util.ChainGenerator;
+import io.tokhn.util.ChainGenerator.Fork;
+import io.tokhn.util.GRPC;
+import io.tokhn.util.Hash;
+import io.tokhn.util.Log;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/*
+ * Generates a TEST chain and replays it, either into a Blockchain in this
+ * process or into a local TokhnD over gRPC, then reports how fast it went.
+ * Latency is how long addBlockToChain took in process, or how long the node
+ * took to relay a block back after it was sent. The node's TEST chain has to
+ * be empty, and its admission limits have to let the blocks through.
+ */
+@Command(name = "Load Test", version = { "Tokhn 0.0.1", "(c) 2018 Matt Liotta" }, showDefaultValues = true)
+public class LoadTest implements Runnable {
+	@Option(names = { "-h", "--help" }, usageHelp = true, description = "displays this help message and exit")
+	private boolean helpRequested = false;
+	
+	@Option(names = { "-s", "--seed" }, required = false, description = "the seed the chain is generated from")
+	private long seed = 1337;
+	
+	@Option(names = { "-b", "--blocks" }, required = false, description = "the height of the generated chain")
+	private int height = 1000;
+	
+	@Option(names = { "-t", "--transactions" }, required = false, description = "the regular transactions in each block besides the reward")
+	private int transactions = 10;
+	
+	@Option(names = { "-o", "--outputs" }, required = false, description = "the outputs of each regular transaction, at least two")
+	private int outputs = 2;
+	
+	@Option(names = { "-a", "--addresses" }, required = false, description = "the number of addresses outputs and rewards go to")
+	private int addresses = 100;
+	
+	@Option(names = { "-sc", "--scripts" }, required = false, description = "the fraction of outputs with a script")
+	private double scripts = 0;
+	
+	@Option(names = { "-f", "--fork" }, required = false, description = "the forks to generate, one of NONE, STALE or REORG")
+	private Fork fork = Fork.NONE;
+	
+	@Option(names = { "-fi", "--fork-interval" }, required = false, description = "the number of blocks between forks")
+	private int forkInterval = 100;
+	
+	@Option(names = { "-fd", "--fork-depth" }, required = false, description = "the number of blocks behind the tip forks branch off")
+	private int forkDepth = 2;
+	
+	@Option(names = { "-oh", "--off-heap" }, required = false, description = "keeps the UTXOs of the Blockchain in this process in direct memory instead of on the heap")
+	private boolean offHeap = false;
+	
+	@Option(names = { "-H", "--host" }, required = false, description = "the node to replay into instead of a Blockchain in this process")
+	private String host = null;
+	
+	@Option(names = { "-P", "--port" }, required = false, description = "the node port")
+	private int port = 1337;
+	
+	@Option(names = { "-w", "--window" }, required = false, description = "the blocks sent to the node before waiting for them to come back")
+	private int window = 64;
+	
+	@Option(names = { "-T", "--timeout" }, required = false, description = "the seconds to wait for the node to relay a block")
+	private int timeout = 60;
+	
+	@Option(names = { "-ll", "--log-level" }, required = false, description = "the most detailed log lines to write, one of ERROR, WARN, INFO or DEBUG")
+	private Log.Level logLevel = Log.Level.WARN;
+	
+	public static void main(String[] args) {
+		Security.addProvider(new BouncyCastleProvider());
+		CommandLine.run(new LoadTest(), System.out, args);
+	}
+	
+	@Override
+	public void run() {
+		Log.setLevel(logLevel);
+		ChainGenerator generator = null;
+		List<Block> blocks = null;
+		long start = System.nanoTime();
+		try {
+			generator = new ChainGenerator(seed, height, transactions, outputs, addresses, scripts, fork, forkInterval, forkDepth);
+			blocks = generator.generate();
+		} catch(IllegalArgumentException | IllegalStateException | InvalidChainException e) {
+			System.err.println(e);
+			System.exit(-1);
+		}
+		long txs = blocks.stream().mapToLong(b -> b.getTransactions().size()).sum();
+		System.out.printf("Generated %d blocks with %d transactions in %.1fs, tip %s\n", blocks.size(), txs, seconds(start), generator.getTip());
+		
+		Latencies latency = new Latencies(blocks.size());
+		start = System.nanoTime();
+		boolean replayed = false;
+		if(host == null) {
+			replayed = replay(blocks, generator, latency);
+		} else {
+			ManagedChannel channel = ManagedChannelBuilder.forAddress(host, port).usePlaintext(true).build();
+			replayed = replay(blocks, generator, latency, channel);
+			channel.shutdownNow();
+		}
+		double elapsed = seconds(start);
+		System.out.printf("Replayed %d blocks in %.1fs, %.1f blocks/s, %.1f tx/s\n", blocks.size(), elapsed, blocks.size() / elapsed, txs / elapsed);
+		long[] sorted = latency.sorted();
+		if(sorted.length > 0) {
+			System.out.printf("Latency in ms mean %.2f, p50 %.2f, p99 %.2f, max %.2f over %d blocks\n", LongStream.of(sorted).average().getAsDouble() / 1e6, percentile(sorted, 0.5) / 1e6, percentile(sorted, 0.99) / 1e6, sorted[sorted.length - 1] / 1e6, sorted.length);
+		}
+		if(!replayed) {
+			System.exit(-1);
+		}
+	}
+	
+	private boolean replay(List<Block> blocks, ChainGenerator generator, Latencies latency) {
+		UTXOStore uStore = offHeap ? new OffHeapUTXOStore(ChainGenerator.NETWORK) : new HeapUTXOStore(ChainGenerator.NETWORK);
+		try(Blockchain chain = new Blockchain(ChainGenerator.NETWORK, new HeapBlockStore(ChainGenerator.NETWORK), uStore)) {
+			long before = getUsedHeap();
+			
+			for(Block block : blocks) {
+				long start = System.nanoTime();
+				boolean added = chain.addBlockToChain(block);
+				latency.recordSince(start);
+				if(added != generator.isAccepted(block.getHash())) {
+					System.err.printf("%s was %s\n", block, added ? "added but should have been left on a branch" : "not added");
+					return false;
+				}
+			}
+			
+			//the generated blocks are still around, so this is just what the chain holds on to
+			System.out.printf("Chain uses %.1fMB of heap\n", (getUsedHeap() - before) / 1024.0 / 1024.0);
+			if(offHeap) {
+				System.out.printf("UTXOs use %.1fMB of direct memory\n", ((OffHeapUTXOStore) uStore).getOffHeapBytes() / 1024.0 / 1024.0);
+			}
+			if(!chain.getLatestBlock().getHash().equals(generator.getTip())) {
+				System.err.printf("Replay ended at %s instead of %s\n", chain.getLatestBlock(), generator.getTip());
+				return false;
+			}
+			return true;
+		} catch(InvalidChainException e) {
+			System.err.println(e);
+			return false;
+		}
+	}
+	
+	private boolean replay(List<Block> blocks, ChainGenerator generator, Latencies latency, ManagedChannel channel) {
+		TokhnServiceBlockingStub stub = TokhnServiceGrpc.newBlockingStub(channel);
+		WelcomeModel welcome = getWelcome(stub);
+		if(welcome == null) {
+			System.err.printf("The node isn't running %s\n", ChainGenerator.NETWORK);
+			return false;
+		} else if(welcome.getLatestBlock().getIndex() != 0) {
+			System.err.printf("The node's %s chain has to be empty\n", ChainGenerator.NETWORK);
+			return false;
+		}
+		
+		//every block that extends the chain comes back once the node has added it
+		Semaphore inFlight = new Semaphore(window);
+		Map<Hash, Long> sent = new ConcurrentHashMap<>();
+		StreamObserver<BlockModel> observer = TokhnServiceGrpc.newStub(channel).streamBlocks(new StreamObserver<BlockModel>() {
+			@Override
+			public void onNext(BlockModel blockModel) {
+				Long start = sent.remove(GRPC.getHash(blockModel));
+				if(start != null) {
+					latency.recordSince(start);
+					inFlight.release();
+				}
+			}
+			
+			@Override
+			public void onError(Throwable t) {
+				System.err.println(t);
+			}
+			
+			@Override
+			public void onCompleted() {
+				//the node only ends the stream once we have
+			}
+		});
+		
+		try {
+			for(Block block : blocks) {
+				if(generator.isAccepted(block.getHash())) {
+					if(!inFlight.tryAcquire(timeout, TimeUnit.SECONDS)) {
+						break;
+					}
+					sent.put(block.getHash(), System.nanoTime());
+				}
+				observer.onNext(GRPC.transform(block));
+			}
+			inFlight.tryAcquire(window, timeout, TimeUnit.SECONDS);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		observer.onCompleted();
+		
+		for(MetricModel metric : stub.getMetrics(MetricsRequest.newBuilder().setPrefix("jvm.heap").build()).getMetricsList()) {
+			System.out.printf("Node %s %.1fMB\n", metric.getName(), metric.getValue() / 1024 / 1024);
+		}
+		if(!sent.isEmpty()) {
+			System.err.printf("%d blocks never came back, so the node may have refused them\n", sent.size());
+			return false;
+		}
+		Hash tip = GRPC.getHash(getWelcome(stub).getLatestBlock());
+		if(!tip.equals(generator.getTip())) {
+			System.err.printf("Replay ended at %s instead of %s\n", tip, generator.getTip());
+			return false;
+		}
+		return true;
+	}
+	
+	private static WelcomeModel getWelcome(TokhnServiceBlockingStub stub) {
+		return stub.getWelcome(WelcomeRequest.newBuilder().setPeerType(PeerType.CLIENT).build()).getWelcomesList().stream()
+				.filter(w -> w.getNetwork().name().equals(ChainGenerator.NETWORK.name()))
+				.findFirst().orElse(null);
+	}
+	
+	/**
+	 * 
+	 * @return The nearest rank percentile of the sorted latencies
+	 */
+	private static long percentile(long[] sorted, double percentile) {
+		return sorted[Math.max(0, (int) Math.ceil(percentile * sorted.length) - 1)];
+	}
+	
+	private static double seconds(long start) {
+		return (System.nanoTime() - start) / 1e9;
+	}
+	
+	private static long getUsedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+	
+	/*
+	 * every latency as it was measured, in nanoseconds, since the buckets of
+	 * a Histogram are powers of two and too coarse for the percentiles
+	 */
+	private static class Latencies {
+		private final long[] nanos;
+		private final AtomicInteger count = new AtomicInteger();
+		
+		public Latencies(int capacity) {
+			nanos = new long[capacity];
+		}
+		
+		public void recordSince(long start) {
+			nanos[count.getAndIncrement()] = System.nanoTime() - start;
+		}
+		
+		public long[] sorted() {
+			long[] sorted = Arrays.copyOf(nanos, count.get());
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+}
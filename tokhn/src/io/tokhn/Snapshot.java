@@ -0,0 +1,110 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.Security;
+
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+import io.tokhn.core.Blockchain;
+import io.tokhn.core.InvalidChainException;
+import io.tokhn.core.LocalBlock;
+import io.tokhn.node.Network;
+import io.tokhn.store.MapDBBlockStore;
+import io.tokhn.store.MapDBUTXOStore;
+import io.tokhn.store.UTXOSnapshot;
+import io.tokhn.util.Hash;
+import picocli.CommandLine;
+import picocli.CommandLine.Command;
+import picocli.CommandLine.Option;
+
+/*
+ * Exports the UTXO set of a stopped node to a snapshot file, or imports one
+ * into a new node, which then syncs from the snapshot block when it starts.
+ */
+@Command(name = "Snapshot", version = { "Tokhn 0.0.1", "(c) 2018 Matt Liotta" }, showDefaultValues = true)
+public class Snapshot implements Runnable {
+	@Option(names = { "-h", "--help" }, usageHelp = true, description = "displays this help message and exit")
+	private boolean helpRequested = false;
+	
+	@Option(names = { "-n", "--network" }, required = false, description = "the network")
+	private Network network = Network.TKHN;
+	
+	@Option(names = { "-e", "--export" }, required = false, description = "the snapshot file to write")
+	private File exportFile = null;
+	
+	@Option(names = { "-i", "--import" }, required = false, description = "the snapshot file to load into an empty store")
+	private File importFile = null;
+	
+	@Option(names = { "-b", "--block" }, required = false, description = "the hash of the block the snapshot must be taken at")
+	private String blockHash = null;
+	
+	@Option(names = { "-c", "--checksum" }, required = false, description = "the checksum printed when the snapshot was exported, which has to come from someone you trust")
+	private String checksum = null;
+	
+	public static void main(String[] args) {
+		Security.addProvider(new BouncyCastleProvider());
+		CommandLine.run(new Snapshot(), System.out, args);
+	}
+	
+	@Override
+	public void run() {
+		if((exportFile == null) == (importFile == null)) {
+			System.err.println("Either --export or --import is required");
+			System.exit(-1);
+		} else if(importFile != null && checksum == null) {
+			System.err.println("--import requires the --checksum of the snapshot");
+			System.exit(-1);
+		}
+		
+		MapDBBlockStore bStore = new MapDBBlockStore(network);
+		MapDBUTXOStore uStore = new MapDBUTXOStore(network);
+		try {
+			if(exportFile != null) {
+				//opening the chain finishes any journaled block, so the UTXO set matches the latest block
+				try(Blockchain chain = new Blockchain(network, bStore, uStore)) {
+					LocalBlock tip = chain.getLatestBlock();
+					if(blockHash != null && !tip.getHash().equals(new Hash(blockHash))) {
+						System.err.printf("The latest block is %s, a snapshot can only be taken at the latest block\n", tip);
+						System.exit(-1);
+					}
+					Hash snapshotChecksum = null;
+					try(OutputStream out = new BufferedOutputStream(new FileOutputStream(exportFile))) {
+						snapshotChecksum = UTXOSnapshot.write(out, network, chain.getGenesisBlock(), tip, uStore);
+					}
+					System.out.printf("Exported snapshot at %s to %s with checksum %s\n", tip, exportFile, snapshotChecksum);
+				}
+			} else {
+				LocalBlock tip = UTXOSnapshot.read(importFile, network, new Hash(checksum), bStore, uStore);
+				if(blockHash != null && !tip.getHash().equals(new Hash(blockHash))) {
+					//the checksum already vouches for the block, so this only catches the wrong snapshot
+					System.err.printf("The snapshot is at %s, not %s\n", tip, blockHash);
+					System.exit(-1);
+				}
+				System.out.printf("Imported snapshot at %s\n", tip);
+			}
+		} catch(IOException | InvalidChainException e) {
+			System.err.println(e);
+			System.exit(-1);
+		}
+	}
+}
@@ -24,6 +24,7 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import io.tokhn.core.Address;
 import io.tokhn.core.Token;
+import io.tokhn.core.Transaction;
 import io.tokhn.core.UTXO;
 import io.tokhn.core.Wallet;
 import io.tokhn.node.InvalidNetworkException;
@@ -144,7 +145,12 @@ public class Tokhn implements Runnable, AutoCloseable {
 	private void handlePayAddress(Address address, Token amount) {
 		openWallet();
 		try {
-			sendMessage(new TransactionMessage(network, wallet.newTx(network, address, amount)));
+			Transaction payment = wallet.newTx(network, address, amount);
+			if(!sendMessage(new TransactionMessage(network, payment))) {
+				//nobody has the transaction, so the coins it spends can be picked again
+				wallet.unlock(payment, network);
+				return;
+			}
 			while(true) {
 				try {
 					Object read = ois.readObject();
@@ -169,15 +175,20 @@ public class Tokhn implements Runnable, AutoCloseable {
 		}
 	}
 	
-	private void sendMessage(Object message) {
+	private boolean sendMessage(Object message) {
 		if(clientSocket == null) {
 			connect();
 		}
+		if(oos == null) {
+			return false;
+		}
 		try {
 			oos.writeObject(message);
 			oos.flush();
+			return true;
 		} catch(IOException e) {
 			System.err.println(e);
+			return false;
 		}
 	}
 	
@@ -22,6 +22,7 @@ import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import io.grpc.stub.StreamObserver;
 import io.tokhn.grpc.BlockModel;
+import io.tokhn.grpc.MetricsRequest;
 import io.tokhn.grpc.TokhnServiceGrpc;
 import io.tokhn.grpc.TokhnServiceGrpc.TokhnServiceStub;
 import io.tokhn.grpc.TransactionModel;
@@ -40,6 +41,7 @@ public class TokhnC {
 		
 		WelcomeResponse welcomeResponse = stub.getWelcome(WelcomeRequest.newBuilder().setPeerType(PeerType.CLIENT).build());
 		System.out.println(welcomeResponse);
+		System.out.println(stub.getMetrics(MetricsRequest.getDefaultInstance()));
 		
 		final CountDownLatch blockLatch = new CountDownLatch(1);
 		StreamObserver<BlockModel> blockObserver = async.streamBlocks(new StreamObserver<BlockModel>() {
@@ -18,14 +18,31 @@ package io.tokhn;
 
 import java.io.IOException;
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import io.grpc.Server;
-import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptor;
+import io.grpc.ServerInterceptors;
+import io.grpc.netty.NettyServerBuilder;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.tokhn.node.Admission;
+import io.tokhn.node.AdmissionInterceptor;
+import io.tokhn.node.DeadlineInterceptor;
+import io.tokhn.node.InternalMiner;
 import io.tokhn.node.Network;
 import io.tokhn.node.TokhnServiceImpl;
+import io.tokhn.util.GRPC;
+import io.tokhn.util.Log;
+import io.tokhn.util.Metrics;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.Option;
@@ -40,6 +57,72 @@ public class TokhnD extends Thread {
 	
 	@Option(names = { "-n", "--network" }, required = false, description = "the list of networks to support")
 	Set<Network> NETWORKS = Network.getAll();
+	
+	@Option(names = { "-rv", "--revalidate" }, required = false, description = "revalidates the whole chain in the background on startup")
+	private boolean REVALIDATE = false;
+	
+	@Option(names = { "-ti", "--tx-index" }, required = false, description = "keeps an index of transactions for lookups by id")
+	private boolean TX_INDEX = false;
+	
+	@Option(names = { "-ai", "--address-index" }, required = false, description = "keeps an index of the transactions for each address for history lookups, which also turns on the transaction index")
+	private boolean ADDRESS_INDEX = false;
+	
+	@Option(names = { "-ff", "--flat-files" }, required = false, description = "stores blocks in append-only segment files instead of MapDB")
+	private boolean FLAT_FILES = false;
+	
+	@Option(names = { "-im", "--in-memory" }, required = false, description = "keeps the chains in memory only, with the UTXOs in direct memory, so they start over every time, which is meant for test networks and load tests")
+	private boolean IN_MEMORY = false;
+	
+	@Option(names = { "-pr", "--prune" }, required = false, description = "only keeps the transactions of this many of the latest blocks, 0 keeps them all, which can't be used with either index")
+	private int PRUNE_DEPTH = 0;
+	
+	@Option(names = { "-bo", "--bytes-only" }, required = false, description = "stops sending hashes and addresses as strings too, which peers and clients from before the bytes fields need")
+	private boolean BYTES_ONLY = false;
+	
+	@Option(names = { "-rt", "--rpc-threads" }, required = false, description = "the number of threads handling calls, which keeps long chain work off the network threads")
+	private int RPC_THREADS = Runtime.getRuntime().availableProcessors() * 4;
+	
+	@Option(names = { "-rq", "--rpc-queue" }, required = false, description = "the number of calls that can wait for a thread before new ones are refused")
+	private int RPC_QUEUE = 10000;
+	
+	@Option(names = { "-bt", "--boss-threads" }, required = false, description = "the number of Netty threads accepting connections")
+	private int BOSS_THREADS = 1;
+	
+	@Option(names = { "-wt", "--worker-threads" }, required = false, description = "the number of Netty threads doing network I/O, 0 uses the Netty default")
+	private int WORKER_THREADS = 0;
+	
+	@Option(names = { "-ka", "--keepalive" }, required = false, description = "the seconds between keepalive pings on an idle connection")
+	private long KEEPALIVE = 300;
+	
+	@Option(names = { "-kt", "--keepalive-timeout" }, required = false, description = "the seconds to wait for a keepalive ping to be answered before closing the connection")
+	private long KEEPALIVE_TIMEOUT = 20;
+	
+	@Option(names = { "-mm", "--max-message" }, required = false, description = "the largest message in bytes that will be accepted")
+	private int MAX_MESSAGE = 16 * 1024 * 1024;
+	
+	@Option(names = { "-mc", "--max-calls" }, required = false, description = "the most calls open at once on a single connection, 0 for no limit")
+	private int MAX_CALLS = 0;
+	
+	@Option(names = { "-dl", "--deadline" }, required = false, description = "the seconds a unary call gets before it fails with DEADLINE_EXCEEDED, 0 for no limit")
+	private long DEADLINE = 30;
+	
+	@Option(names = { "-mi", "--mine-interval" }, required = false, description = "the milliseconds between internally mined blocks, which take every transaction waiting by then")
+	private long MINE_INTERVAL = InternalMiner.DEFAULT_INTERVAL;
+	
+	@Option(names = { "-pl", "--peer-limit" }, required = false, description = "the units of work a single host can use each second on each kind of call, 0 for no limits")
+	private double PEER_LIMIT = 50;
+	
+	@Option(names = { "-pb", "--peer-burst" }, required = false, description = "the units of work a single host can use at once on each kind of call")
+	private double PEER_BURST = 200;
+	
+	@Option(names = { "-nl", "--node-limit" }, required = false, description = "the units of work all hosts together can use each second")
+	private double NODE_LIMIT = 1000;
+	
+	@Option(names = { "-nb", "--node-burst" }, required = false, description = "the units of work all hosts together can use at once")
+	private double NODE_BURST = 4000;
+	
+	@Option(names = { "-ll", "--log-level" }, required = false, description = "the most detailed log lines to write, one of ERROR, WARN, INFO or DEBUG")
+	private Log.Level LOG_LEVEL = Log.Level.INFO;
 
 	public static void main(String[] args) {
 		Security.addProvider(new BouncyCastleProvider());
@@ -54,12 +137,50 @@ public class TokhnD extends Thread {
 		} else {
 			System.out.println("Daemon running...");
 		}
-		Server server = ServerBuilder.forPort(PORT).addService(new TokhnServiceImpl(NETWORKS)).build();
+		GRPC.setLegacyStrings(!BYTES_ONLY);
+		Log.setLevel(LOG_LEVEL);
+		if(IN_MEMORY && FLAT_FILES) {
+			System.err.println("The chains can't be kept in memory and in flat files");
+			System.exit(-1);
+		}
+		if(PRUNE_DEPTH != 0 && (TX_INDEX || ADDRESS_INDEX)) {
+			System.err.println("The indexes can't be kept for pruned chains");
+			System.exit(-1);
+		}
+		AtomicInteger rpcThread = new AtomicInteger();
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(RPC_THREADS, RPC_THREADS, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(RPC_QUEUE), r -> new Thread(r, "rpc-" + rpcThread.incrementAndGet()));
+		executor.allowCoreThreadTimeOut(true);
+		Metrics.gauge("rpc.queue", () -> executor.getQueue().size());
+		Metrics.gauge("rpc.active", () -> executor.getActiveCount());
+		
+		NettyServerBuilder builder = NettyServerBuilder.forPort(PORT)
+				.executor(executor)
+				.channelType(NioServerSocketChannel.class)
+				.bossEventLoopGroup(new NioEventLoopGroup(BOSS_THREADS))
+				.workerEventLoopGroup(new NioEventLoopGroup(WORKER_THREADS))
+				.keepAliveTime(KEEPALIVE, TimeUnit.SECONDS)
+				.keepAliveTimeout(KEEPALIVE_TIMEOUT, TimeUnit.SECONDS)
+				.maxMessageSize(MAX_MESSAGE);
+		if(MAX_CALLS > 0) {
+			builder.maxConcurrentCallsPerConnection(MAX_CALLS);
+		}
+		TokhnServiceImpl service = new TokhnServiceImpl(NETWORKS, REVALIDATE, TX_INDEX, ADDRESS_INDEX, FLAT_FILES, IN_MEMORY, PRUNE_DEPTH, MINE_INTERVAL);
+		List<ServerInterceptor> interceptors = new ArrayList<>();
+		if(DEADLINE > 0) {
+			interceptors.add(new DeadlineInterceptor(DEADLINE, TimeUnit.SECONDS));
+		}
+		if(PEER_LIMIT > 0) {
+			//the last one runs first, so refused calls never get as far as a deadline
+			interceptors.add(new AdmissionInterceptor(new Admission(PEER_LIMIT, PEER_BURST, NODE_LIMIT, NODE_BURST), n -> service.getLength(n)));
+		}
+		builder.addService(ServerInterceptors.intercept(service, interceptors));
+		Server server = builder.build();
 		
 		Runtime.getRuntime().addShutdownHook(new Thread() {
 			@Override
 			public void run() {
 				server.shutdownNow();
+				executor.shutdownNow();
 			}
 		});
 		
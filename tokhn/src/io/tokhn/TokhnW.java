@@ -9,7 +9,6 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
 import java.util.prefs.Preferences;
 import java.util.stream.Collectors;
 
@@ -25,13 +24,16 @@ import io.grpc.stub.StreamObserver;
 import io.tokhn.model.Address;
 import io.tokhn.node.InvalidNetworkException;
 import io.tokhn.node.Network;
+import io.tokhn.node.WalletSync;
 import io.tokhn.core.TXI;
 import io.tokhn.core.TXO;
 import io.tokhn.core.Token;
 import io.tokhn.core.Transaction;
 import io.tokhn.core.UTXO;
 import io.tokhn.core.Wallet;
-import io.tokhn.grpc.BlockModel;
+import io.tokhn.grpc.AddressHistoryModel;
+import io.tokhn.grpc.AddressHistoryRequest;
+import io.tokhn.grpc.AddressHistoryResponse;
 import io.tokhn.grpc.NetworkModel;
 import io.tokhn.grpc.TokhnServiceGrpc;
 import io.tokhn.grpc.TokhnServiceGrpc.TokhnServiceStub;
@@ -39,7 +41,6 @@ import io.tokhn.grpc.TransactionModel;
 import io.tokhn.grpc.TxiModel;
 import io.tokhn.grpc.TxoModel;
 import io.tokhn.grpc.UtxoModel;
-import io.tokhn.grpc.UtxoRequest;
 import io.tokhn.grpc.UtxoResponse;
 import io.tokhn.grpc.WelcomeRequest;
 import io.tokhn.grpc.WelcomeRequest.PeerType;
@@ -80,6 +81,9 @@ public class TokhnW extends Thread {
 	@Option(names = { "-n", "--network" }, required = false, description = "the network")
 	private String transactionNetwork ="LUV";
 
+	@Option(names = { "-hi", "--history" }, description = "shows the transaction history of the wallet address, which needs a node running with --address-index")
+	private boolean historyRequested;
+	
 	public static void main(String[] args) {
 		Security.addProvider(new BouncyCastleProvider());
 		CommandLine.run(new TokhnW(), System.out, args);
@@ -90,7 +94,6 @@ public class TokhnW extends Thread {
 
 		ManagedChannel channel = ManagedChannelBuilder.forAddress(HOST, PORT).usePlaintext(true).build();
 		TokhnServiceGrpc.TokhnServiceBlockingStub stub = TokhnServiceGrpc.newBlockingStub(channel).withWaitForReady();
-		TokhnServiceStub async = TokhnServiceGrpc.newStub(channel).withWaitForReady();
 
 		WelcomeResponse welcomeResponse = stub
 				.getWelcome(WelcomeRequest.newBuilder().setPeerType(PeerType.CLIENT).build());
@@ -110,16 +113,14 @@ public class TokhnW extends Thread {
 		}
 		ByteString LuvBS = ByteString.copyFrom(Luvaddr.getBytes());
 		NetworkModel NM = NetworkModel.LUV;
-		UtxoRequest request = UtxoRequest.newBuilder().setNetwork(NM).setAddress(LuvBS).build();
-		System.out.println("request data  Network val:" + request.getNetworkValue() + " network :"
-				+ request.getNetwork() + "address" + request.getAddress());
-
-		UtxoResponse UTXOResponse = stub.getUtxos(request);
-		System.out.println(UTXOResponse);
-		if(UTXOResponse.getUtxosCount()>0) {
-			updateDBBalance(Network.LUV, UTXOResponse);
-		}
+		//only the blocks since the last run are fetched, the full UTXO list is only pulled the first time
+		WalletSync sync = new WalletSync(wallet, Network.LUV, channel);
+		System.out.printf("Applied %d blocks\n", sync.sync());
+		sync.subscribe();
 		showDBBalances();
+		if (historyRequested) {
+			showHistory(stub, NM, LuvBS);
+		}
 		System.out.println("Done");
 //		if(withdrawRequested) {
 //			Transaction tx = null;
@@ -173,50 +174,15 @@ public class TokhnW extends Thread {
 //			//txObserver.onNext(TM);
 //		
 //		} 
-		final CountDownLatch blockLatch = new CountDownLatch(1);
-			StreamObserver<BlockModel> blockObserver = async.streamBlocks(new StreamObserver<BlockModel>() {
-				@Override
-				public void onCompleted() {
-					blockLatch.countDown();
-				}
-
-				@Override
-				public void onError(Throwable t) {
-					System.err.println(t);
-				}
-
-				@Override
-				public void onNext(BlockModel blockModel) {
-					System.out.println(blockModel);
-				}
-			});
-			
-			final CountDownLatch txLatch = new CountDownLatch(1);
-			StreamObserver<TransactionModel> txObserver = async.streamTransactions(new StreamObserver<TransactionModel>() {
-				@Override
-				public void onCompleted() {
-					txLatch.countDown();
-				}
-
-				@Override
-				public void onError(Throwable t) {
-					System.err.println(t);
-				}
-
-				@Override
-				public void onNext(TransactionModel transactionModel) {
-					System.out.println(transactionModel);
-				}
-			});
-			
-			try {
-				blockLatch.await();
-				txLatch.await();
-			} catch (InterruptedException e) {
-				System.err.println(e);
-			} finally {
-				channel.shutdown();
-			}
+		try {
+			//the subscription only carries our own transactions, not every block and transaction on the network
+			sync.awaitClose();
+		} catch (InterruptedException e) {
+			System.err.println(e);
+		} finally {
+			sync.close();
+			channel.shutdown();
+		}
 		
 		
 	
@@ -328,6 +294,21 @@ public class TokhnW extends Thread {
 		// }
 	}
 
+	public void showHistory(TokhnServiceGrpc.TokhnServiceBlockingStub stub, NetworkModel network, ByteString address) {
+		// the node hands out a page at a time, newest first, until there is no next cursor
+		String cursor = "";
+		do {
+			AddressHistoryRequest request = AddressHistoryRequest.newBuilder().setNetwork(network).setAddress(address)
+					.setCursor(cursor).build();
+			AddressHistoryResponse response = stub.getAddressHistory(request);
+			for (AddressHistoryModel history : response.getHistoryList()) {
+				System.out.printf("[%d] %s %s\n", history.getBlockIndex(), history.getTxId(),
+						Token.valueOfInMegas(history.getDelta()));
+			}
+			cursor = response.getNextCursor();
+		} while (!cursor.isEmpty());
+	}
+	
 	public long getUtxoAmount(UtxoModel lastUtxo) {
 		long amount;
 
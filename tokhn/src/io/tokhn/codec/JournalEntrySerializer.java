@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.Map;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+
+import io.tokhn.core.UTXODelta;
+import io.tokhn.util.Hash;
+
+public class JournalEntrySerializer implements Serializer<Map.Entry<Hash, UTXODelta>>, Serializable {
+	private static final long serialVersionUID = -4807437392616010658L;
+	
+	@Override
+	public void serialize(DataOutput2 out2, Map.Entry<Hash, UTXODelta> entry) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(entry.getKey());
+		oos.writeObject(entry.getValue());
+		oos.flush();
+		out2.write(out.toByteArray());
+	}
+	
+	@Override
+	public Map.Entry<Hash, UTXODelta> deserialize(DataInput2 in2, int available) throws IOException {
+		byte[] bytes = new byte[available];
+		in2.readFully(bytes);
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return new SimpleImmutableEntry<>((Hash) ois.readObject(), (UTXODelta) ois.readObject());
+		} catch(ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+}
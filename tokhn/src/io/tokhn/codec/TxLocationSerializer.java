@@ -0,0 +1,46 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.codec;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+
+import io.tokhn.core.TxLocation;
+import io.tokhn.util.Hash;
+
+public class TxLocationSerializer implements Serializer<TxLocation>, Serializable {
+	private static final long serialVersionUID = -2297170464338905147L;
+	
+	@Override
+	public void serialize(DataOutput2 out, TxLocation value) throws IOException {
+		out.packInt(value.getBlockHash().getBytes().length);
+		out.write(value.getBlockHash().getBytes());
+		out.packInt(value.getBlockIndex());
+		out.packInt(value.getPosition());
+	}
+	
+	@Override
+	public TxLocation deserialize(DataInput2 in, int available) throws IOException {
+		byte[] blockHash = new byte[in.unpackInt()];
+		in.readFully(blockHash);
+		return new TxLocation(new Hash(blockHash), in.unpackInt(), in.unpackInt());
+	}
+}
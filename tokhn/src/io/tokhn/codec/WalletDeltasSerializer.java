@@ -0,0 +1,56 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.codec;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+import org.mapdb.DataInput2;
+import org.mapdb.DataOutput2;
+import org.mapdb.Serializer;
+
+import io.tokhn.core.WalletDelta;
+
+/*
+ * The same Java serialization as Serializer.JAVA, which wallets were written
+ * with, but typed, so the map of deltas doesn't need an unchecked conversion.
+ */
+public class WalletDeltasSerializer implements Serializer<ArrayList<WalletDelta>>, Serializable {
+	private static final long serialVersionUID = 2981463807522173840L;
+	
+	@Override
+	public void serialize(DataOutput2 out, ArrayList<WalletDelta> value) throws IOException {
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(value);
+		oos.flush();
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public ArrayList<WalletDelta> deserialize(DataInput2 in, int available) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(new DataInput2.DataInputToStream(in));
+		try {
+			//only lists of deltas are ever written
+			return (ArrayList<WalletDelta>) ois.readObject();
+		} catch(ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.core;
+
+import java.io.Serializable;
+
+import io.tokhn.util.Hash;
+
+/*
+ * One transaction that touched an address: where it is in the chain and how
+ * much it changed the balance of the address, in megas.
+ */
+public final class AddressHistory implements Serializable {
+	private static final long serialVersionUID = -3406219283871953024L;
+	private final Hash txId;
+	private final int blockIndex;
+	private final int position;
+	private final long delta;
+	
+	public AddressHistory(Hash txId, int blockIndex, int position, long delta) {
+		this.txId = txId;
+		this.blockIndex = blockIndex;
+		this.position = position;
+		this.delta = delta;
+	}
+	
+	public Hash getTxId() {
+		return txId;
+	}
+	
+	public int getBlockIndex() {
+		return blockIndex;
+	}
+	
+	public int getPosition() {
+		return position;
+	}
+	
+	/**
+	 * 
+	 * @return What the transaction paid to the address less what it spent from it
+	 */
+	public long getDelta() {
+		return delta;
+	}
+	
+	public String toString() {
+		return String.format("%s [%d] #%d %d", txId, blockIndex, position, delta);
+	}
+}
@@ -82,7 +82,7 @@ public class Block implements Comparable<Block>, Serializable {
 	}
 	
 	public String toString() {
-		return String.format("Block[%d:%s] (%s)", index, timestamp, hash);
+		return String.format("Block[%d:%s] (%s)", getIndex(), getTimestamp(), getHash());
 	}
 
 	public Network getNetwork() {
@@ -128,7 +128,8 @@ public class Block implements Comparable<Block>, Serializable {
 			return true;
 		} else if (o == null) {
 			return false;
-		} else if (getClass() != o.getClass()) {
+		} else if (!(o instanceof Block)) {
+			//a block decoded lazily from the wire is still the same block
 			return false;
 		}
 		
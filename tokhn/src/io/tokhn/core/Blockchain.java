@@ -16,13 +16,32 @@
 
 package io.tokhn.core;
 
+import java.math.BigInteger;
 import java.time.Instant;
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 import javax.script.Invocable;
 import javax.script.ScriptException;
@@ -32,101 +51,461 @@ import delight.nashornsandbox.NashornSandboxes;
 import delight.nashornsandbox.exceptions.ScriptCPUAbuseException;
 import io.tokhn.core.Transaction.Type;
 import io.tokhn.node.Network;
+import io.tokhn.store.AddressIndexStore;
 import io.tokhn.store.BlockStore;
+import io.tokhn.store.TxIndexStore;
 import io.tokhn.store.UTXOStore;
 import io.tokhn.util.Hash;
+import io.tokhn.util.Log;
+import io.tokhn.util.Metrics;
+import io.tokhn.util.Metrics.Histogram;
+import io.tokhn.util.Metrics.Meter;
 
-public class Blockchain {
+/*
+ * All changes to the chain are applied by a single writer thread, so callers on
+ * any thread can add blocks without coordinating with each other. Readers that
+ * only need the tip read the latest immutable ChainState without locking, and
+ * reads of the stores take a read lock, since most stores aren't safe to read
+ * while they are being changed. The write lock is only held while the stores
+ * are changed, not while blocks are validated or the next state is worked out.
+ * 
+ * Every change is journaled before it is applied and the Checkpoint is moved
+ * to the new tip once the UTXOStore says the change is durable, so a restart
+ * starts from the Checkpoint instead of validating the whole chain again.
+ */
+public class Blockchain implements AutoCloseable {
+	//reorganizations deeper than the prune depth are refused, so it can't be too shallow
+	public static final int MIN_PRUNE_DEPTH = 100;
+	//pruning waits until this many blocks are past the prune depth, so the walk down to them is shared
+	private static final int PRUNE_BATCH = 10;
+	//an index further behind than this is filled from passes over the store, which holds only hashes and headers
+	private static final int SCAN_INDEXING_BLOCKS = 1000;
 	private final Network network;
 	private final BlockStore bStore;
 	private final UTXOStore uStore;
+	//null unless the transaction index is turned on
+	private final TxIndexStore txIndex;
+	//null unless the address index is turned on, which needs the transaction index to find spent outputs
+	private final AddressIndexStore addressIndex;
+	//0 unless pruning, in which case only the latest pruneDepth blocks keep their transactions
+	private final int pruneDepth;
+	//every block on the chain below this index, other than genesis, is only a header or isn't stored at all
+	private int prunedIndex = 0;
+	private final ExecutorService writer;
+	private final StampedLock storeLock = new StampedLock();
+	private volatile Thread writerThread = null;
+	private volatile ChainState state = null;
 	private LocalBlock genesisBlock = null;
+	//null unless the chain was imported from a snapshot, in which case nothing before it is in the BlockStore
+	private Hash baseHash = null;
+	//how many blocks were applied since the UTXOStore last reported its changes as durable and the digest of their journal entries
+	private int journalSize = 0;
+	private Hash journalDigest = null;
+	private LocalBlock durableBlock = null;
+	//only the writer touches latestBlock, everyone else goes through state
 	private LocalBlock latestBlock = null;
+	/*
+	 * orphans are kept in the BlockStore, but we index them here by their
+	 * previous hash so that a newly connected block can find its children
+	 * the insertion order of orphanPrevious is used to evict the oldest orphan
+	 */
+	private final Map<Hash, Set<Hash>> orphansByPrevious = new HashMap<>();
+	private final LinkedHashMap<Hash, Hash> orphanPrevious = new LinkedHashMap<>();
+	private final Histogram blockValidation;
+	private final Histogram txValidation;
+	private final Meter commits;
+	//how many blocks were disconnected by each reorganization
+	private final Histogram reorgDepth;
+	
+	public Blockchain(Network network, BlockStore bStore, UTXOStore uStore) throws InvalidChainException {
+		this(network, bStore, uStore, null);
+	}
+	
+	/**
+	 * 
+	 * @param txIndex Where to keep the transaction index or {@code null} to not keep one
+	 */
+	public Blockchain(Network network, BlockStore bStore, UTXOStore uStore, TxIndexStore txIndex) throws InvalidChainException {
+		this(network, bStore, uStore, txIndex, null);
+	}
+	
+	/**
+	 * 
+	 * @param txIndex Where to keep the transaction index or {@code null} to not keep one
+	 * @param addressIndex Where to keep the address index or {@code null} to not keep one
+	 */
+	public Blockchain(Network network, BlockStore bStore, UTXOStore uStore, TxIndexStore txIndex, AddressIndexStore addressIndex) throws InvalidChainException {
+		this(network, bStore, uStore, txIndex, addressIndex, 0);
+	}
 	
-	public Blockchain(Network network, BlockStore bStore, UTXOStore uStore) {
+	/**
+	 * 
+	 * @param txIndex Where to keep the transaction index or {@code null} to not keep one
+	 * @param addressIndex Where to keep the address index or {@code null} to not keep one
+	 * @param pruneDepth How many of the latest blocks keep their transactions or 0 to keep them all
+	 */
+	public Blockchain(Network network, BlockStore bStore, UTXOStore uStore, TxIndexStore txIndex, AddressIndexStore addressIndex, int pruneDepth) throws InvalidChainException {
+		if(addressIndex != null && txIndex == null) {
+			throw new IllegalArgumentException("The address index needs the transaction index");
+		} else if(pruneDepth != 0 && pruneDepth < MIN_PRUNE_DEPTH) {
+			throw new IllegalArgumentException("The prune depth has to be at least " + MIN_PRUNE_DEPTH);
+		} else if(pruneDepth != 0 && txIndex != null) {
+			//the indexes would point into blocks that no longer have their transactions
+			throw new IllegalArgumentException("The indexes can't be kept for a pruned chain");
+		}
+		this.pruneDepth = pruneDepth;
 		this.network = network;
 		this.bStore = bStore;
 		this.uStore = uStore;
-		latestBlock = bStore.getLatestBlock();
-		if(latestBlock == null || !isValidChain()) {
+		this.txIndex = txIndex;
+		this.addressIndex = addressIndex;
+		blockValidation = Metrics.histogram(network + ".block.validation");
+		txValidation = Metrics.histogram(network + ".transaction.validation");
+		commits = Metrics.meter(network + ".chain.commits");
+		reorgDepth = Metrics.histogram(network + ".chain.reorg.depth");
+		Metrics.gauge(network + ".chain.height", () -> state == null ? 0 : state.getLatestBlock().getIndex());
+		Metrics.gauge(network + ".chain.orphans", () -> {
+			synchronized(orphanPrevious) {
+				return orphanPrevious.size();
+			}
+		});
+		Checkpoint checkpoint = bStore.getCheckpoint();
+		if(checkpoint != null) {
+			latestBlock = recover(checkpoint);
+		} else if(bStore.getLatestBlock() != null) {
+			//this store was written before checkpoints, so we validate it the slow way once
+			Log.info("No checkpoint found, validating the chain");
+			latestBlock = bStore.getLatestBlock();
+			validateChain(latestBlock);
+			bStore.putCheckpoint(new Checkpoint(network, baseHash, latestBlock));
+		}
+		if(baseHash != null && txIndex != null) {
+			//nothing before the snapshot block was ever stored, so the indexes would be missing everything it spent
+			throw new IllegalArgumentException("The indexes can't be kept for a chain imported from a snapshot");
+		}
+		durableBlock = latestBlock;
+		
+		if(latestBlock == null) {
 			genesisBlock = new LocalBlock(network.getParams().getGenesisBlock(), this);
-			processAndStore(genesisBlock);
-			latestBlock = genesisBlock;
+			UTXODelta delta = new UTXODelta();
+			processBlockTransactions(genesisBlock, delta);
+			commit(genesisBlock, delta);
+		} else {
+			genesisBlock = bStore.get(network.getParams().getGenesisBlock().getHash());
+			if(genesisBlock == null) {
+				throw new InvalidChainException("Genesis block is missing from the block store");
+			}
 		}
+		if(txIndex != null) {
+			catchUpIndexes();
+		}
+		bStore.getOrphans().forEach(orphan -> indexOrphan(orphan));
+		if(pruneDepth > 0) {
+			//the lowest whole block is just past the last one pruned, which is close to the tip unless pruning was just turned on
+			LocalBlock b = latestBlock;
+			while(b.getIndex() > 0 && !b.getHash().equals(baseHash) && !bStore.get(b.getPreviousHash()).isPruned()) {
+				b = bStore.get(b.getPreviousHash());
+			}
+			prunedIndex = b.getIndex();
+			pruneBlocks();
+		} else if(baseHash != null) {
+			//nothing before the snapshot block was ever stored
+			prunedIndex = bStore.get(baseHash).getIndex();
+		}
+		publishState();
+		
+		writer = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "chain-writer-" + network);
+			t.setDaemon(true);
+			writerThread = t;
+			return t;
+		});
 	}
 	
+	/**
+	 * Hands the block to the writer and waits for it to be applied.
+	 *
+	 * @return {@code true} if the block became the latest block
+	 */
 	public boolean addBlockToChain(Block block) {
+		if(Thread.currentThread() == writerThread) {
+			return applyBlock(block);
+		}
+		
+		try {
+			return submitBlock(block).get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		} catch(ExecutionException e) {
+			Log.error("%s", e.getCause());
+			return false;
+		}
+	}
+	
+	/**
+	 * Hands the block to the writer without waiting for it to be applied.
+	 */
+	public Future<Boolean> submitBlock(Block block) {
+		return writer.submit(() -> applyBlock(block));
+	}
+	
+	/**
+	 * @return A consistent view of the tip that can be used without locking
+	 */
+	public ChainState getState() {
+		return state;
+	}
+	
+	/**
+	 * Validates the whole chain from the latest block back to genesis on a
+	 * background thread, which is what startup used to do every time.
+	 * 
+	 * @return A future that fails with an {@link InvalidChainException} if the chain is corrupt
+	 */
+	public CompletableFuture<Void> revalidate() {
+		CompletableFuture<Void> result = new CompletableFuture<>();
+		LocalBlock tip = getLatestBlock();
+		Thread t = new Thread(() -> {
+			try {
+				validateChain(tip);
+				result.complete(null);
+			} catch(InvalidChainException e) {
+				result.completeExceptionally(e);
+			}
+		}, "chain-validator-" + network);
+		t.setDaemon(true);
+		t.start();
+		return result;
+	}
+	
+	private boolean applyBlock(Block block) {
+		boolean added = connectBlock(block);
+		if(bStore.contains(block.getHash())) {
+			connectOrphans(block.getHash());
+		}
+		return added;
+	}
+	
+	/**
+	 * Follows the orphan pool back from the given orphan to the first block we
+	 * don't have, which is the block that needs to be requested from peers.
+	 * 
+	 * @return Hash of the missing ancestor or {@code null} if the block isn't an orphan
+	 */
+	public Hash getMissingAncestor(Hash orphanHash) {
+		Hash missing = null;
+		synchronized(orphanPrevious) {
+			if(!orphanPrevious.containsKey(orphanHash)) {
+				return null;
+			}
+			missing = orphanPrevious.get(orphanHash);
+			while(orphanPrevious.containsKey(missing)) {
+				missing = orphanPrevious.get(missing);
+			}
+		}
+		Hash ancestor = missing;
+		return read(() -> bStore.contains(ancestor)) ? null : ancestor;
+	}
+	
+	public boolean isOrphan(Hash hash) {
+		synchronized(orphanPrevious) {
+			return orphanPrevious.containsKey(hash);
+		}
+	}
+	
+	private boolean connectBlock(Block block) {
+		/*
+		 * validation only reads the stores and only the writer changes them,
+		 * so readers are only shut out while a block is actually applied
+		 */
 		if(block.getDifficulty() < getDifficulty()) {
 			return false;
-		} else if(block.getPreviousHash().equals(getLatestBlock().getHash()) && isValidBlock(block, getLatestBlock())) {
+		} else if(block.getPreviousHash().equals(latestBlock.getHash()) && isValidBlock(block, latestBlock)) {
 			//new latest block
-			latestBlock = processAndStore(block);
+			LocalBlock lb = new LocalBlock(block, this);
+			UTXODelta delta = new UTXODelta();
+			processBlockTransactions(lb, delta);
+			long stamp = storeLock.writeLock();
+			try {
+				commit(lb, delta);
+				updateIndexes(Collections.emptyList(), Collections.singletonList(lb));
+			} finally {
+				storeLock.unlockWrite(stamp);
+			}
+			pruneBlocks();
+			publishState();
 			return true;
 		}
 		
-		LocalBlock prevBlock = getBlock(block.getPreviousHash());		
-		if(prevBlock != null) {
+		LocalBlock prevBlock = getBlock(block.getPreviousHash());
+		if(prevBlock != null && prevBlock.isPruned()) {
+			//we no longer have what it would take to switch to a branch from that far back
+			Log.warn("%s builds on a pruned block", block);
+			return false;
+		} else if(prevBlock != null) {
 			//this must be a branch block
-			System.out.println("Branch block found");
+			Log.info("Branch block %s found", block);
 			if(isValidBlock(block, prevBlock)) {
-				LocalBlock newLatest = processAndStore(block);
-				if(getLatestBlock().getAggregatedDifficulty().compareTo(newLatest.getAggregatedDifficulty()) == -1) {
+				LocalBlock newLatest = new LocalBlock(block, this);
+				if(latestBlock.getAggregatedDifficulty().compareTo(newLatest.getAggregatedDifficulty()) == -1) {
 					//this is from a better chain
-					System.out.println("Branch block is from superior chain");
+					Log.info("Branch block %s is from superior chain", block);
+					long stamp = storeLock.writeLock();
 					try {
 						handleChainBranch(newLatest);
 					} catch (Exception e) {
-						System.err.println(e);
+						Log.error("%s", e);
 						return false;
+					} finally {
+						storeLock.unlockWrite(stamp);
 					}
+					pruneBlocks();
+					publishState();
 					return true;
 				} else {
-					//our chain is better
-					System.err.println("block should be pruned");
+					//our chain is better, so we keep the block but its transactions don't touch the UTXOs
+					Log.debug("%s is on an inferior branch", block);
+					processBlockTransactions(newLatest, new UTXODelta());
+					long stamp = storeLock.writeLock();
+					try {
+						bStore.put(newLatest);
+					} finally {
+						storeLock.unlockWrite(stamp);
+					}
 					return false;
 				}
 			} else {
-				System.err.println("Invalid block");
+				Log.warn("Invalid block %s", block);
 				return false;
 			}
 		} else {	
 			if(!Block.hash(block.getIndex(), block.getPreviousHash(), block.getTimestamp(), block.getTransactions(), block.getDifficulty(), block.getNonce()).equals(block.getHash())) {
-				System.err.println("Invalid block");
+				Log.warn("Invalid block %s", block);
 				return false;
 			} else {
-				//TODO: optimization opportunity to store orphans and process later
-				System.out.println("Orphan block found");
+				//we will process it once its parent shows up
+				Log.info("Orphan block %s found", block);
+				if(!isOrphan(block.getHash())) {
+					long stamp = storeLock.writeLock();
+					try {
+						bStore.putOrphan(block);
+						indexOrphan(block);
+					} finally {
+						storeLock.unlockWrite(stamp);
+					}
+				}
 				return false;
 			}
 		}
 	}
 	
-	public int getDifficulty() {
-		LocalBlock latestBlock = getLatestBlock();
-		if(latestBlock.getIndex() % network.getParams().getDifficultyAdjustmentInterval() == 0 && latestBlock.getIndex() != 0) {
-			return getAdjustedDifficulty();
-		} else {
-			return latestBlock.getDifficulty();
+	private void indexOrphan(Block orphan) {
+		synchronized(orphanPrevious) {
+			orphanPrevious.put(orphan.getHash(), orphan.getPreviousHash());
+			orphansByPrevious.computeIfAbsent(orphan.getPreviousHash(), h -> new HashSet<>()).add(orphan.getHash());
+			
+			//the pool is bounded, so the oldest orphans are dropped first
+			Iterator<Map.Entry<Hash, Hash>> itr = orphanPrevious.entrySet().iterator();
+			while(orphanPrevious.size() > network.getParams().getMaxOrphans() && itr.hasNext()) {
+				Map.Entry<Hash, Hash> oldest = itr.next();
+				itr.remove();
+				unindexOrphan(oldest.getKey(), oldest.getValue());
+			}
 		}
 	}
 	
-	public boolean isValidChain() {
-		LocalBlock b = getLatestBlock();
-		while(true) {
-			b = getBlock(b.getPreviousHash());
-			if(b == null) {
-				return false;
-			} else if(b.getPreviousHash().equals(Hash.EMPTY_HASH) && genesisBlock == null) {
-				//we are going to assume that if we don't have a genesisBlock and the previousHash is EMPTY_HASH then we are the genesisBlock
-				genesisBlock = b;
-				return true;
-			} else if(b.equals(genesisBlock)) {
-				return true;
+	private void unindexOrphan(Hash hash, Hash previousHash) {
+		Set<Hash> siblings = orphansByPrevious.get(previousHash);
+		if(siblings != null) {
+			siblings.remove(hash);
+			if(siblings.isEmpty()) {
+				orphansByPrevious.remove(previousHash);
 			}
 		}
+		bStore.removeOrphan(hash);
+	}
+	
+	private void connectOrphans(Hash parentHash) {
+		/*
+		 * any orphans waiting on this parent can now be connected, which in
+		 * turn may allow their own children to connect, so we work through
+		 * the descendants breadth first instead of recursing
+		 */
+		Deque<Hash> parents = new ArrayDeque<>();
+		parents.add(parentHash);
+		while(!parents.isEmpty()) {
+			Set<Hash> children = null;
+			synchronized(orphanPrevious) {
+				children = orphansByPrevious.remove(parents.poll());
+				if(children == null) {
+					continue;
+				}
+				children.forEach(childHash -> orphanPrevious.remove(childHash));
+			}
+			for(Hash childHash : children) {
+				Block child = bStore.getOrphan(childHash);
+				long stamp = storeLock.writeLock();
+				try {
+					bStore.removeOrphan(childHash);
+				} finally {
+					storeLock.unlockWrite(stamp);
+				}
+				if(child != null) {
+					connectBlock(child);
+					if(bStore.contains(childHash)) {
+						parents.add(childHash);
+					}
+				}
+			}
+		}
+	}
+	
+	public int getDifficulty() {
+		return state.getDifficulty();
+	}
+	
+	/**
+	 * Walks from the given block back to genesis, or the snapshot the chain
+	 * was imported from, and checks that every block is there and follows its
+	 * parent. The headers are read in one pass over the store first, rather
+	 * than looking up each block on the way down.
+	 */
+	public void validateChain(LocalBlock tip) throws InvalidChainException {
+		Hash genesisHash = network.getParams().getGenesisBlock().getHash();
+		Map<Hash, LocalBlock> headers = readHeaders();
+		LocalBlock b = tip;
+		while(!b.getHash().equals(genesisHash) && !b.getHash().equals(baseHash)) {
+			LocalBlock parent = headers.get(b.getPreviousHash());
+			if(parent == null) {
+				throw new InvalidChainException("Parent of " + b + " is missing from the block store");
+			} else if(parent.getIndex() + 1 != b.getIndex()) {
+				throw new InvalidChainException(b + " does not follow " + parent);
+			} else if(!b.getAggregatedDifficulty().equals(parent.getAggregatedDifficulty().add(BigInteger.valueOf(2).pow(b.getDifficulty())))) {
+				throw new InvalidChainException(b + " has the wrong aggregated difficulty");
+			} else if(parent.hasDifficultySchedule() && b.getDifficulty() < parent.getNextDifficulty()) {
+				throw new InvalidChainException(b + " is below the difficulty required by " + parent);
+			}
+			b = parent;
+		}
 	}
 	
 	public boolean isValidBlock(Block block, Block previousBlock) {
+		long start = System.nanoTime();
+		boolean valid = validateBlock(block, previousBlock);
+		blockValidation.updateSince(start);
+		return valid;
+	}
+	
+	//TODO: does this need to validate transactions that aren't in the latest block?
+	public boolean isValidTransaction(Transaction tx) {
+		long start = System.nanoTime();
+		boolean valid = validateTransaction(tx);
+		txValidation.updateSince(start);
+		return valid;
+	}
+	
+	private boolean validateBlock(Block block, Block previousBlock) {
 		if(previousBlock.getIndex() + 1 != block.getIndex()) {
 			return false;
 		} else if(!previousBlock.getHash().equals(block.getPreviousHash())) {
@@ -143,8 +522,7 @@ public class Blockchain {
 		return true;
 	}
 	
-	//TODO: does this need to validate transactions that aren't in the latest block?
-	public boolean isValidTransaction(Transaction tx) {
+	private boolean validateTransaction(Transaction tx) {
 		if (!Transaction.hash(tx.getTimestamp(), tx.getType(), tx.getTxis(), tx.getTxos()).equals(tx.getId())) {
 			return false;
 		} else if(tx.getType() == Type.REWARD) {
@@ -163,7 +541,7 @@ public class Blockchain {
 			 */
 			Token totalTxiAmounts = tx.getTxis().stream()
 					.filter(txi -> txi.verify())
-					.map(txi -> uStore.get(UTXO.hash(network, txi)))
+					.map(txi -> getUtxo(UTXO.hash(network, txi)))
 					.filter(utxo -> utxo != null)
 					.map(utxo -> utxo.getAmount())
 					.reduce(Token.ZERO, (a, b) -> Token.sum(a, b));
@@ -195,7 +573,7 @@ public class Blockchain {
 		 * for the given transaction, get the associated UTXO for each TXI
 		 * assuming we find any associated UTXOs, then execute its script if it has one
 		 */
-		if(!tx.getTxis().stream().map(txi -> uStore.get(UTXO.hash(network, txi))).filter(utxo -> utxo != null).allMatch(utxo -> executeScript(tx, utxo.getScript()))) {
+		if(!tx.getTxis().stream().map(txi -> getUtxo(UTXO.hash(network, txi))).filter(utxo -> utxo != null).allMatch(utxo -> executeScript(tx, utxo.getScript()))) {
 			return false;
 		}
 
@@ -203,50 +581,112 @@ public class Blockchain {
 	}
 	
 	public int getReward() {
-		Set<Address> addresses = new HashSet<>();
-		LocalBlock b = getLatestBlock();
-		while(true) {
-			if(b == null) {
-				//TODO: is it possible for b to be null?
-			}
-			b.getTransactions().stream().flatMap(t -> t.getAllAddresses().stream()).forEach(a -> addresses.add(a));
-			if(b.equals(genesisBlock)) {
-				int reward = (int) Math.log10(addresses.size());
-				return reward > 0 ? reward : 1;
-			}
-			b = getBlock(b.getPreviousHash());
-		}
+		return state.getReward();
 	}
 	
 	public UTXO getUtxo(Hash utxoId) {
-		return uStore.get(utxoId);
+		return read(() -> uStore.get(utxoId));
 	}
 	
 	public List<UTXO> getUtxosForAddress(Address address) {
-		return uStore.getUtxosForAddress(address);
+		return read(() -> uStore.getUtxosForAddress(address));
 	}
 	
 	public LocalBlock getBlock(Hash hash) {
-		return bStore.get(hash);
+		return read(() -> bStore.get(hash));
+	}
+	
+	public boolean hasTxIndex() {
+		return txIndex != null;
+	}
+	
+	/**
+	 * 
+	 * @return Where the transaction is or {@code null} if it isn't in the chain or there is no index
+	 */
+	public TxLocation getTxLocation(Hash txId) {
+		return txIndex == null ? null : read(() -> txIndex.get(txId));
+	}
+	
+	/**
+	 * 
+	 * @return The transaction or {@code null} if it isn't in the chain or there is no index
+	 */
+	public Transaction getTransaction(Hash txId) {
+		return txIndex == null ? null : read(() -> findIndexedTransaction(txId));
+	}
+	
+	public boolean hasAddressIndex() {
+		return addressIndex != null;
+	}
+	
+	/**
+	 * 
+	 * @return Up to limit transactions that touched the address before the given block index and position, newest first, or {@code null} if there is no index
+	 */
+	public List<AddressHistory> getAddressHistory(Address address, int beforeBlockIndex, int beforePosition, int limit) {
+		return addressIndex == null ? null : read(() -> addressIndex.getHistory(address, beforeBlockIndex, beforePosition, limit));
 	}
 	
 	public LocalBlock getGenesisBlock() {
-		return genesisBlock;
+		return state.getGenesisBlock();
 	}
 	
 	public LocalBlock getLatestBlock() {
-		return latestBlock;
+		return state.getLatestBlock();
 	}
 	
 	public int getLength() {
-		return latestBlock.getIndex();
+		return state.getLatestBlock().getIndex();
 	}
 	
 	public Network getNetwork() {
 		return network;
 	}
+	
+	private <T> T read(Supplier<T> reader) {
+		if(Thread.currentThread() == writerThread) {
+			//the writer can't race itself and may already hold the write lock
+			return reader.get();
+		}
+		
+		long stamp = storeLock.readLock();
+		try {
+			return reader.get();
+		} finally {
+			storeLock.unlockRead(stamp);
+		}
+	}
+	
+	private void publishState() {
+		state = new ChainState(genesisBlock, latestBlock, computeDifficulty(), computeReward(), prunedIndex);
+	}
+	
+	private int computeDifficulty() {
+		if(latestBlock.hasDifficultySchedule()) {
+			return latestBlock.getNextDifficulty();
+		} else if(latestBlock.getIndex() % network.getParams().getDifficultyAdjustmentInterval() == 0 && latestBlock.getIndex() != 0) {
+			//the latest block was stored before the difficulty schedule was kept with blocks
+			return getAdjustedDifficulty();
+		} else {
+			return latestBlock.getDifficulty();
+		}
+	}
+	
+	private int computeReward() {
+		/*
+		 * every LocalBlock carries the addresses seen after genesis up to it, so
+		 * this works without the blocks before a snapshot, and the reward has
+		 * always counted the genesis addresses too
+		 */
+		Set<Address> addresses = latestBlock.getAggregatedUniqueAddresses();
+		long genesisOnly = genesisBlock.getTransactions().stream().flatMap(t -> t.getAllAddresses().stream()).distinct().filter(a -> !addresses.contains(a)).count();
+		int reward = (int) Math.log10(addresses.size() + genesisOnly);
+		return reward > 0 ? reward : 1;
+	}
+	
 
-	private void processBlockTransactions(LocalBlock block) {
+	private void processBlockTransactions(LocalBlock block, UTXODelta delta) {
 		List<UTXO> consumeUtxos = new LinkedList<>();
 		List<UTXO> generateUtxos = new LinkedList<>();
 		List<UTXO> rewardUtxos = new LinkedList<>();
@@ -259,7 +699,7 @@ public class Blockchain {
 				rewardUtxos.add(utxo);
 			} else {
 				for(TXI txi : tx.getTxis()) {
-					UTXO utxo = uStore.get(UTXO.hash(network, txi.getSourceTxId(), txi.getSourceTxoIndex()));
+					UTXO utxo = delta.get(UTXO.hash(network, txi.getSourceTxId(), txi.getSourceTxoIndex()), uStore);
 					consumeUtxos.add(utxo);
 				}
 				for(int itr = 0; itr< tx.getTxos().size(); itr++) {
@@ -274,73 +714,425 @@ public class Blockchain {
 		long netMegas = consumed.getValue() - generated.getValue();
 		if(netMegas < 0) {
 			//this is not supposed to happen since the transactions should have been validated first
-			System.err.println("Invalid transaction set");
+			Log.error("Invalid transaction set in %s", block);
 		} else {
-			if(netMegas > 0) {
-				//give the left over money to charity
+			if(netMegas > 0 && !bStore.contains(block.getHash())) {
+				//give the left over money to charity, which becomes part of the block when it is first stored
 				Transaction charity = Transaction.rewardOf(network.getCharityAddress(), netMegas);
 				TXO txo = charity.getTxos().get(0);
 				block.getTransactions().add(charity);
 				rewardUtxos.add(new UTXO(network, charity.getId(), 0, txo.getAddress(), txo.getAmount()));
 			}
 			//this is what is supposed to happen
-			consumeUtxos.forEach(utxo -> uStore.remove(utxo.getUtxoId()));
-			generateUtxos.forEach(utxo -> uStore.put(utxo));
-			rewardUtxos.forEach(utxo -> uStore.put(utxo));
+			block.setSpentUtxos(consumeUtxos);
+			consumeUtxos.forEach(utxo -> delta.spend(utxo.getUtxoId()));
+			generateUtxos.forEach(utxo -> delta.create(utxo));
+			rewardUtxos.forEach(utxo -> delta.create(utxo));
 		}
 	}
 	
-	private void revokeBlockTransactions(LocalBlock block) {
-		//the theory is to remove any existing UTXOs associated with this block
+	private void revokeBlockTransactions(LocalBlock block, List<UTXO> spentUtxos, UTXODelta delta) {
+		//what the block spent comes back first, so an output it both made and spent is gone again once its outputs are
+		spentUtxos.forEach(utxo -> delta.create(utxo));
+		for(Transaction tx : block.getTransactions()) {
+			for(int itr = 0; itr < tx.getTxos().size(); itr++) {
+				delta.spend(UTXO.hash(network, tx.getId(), itr));
+			}
+		}
+	}
+	
+	private List<UTXO> findSpentUtxos(LocalBlock block) {
+		if(block.getSpentUtxos() != null) {
+			return block.getSpentUtxos();
+		}
+		
+		//the block was stored before its undo data was kept, so we rebuild it from the transactions it spent
+		List<UTXO> spentUtxos = new ArrayList<>();
 		for(Transaction tx : block.getTransactions()) {
 			for(TXI txi : tx.getTxis()) {
-				uStore.remove(UTXO.hash(network, txi.getSourceTxId(), txi.getSourceTxoIndex()));
+				Transaction source = txIndex == null ? null : findIndexedTransaction(txi.getSourceTxId());
+				if(source == null || source.getTxos().size() <= txi.getSourceTxoIndex()) {
+					return null;
+				}
+				TXO txo = source.getTxos().get(txi.getSourceTxoIndex());
+				if(source.getTxis().size() == 0 && source.getTxos().size() == 1) {
+					spentUtxos.add(new UTXO(network, source.getId(), 0, txo.getAddress(), txo.getAmount()));
+				} else {
+					spentUtxos.add(new UTXO(network, source.getId(), txi.getSourceTxoIndex(), txo.getAddress(), txo.getAmount(), txo.getScript()));
+				}
 			}
 		}
+		return spentUtxos;
 	}
 	
-	private LocalBlock processAndStore(Block block) {
-		LocalBlock lb = new LocalBlock(block, this);
-		processBlockTransactions(lb);
-		bStore.put(lb);
-		return lb;
+	private void commit(LocalBlock tip, UTXODelta delta) {
+		//the journal goes first, so a crash part way through can be finished on the next start
+		bStore.putJournalEntry(journalSize, new SimpleImmutableEntry<>(tip.getHash(), delta));
+		journalDigest = Checkpoint.digest(journalDigest, tip.getHash(), delta);
+		journalSize++;
+		bStore.putCheckpoint(new Checkpoint(network, baseHash, durableBlock, journalSize, journalDigest));
+		bStore.put(tip);
+		delta.applyTo(uStore);
+		latestBlock = tip;
+		commits.mark();
+		if(uStore.commit()) {
+			markDurable();
+		}
 	}
-
-	private int getAdjustedDifficulty() {
-		LocalBlock prevAdjustmentBlock = null;
-		for(int itr = 1; itr != network.getParams().getDifficultyAdjustmentInterval(); itr++) {
-			prevAdjustmentBlock = getBlock(getLatestBlock().getPreviousHash());
+	
+	/**
+	 * Writes out any UTXO changes the UTXOStore is still buffering and moves
+	 * the Checkpoint up to the latest block, which is meant for shutdown.
+	 */
+	public void flush() {
+		if(Thread.currentThread() == writerThread) {
+			uStore.flush();
+			markDurable();
+			return;
+		}
+		
+		try {
+			writer.submit(() -> flush()).get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException e) {
+			Log.error("%s", e.getCause());
+		}
+	}
+	
+	private void pruneBlocks() {
+		int horizon = latestBlock.getIndex() - pruneDepth;
+		if(pruneDepth == 0 || horizon - prunedIndex < PRUNE_BATCH) {
+			return;
+		}
+		
+		/*
+		 * headers are all that is needed to follow the chain and its
+		 * difficulty, so everything below the horizon gives up its
+		 * transactions, except genesis which every chain starts from
+		 */
+		//only the writer changes the stores, so the walk doesn't need to shut out readers
+		List<Hash> prunable = new ArrayList<>();
+		LocalBlock b = latestBlock;
+		while(b.getIndex() >= horizon) {
+			b = bStore.get(b.getPreviousHash());
+		}
+		while(b != null && b.getIndex() >= prunedIndex && b.getIndex() > 0) {
+			if(!b.isPruned()) {
+				prunable.add(b.getHash());
+			}
+			b = bStore.get(b.getPreviousHash());
 		}
-		int timeExpected = network.getParams().getBlockGenerationInterval() * network.getParams().getDifficultyAdjustmentInterval();
-		long timeTaken = getLatestBlock().getTimestamp() - prevAdjustmentBlock.getTimestamp();
 		
-		if(timeTaken < timeExpected / 2) {
-			return prevAdjustmentBlock.getDifficulty() + 1;
-		} else if(timeTaken > timeExpected * 2) {
-			int newDifficulty = prevAdjustmentBlock.getDifficulty() - 1;
-			return newDifficulty >= 1 ? newDifficulty : 1;
+		long stamp = storeLock.writeLock();
+		try {
+			prunable.forEach(hash -> bStore.prune(hash));
+			prunedIndex = horizon;
+			
+			//orphans that far back could only ever connect to a pruned block
+			synchronized(orphanPrevious) {
+				Iterator<Map.Entry<Hash, Hash>> itr = orphanPrevious.entrySet().iterator();
+				while(itr.hasNext()) {
+					Map.Entry<Hash, Hash> orphan = itr.next();
+					Block block = bStore.getOrphan(orphan.getKey());
+					if(block == null || block.getIndex() < horizon) {
+						itr.remove();
+						unindexOrphan(orphan.getKey(), orphan.getValue());
+					}
+				}
+			}
+		} finally {
+			storeLock.unlockWrite(stamp);
+		}
+	}
+	
+	/**
+	 * Stops the writer once the blocks already handed to it are applied. The
+	 * stores are left open, since they belong to the caller.
+	 */
+	@Override
+	public void close() {
+		writer.shutdown();
+		try {
+			writer.awaitTermination(1, TimeUnit.MINUTES);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void markDurable() {
+		//everything up to the latest block is on disk, so the journal can start over
+		durableBlock = latestBlock;
+		bStore.putCheckpoint(new Checkpoint(network, baseHash, durableBlock));
+		clearJournal(journalSize);
+		journalSize = 0;
+		journalDigest = null;
+	}
+	
+	private void clearJournal(int size) {
+		//the Checkpoint no longer counts these, so any left behind by a crash are never read
+		for(int itr = 0; itr < size; itr++) {
+			bStore.removeJournalEntry(itr);
+		}
+	}
+	
+	private void updateIndexes(List<LocalBlock> disconnected, List<LocalBlock> connected) {
+		if(txIndex == null) {
+			return;
+		}
+		
+		/*
+		 * the address index looks up spent outputs through the transaction
+		 * index, so it lets go of the old blocks while their transactions are
+		 * still indexed and takes the new ones after theirs are
+		 */
+		if(addressIndex != null) {
+			disconnected.forEach(b -> unindexAddresses(b));
+		}
+		//removals go first, since a transaction can be in both branches
+		disconnected.forEach(b -> b.getTransactions().forEach(tx -> txIndex.remove(tx.getId())));
+		connected.forEach(b -> indexTransactions(b));
+		txIndex.setTip(latestBlock.getHash());
+		if(addressIndex != null) {
+			connected.forEach(b -> indexAddresses(b));
+			addressIndex.setTip(latestBlock.getHash());
+		}
+	}
+	
+	private void indexTransactions(LocalBlock block) {
+		List<Transaction> transactions = block.getTransactions();
+		for(int itr = 0; itr < transactions.size(); itr++) {
+			txIndex.put(transactions.get(itr).getId(), new TxLocation(block.getHash(), block.getIndex(), itr));
+		}
+	}
+	
+	private Transaction findIndexedTransaction(Hash txId) {
+		TxLocation location = txIndex.get(txId);
+		if(location == null) {
+			return null;
+		}
+		
+		LocalBlock block = bStore.get(location.getBlockHash());
+		if(block == null || block.getTransactions().size() <= location.getPosition()) {
+			return null;
+		}
+		Transaction tx = block.getTransactions().get(location.getPosition());
+		return tx.getId().equals(txId) ? tx : null;
+	}
+	
+	private void indexAddresses(LocalBlock block) {
+		List<Transaction> transactions = block.getTransactions();
+		for(int itr = 0; itr < transactions.size(); itr++) {
+			int position = itr;
+			Transaction tx = transactions.get(itr);
+			getAddressDeltas(tx).forEach((address, delta) -> addressIndex.put(address, new AddressHistory(tx.getId(), block.getIndex(), position, delta)));
+		}
+	}
+	
+	private void unindexAddresses(LocalBlock block) {
+		List<Transaction> transactions = block.getTransactions();
+		for(int itr = 0; itr < transactions.size(); itr++) {
+			int position = itr;
+			getAddressDeltas(transactions.get(itr)).keySet().forEach(address -> addressIndex.remove(address, block.getIndex(), position));
+		}
+	}
+	
+	private Map<Address, Long> getAddressDeltas(Transaction tx) {
+		Map<Address, Long> deltas = new HashMap<>();
+		for(TXI txi : tx.getTxis()) {
+			//the output being spent is only known from the transaction that made it
+			Transaction source = findIndexedTransaction(txi.getSourceTxId());
+			if(source == null || source.getTxos().size() <= txi.getSourceTxoIndex()) {
+				//the indexes are only kept for chains with every block, so this is a block we couldn't read
+				Log.warn("Source transaction %s of %s not found", txi.getSourceTxId(), tx.getId());
+				continue;
+			}
+			TXO spent = source.getTxos().get(txi.getSourceTxoIndex());
+			deltas.merge(spent.getAddress(), -spent.getAmount().getValue(), Long::sum);
+		}
+		for(TXO txo : tx.getTxos()) {
+			deltas.merge(txo.getAddress(), txo.getAmount().getValue(), Long::sum);
+		}
+		return deltas;
+	}
+	
+	private void catchUpIndexes() {
+		int behind = Math.max(countUnindexed(txIndex.getTip()), addressIndex == null ? 0 : countUnindexed(addressIndex.getTip()));
+		Map<Hash, LocalBlock> headers = behind > SCAN_INDEXING_BLOCKS ? readHeaders() : null;
+		List<Hash> staleTxs = new ArrayList<>();
+		Deque<Hash> missingTxs = new ArrayDeque<>();
+		findUnindexed(headers, txIndex.getTip(), staleTxs, missingTxs);
+		List<Hash> staleAddresses = new ArrayList<>();
+		Deque<Hash> missingAddresses = new ArrayDeque<>();
+		if(addressIndex != null) {
+			findUnindexed(headers, addressIndex.getTip(), staleAddresses, missingAddresses);
+		}
+		
+		//in the same order as updateIndexes, since the address index needs the transactions of the blocks it lets go of
+		staleAddresses.forEach(h -> unindexAddresses(bStore.get(h)));
+		if(!staleTxs.isEmpty() || !missingTxs.isEmpty()) {
+			Log.info("Indexing transactions in %d blocks", missingTxs.size());
+			staleTxs.forEach(h -> bStore.get(h).getTransactions().forEach(tx -> txIndex.remove(tx.getId())));
+			forEachBlock(headers != null, missingTxs, b -> indexTransactions(b));
+			txIndex.setTip(latestBlock.getHash());
+		}
+		if(!staleAddresses.isEmpty() || !missingAddresses.isEmpty()) {
+			Log.info("Indexing addresses in %d blocks", missingAddresses.size());
+			forEachBlock(headers != null, missingAddresses, b -> indexAddresses(b));
+			addressIndex.setTip(latestBlock.getHash());
+		}
+	}
+	
+	private int countUnindexed(Hash indexedHash) {
+		LocalBlock indexed = indexedHash == null ? null : bStore.get(indexedHash);
+		return indexed == null ? latestBlock.getIndex() + 1 : Math.abs(latestBlock.getIndex() - indexed.getIndex());
+	}
+	
+	private void findUnindexed(Map<Hash, LocalBlock> headers, Hash indexedHash, List<Hash> stale, Deque<Hash> missing) {
+		/*
+		 * an index is behind if it was just turned on or we stopped between
+		 * applying a block and indexing it, and we may have stopped in the
+		 * middle of a reorganization, so the blocks it has past the branch
+		 * point have to come out before the missing ones go in
+		 */
+		Function<Hash, LocalBlock> lookup = headers == null ? bStore::get : headers::get;
+		LocalBlock indexed = indexedHash == null ? null : lookup.apply(indexedHash);
+		LocalBlock b = latestBlock;
+		while(indexed != null && b != null && indexed.getIndex() > b.getIndex()) {
+			stale.add(indexed.getHash());
+			indexed = lookup.apply(indexed.getPreviousHash());
+		}
+		while(b != null && (indexed == null || b.getIndex() > indexed.getIndex())) {
+			missing.addFirst(b.getHash());
+			b = lookup.apply(b.getPreviousHash());
+		}
+		while(b != null && indexed != null && !b.getHash().equals(indexed.getHash())) {
+			stale.add(indexed.getHash());
+			missing.addFirst(b.getHash());
+			indexed = lookup.apply(indexed.getPreviousHash());
+			b = lookup.apply(b.getPreviousHash());
+		}
+	}
+	
+	/**
+	 * Hands over the given blocks, either in chain order or in store order
+	 * from a single pass over the store.
+	 */
+	private void forEachBlock(boolean scan, Collection<Hash> hashes, Consumer<LocalBlock> consumer) {
+		if(scan) {
+			Set<Hash> wanted = new HashSet<>(hashes);
+			bStore.forEach(b -> {
+				if(wanted.contains(b.getHash())) {
+					consumer.accept(b);
+				}
+			});
 		} else {
-			return prevAdjustmentBlock.getDifficulty();
+			hashes.forEach(h -> consumer.accept(bStore.get(h)));
+		}
+	}
+	
+	/**
+	 * 
+	 * @return The header of every stored block by its hash, read in one pass over the store
+	 */
+	private Map<Hash, LocalBlock> readHeaders() {
+		Map<Hash, LocalBlock> headers = new HashMap<>();
+		bStore.forEach(b -> headers.put(b.getHash(), b.toHeader()));
+		return headers;
+	}
+	
+	private LocalBlock recover(Checkpoint checkpoint) throws InvalidChainException {
+		if(checkpoint.getNetwork() != network || !checkpoint.isValid()) {
+			throw new InvalidChainException("Checkpoint " + checkpoint + " failed its checksum");
+		}
+		baseHash = checkpoint.getBaseHash();
+		
+		LocalBlock tip = checkpoint.getTipHash() == null ? null : bStore.get(checkpoint.getTipHash());
+		if(checkpoint.getTipHash() != null && (tip == null || tip.getIndex() != checkpoint.getTipIndex())) {
+			throw new InvalidChainException("Checkpoint " + checkpoint + " does not match the block store");
+		}
+		
+		if(checkpoint.hasJournal()) {
+			List<Map.Entry<Hash, UTXODelta>> journal = new ArrayList<>();
+			Hash digest = null;
+			for(int itr = 0; itr < checkpoint.getJournalSize(); itr++) {
+				Map.Entry<Hash, UTXODelta> entry = bStore.getJournalEntry(itr);
+				if(entry == null) {
+					throw new InvalidChainException("Journal entry " + itr + " of checkpoint " + checkpoint + " is missing");
+				}
+				digest = Checkpoint.digest(digest, entry.getKey(), entry.getValue());
+				journal.add(entry);
+			}
+			if(!digest.equals(checkpoint.getJournalDigest())) {
+				throw new InvalidChainException("Journal of checkpoint " + checkpoint + " failed its checksum");
+			}
+			
+			for(Map.Entry<Hash, UTXODelta> entry : journal) {
+				LocalBlock b = bStore.get(entry.getKey());
+				if(b == null) {
+					//we stopped before the block was stored, so none of its changes were applied
+					Log.info("Dropping journaled block %s", entry.getKey());
+					break;
+				}
+				//the block was stored, but its UTXO changes may not have all made it to disk
+				entry.getValue().applyTo(uStore);
+				tip = b;
+			}
+			uStore.flush();
+			if(tip != null) {
+				Log.info("Finished journaled blocks up to %s", tip);
+				bStore.putCheckpoint(new Checkpoint(network, baseHash, tip));
+				clearJournal(journal.size());
+			}
+		}
+		//a null tip means we stopped before the genesis block was stored, so we start over
+		return tip;
+	}
+
+	private int getAdjustedDifficulty() {
+		LocalBlock prevAdjustmentBlock = latestBlock;
+		for(int itr = 1; itr != network.getParams().getDifficultyAdjustmentInterval(); itr++) {
+			prevAdjustmentBlock = getBlock(prevAdjustmentBlock.getPreviousHash());
 		}
+		return LocalBlock.getNextDifficulty(latestBlock.getIndex(), latestBlock.getTimestamp(), latestBlock.getDifficulty(), prevAdjustmentBlock.getTimestamp(), prevAdjustmentBlock.getDifficulty(), network.getParams());
 	}
 	
 	private void handleChainBranch(LocalBlock newLatest) throws Exception {
 		LocalBlock branchPoint = findBranch(newLatest);
-		List<LocalBlock> oldBlocks = getPartialChain(getLatestBlock(), branchPoint);
+		List<LocalBlock> oldBlocks = getPartialChain(latestBlock, branchPoint);
 		List<LocalBlock> newBlocks = getPartialChain(newLatest, branchPoint);
-		
+		if(oldBlocks.stream().anyMatch(b -> b.isPruned()) || newBlocks.stream().anyMatch(b -> b.isPruned())) {
+			throw new Exception("Branch point " + branchPoint + " is below the pruned blocks");
+		}
+		//everything is checked before the UTXOs are touched, so a reorganization we can't finish leaves them alone
+		Map<LocalBlock, List<UTXO>> undo = new LinkedHashMap<>();
 		for(LocalBlock b : oldBlocks) {
-			revokeBlockTransactions(b);
+			List<UTXO> spentUtxos = findSpentUtxos(b);
+			if(spentUtxos == null) {
+				throw new Exception("No undo data for " + b);
+			}
+			undo.put(b, spentUtxos);
 		}
+		UTXODelta delta = new UTXODelta();
+		
+		//the old blocks are rolled back from the tip down, so each one sees what the ones after it spent
+		undo.forEach((b, spentUtxos) -> revokeBlockTransactions(b, spentUtxos, delta));
+		//the new blocks are applied from the branch point up, so each one can spend what the ones before it created
+		Collections.reverse(newBlocks);
 		for(LocalBlock b : newBlocks) {
-			processBlockTransactions(b);
+			processBlockTransactions(b, delta);
 		}
+		//what a branch block spent depends on the branch under it, so it is only known for sure now
+		newBlocks.stream().filter(b -> b != newLatest).forEach(b -> bStore.put(b));
 		
-		latestBlock = newLatest;
+		commit(newLatest, delta);
+		updateIndexes(oldBlocks, newBlocks);
+		reorgDepth.update(oldBlocks.size());
+		Log.info("Reorganized %d blocks back to %s", oldBlocks.size(), branchPoint);
 	}
 	
 	private LocalBlock findBranch(LocalBlock newLatest) throws Exception {
-		LocalBlock currentB = getLatestBlock();
+		LocalBlock currentB = latestBlock;
 		LocalBlock newB = newLatest;
 		
 		/*
@@ -360,7 +1152,7 @@ public class Blockchain {
 					throw new Exception("invalid chain");
 				}
 			} else {
-				newB = getBlock(newLatest.getPreviousHash());
+				newB = getBlock(newB.getPreviousHash());
 				if(newB == null) {
 					throw new Exception("invalid chain");
 				}
@@ -400,7 +1192,7 @@ public class Blockchain {
 				executor.shutdown();
 				return (boolean) result;
 			} catch (ScriptCPUAbuseException | ScriptException | NoSuchMethodException e) {
-				System.err.println(e);
+				Log.warn("Script for %s failed: %s", tx, e);
 				return false;
 			}
 		} else {
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.core;
+
+/*
+ * An immutable view of the tip of a Blockchain. A new one is published by the
+ * writer every time the tip moves, so everything in it belongs together.
+ */
+public final class ChainState {
+	private final LocalBlock genesisBlock;
+	private final LocalBlock latestBlock;
+	private final int difficulty;
+	private final int reward;
+	private final int prunedIndex;
+	
+	public ChainState(LocalBlock genesisBlock, LocalBlock latestBlock, int difficulty, int reward, int prunedIndex) {
+		this.genesisBlock = genesisBlock;
+		this.latestBlock = latestBlock;
+		this.difficulty = difficulty;
+		this.reward = reward;
+		this.prunedIndex = prunedIndex;
+	}
+	
+	public LocalBlock getGenesisBlock() {
+		return genesisBlock;
+	}
+	
+	public LocalBlock getLatestBlock() {
+		return latestBlock;
+	}
+	
+	public int getLength() {
+		return latestBlock.getIndex();
+	}
+	
+	public int getDifficulty() {
+		return difficulty;
+	}
+	
+	public int getReward() {
+		return reward;
+	}
+	
+	/**
+	 * 
+	 * @return The lowest index, other than genesis, the chain still has whole blocks for
+	 */
+	public int getPrunedIndex() {
+		return prunedIndex;
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.core;
+
+import java.io.Serializable;
+
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+/*
+ * The last tip whose changes are durable in the stores, so a restart can pick
+ * up from it without walking the chain back to genesis. Blocks applied after
+ * it are kept in a journal of block hashes and their UTXO changes, in the
+ * order they were applied, which is how a crash part way through a block or
+ * before a UTXOStore wrote out its buffered changes gets finished.
+ * 
+ * The journal entries are stored on their own, so the checkpoint only counts
+ * them and keeps a digest of them, which makes a damaged or missing entry as
+ * easy to detect as a damaged checkpoint. The checksum covers everything
+ * else.
+ * 
+ * A chain imported from a UTXO snapshot has no blocks between genesis and the
+ * snapshot, so the checkpoint also remembers the block the chain starts from.
+ */
+public final class Checkpoint implements Serializable {
+	private static final long serialVersionUID = 6182715468224617306L;
+	private final Network network;
+	private final Hash baseHash;
+	private final Hash tipHash;
+	private final int tipIndex;
+	private final int journalSize;
+	private final Hash journalDigest;
+	private final Hash checksum;
+	
+	public Checkpoint(Network network, Hash baseHash, LocalBlock tip) {
+		this(network, baseHash, tip, 0, null);
+	}
+	
+	/**
+	 * 
+	 * @param journalSize How many journal entries there are after the tip
+	 * @param journalDigest What {@link #digest(Hash, Hash, UTXODelta)} came to over those entries
+	 */
+	public Checkpoint(Network network, Hash baseHash, LocalBlock tip, int journalSize, Hash journalDigest) {
+		this.network = network;
+		this.baseHash = baseHash;
+		//the tip is null only while the genesis block is being applied
+		this.tipHash = tip == null ? null : tip.getHash();
+		this.tipIndex = tip == null ? -1 : tip.getIndex();
+		this.journalSize = journalSize;
+		this.journalDigest = journalDigest;
+		checksum = computeChecksum();
+	}
+	
+	/**
+	 * Folds one more journal entry into the digest of the ones before it.
+	 * 
+	 * @param journalDigest The digest of the entries before this one or {@code null} for the first
+	 */
+	public static Hash digest(Hash journalDigest, Hash blockHash, UTXODelta delta) {
+		return Hash.of(journalDigest + "|" + blockHash + ":" + delta.getHash());
+	}
+	
+	private Hash computeChecksum() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(network).append("|").append(tipHash).append("|").append(tipIndex).append("|").append(baseHash);
+		sb.append("|").append(journalSize).append("|").append(journalDigest);
+		return Hash.of(sb.toString());
+	}
+	
+	/**
+	 * 
+	 * @return {@code true} if the checksum still matches the rest of the checkpoint
+	 */
+	public boolean isValid() {
+		return checksum != null && checksum.equals(computeChecksum());
+	}
+	
+	/**
+	 * 
+	 * @return {@code true} if there are blocks after the tip that may not be durable
+	 */
+	public boolean hasJournal() {
+		return journalSize > 0;
+	}
+	
+	public Network getNetwork() {
+		return network;
+	}
+	
+	/**
+	 * 
+	 * @return Hash of the snapshot block the chain was imported from or {@code null} if the chain goes back to genesis
+	 */
+	public Hash getBaseHash() {
+		return baseHash;
+	}
+	
+	public Hash getTipHash() {
+		return tipHash;
+	}
+	
+	public int getTipIndex() {
+		return tipIndex;
+	}
+	
+	public int getJournalSize() {
+		return journalSize;
+	}
+	
+	public Hash getJournalDigest() {
+		return journalDigest;
+	}
+	
+	public Hash getChecksum() {
+		return checksum;
+	}
+	
+	public String toString() {
+		return String.format("%s [%d]%s", tipHash, tipIndex, hasJournal() ? " with " + journalSize + " journaled blocks" : "");
+	}
+}
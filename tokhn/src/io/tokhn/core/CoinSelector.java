@@ -0,0 +1,124 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.core;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import io.tokhn.node.Network;
+import io.tokhn.store.WalletStore;
+
+/*
+ * Picks the UTXOs to spend for an amount. It first looks for a set of the
+ * largest coins that covers the amount without leaving change worth keeping,
+ * using a bounded branch and bound search, and otherwise takes the largest
+ * coins until the change is at least minChange, so it never makes dust.
+ * 
+ * Both only read coins from the top of the wallet's ordered index, so the
+ * work doesn't grow with the number of coins in the wallet.
+ */
+public class CoinSelector {
+	public static final long DEFAULT_MIN_CHANGE = 1000;
+	//how many of the coins just below the amount the branch and bound search looks at
+	private static final int MAX_CANDIDATES = 32;
+	//how many branches the search may visit before giving up
+	private static final int MAX_TRIES = 100000;
+	private final long minChange;
+	
+	public CoinSelector() {
+		this(DEFAULT_MIN_CHANGE);
+	}
+	
+	/**
+	 * 
+	 * @param minChange The smallest change, in megas, worth a TXO of its own, anything less is left as a fee
+	 */
+	public CoinSelector(long minChange) {
+		this.minChange = minChange;
+	}
+	
+	public long getMinChange() {
+		return minChange;
+	}
+	
+	public List<UTXO> select(WalletStore store, Network network, Token amount) throws Exception {
+		long target = amount.getValue();
+		List<UTXO> exact = findWithoutChange(store, network, target);
+		if(exact != null) {
+			return exact;
+		}
+		
+		List<UTXO> selected = new ArrayList<>();
+		long total = 0;
+		Iterator<UTXO> itr = store.getSpendableUtxos(network, Long.MAX_VALUE);
+		while(itr.hasNext() && total < target + minChange) {
+			UTXO utxo = itr.next();
+			selected.add(utxo);
+			total += utxo.getAmount().getValue();
+		}
+		if(total < target) {
+			throw new Exception("Balance too small");
+		}
+		return selected;
+	}
+	
+	private List<UTXO> findWithoutChange(WalletStore store, Network network, long target) {
+		//only coins that don't overshoot on their own can be part of a match
+		long upper = target + minChange;
+		List<UTXO> candidates = new ArrayList<>();
+		Iterator<UTXO> itr = store.getSpendableUtxos(network, upper - 1);
+		while(itr.hasNext() && candidates.size() < MAX_CANDIDATES) {
+			candidates.add(itr.next());
+		}
+		
+		//remaining[i] is what the candidates from i on add up to, so a branch that can't reach the target is cut
+		long[] remaining = new long[candidates.size() + 1];
+		for(int i = candidates.size() - 1; i >= 0; i--) {
+			remaining[i] = remaining[i + 1] + candidates.get(i).getAmount().getValue();
+		}
+		
+		boolean[] included = new boolean[candidates.size()];
+		int[] tries = { 0 };
+		if(search(candidates, remaining, included, 0, 0, target, upper, tries)) {
+			List<UTXO> selected = new ArrayList<>();
+			for(int i = 0; i < included.length; i++) {
+				if(included[i]) {
+					selected.add(candidates.get(i));
+				}
+			}
+			return selected;
+		}
+		return null;
+	}
+	
+	private static boolean search(List<UTXO> candidates, long[] remaining, boolean[] included, int depth, long total, long target, long upper, int[] tries) {
+		if(total >= target) {
+			return total < upper;
+		} else if(depth == candidates.size() || total + remaining[depth] < target || ++tries[0] > MAX_TRIES) {
+			return false;
+		}
+		
+		//the candidates are largest first, so taking a coin is tried before leaving it out
+		included[depth] = true;
+		if(search(candidates, remaining, included, depth + 1, total + candidates.get(depth).getAmount().getValue(), target, upper, tries)) {
+			return true;
+		}
+		included[depth] = false;
+		return search(candidates, remaining, included, depth + 1, total, target, upper, tries);
+	}
+}
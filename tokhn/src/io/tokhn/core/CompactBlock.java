@@ -0,0 +1,178 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.bouncycastle.crypto.macs.SipHash;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+/*
+ * A block header with a short id for each transaction instead of the
+ * transaction itself, since peers usually saw them relayed already. Reward
+ * and fee transactions are never relayed, so they are sent whole along with
+ * their position in the block.
+ * 
+ * Short ids are the low 48 bits of SipHash-2-4 over the transaction id, keyed
+ * with the block hash, so a collision found for one block doesn't carry over
+ * to the next.
+ */
+public class CompactBlock {
+	private static final long SHORT_ID_MASK = 0xFFFFFFFFFFFFL;
+	private final Network network;
+	private final int index;
+	private final Hash hash;
+	private final Hash previousHash;
+	private final long timestamp;
+	private final int difficulty;
+	private final long nonce;
+	private final List<Long> shortIds;
+	private final Map<Integer, Transaction> prefilled;
+	private final byte[] key;
+	
+	public CompactBlock(Network network, int index, Hash hash, Hash previousHash, long timestamp, int difficulty, long nonce, List<Long> shortIds, Map<Integer, Transaction> prefilled) {
+		this.network = network;
+		this.index = index;
+		this.hash = hash;
+		this.previousHash = previousHash;
+		this.timestamp = timestamp;
+		this.difficulty = difficulty;
+		this.nonce = nonce;
+		this.shortIds = shortIds;
+		this.prefilled = prefilled;
+		key = Arrays.copyOf(hash.getBytes(), 16);
+	}
+	
+	public static CompactBlock of(Block block) {
+		List<Long> shortIds = new ArrayList<>();
+		Map<Integer, Transaction> prefilled = new TreeMap<>();
+		CompactBlock compact = new CompactBlock(block.getNetwork(), block.getIndex(), block.getHash(), block.getPreviousHash(), block.getTimestamp(), block.getDifficulty(), block.getNonce(), shortIds, prefilled);
+		List<Transaction> txs = block.getTransactions();
+		for(int itr = 0; itr < txs.size(); itr++) {
+			Transaction tx = txs.get(itr);
+			if(tx.getType() == Transaction.Type.REGULAR) {
+				shortIds.add(compact.getShortId(tx.getId()));
+			} else {
+				prefilled.put(itr, tx);
+			}
+		}
+		return compact;
+	}
+	
+	public long getShortId(Hash txId) {
+		SipHash sipHash = new SipHash();
+		sipHash.init(new KeyParameter(key));
+		byte[] bytes = txId.getBytes();
+		sipHash.update(bytes, 0, bytes.length);
+		return sipHash.doFinal() & SHORT_ID_MASK;
+	}
+	
+	/**
+	 * 
+	 * @return The block's transactions in order, with {@code null} where the mempool didn't have one
+	 */
+	public List<Transaction> fill(Mempool mempool) {
+		Map<Long, Transaction> known = shortIds.isEmpty() ? Collections.emptyMap() : mempool.getByShortId(this);
+		List<Transaction> txs = new ArrayList<>();
+		int next = 0;
+		for(int itr = 0; itr < getTransactionCount(); itr++) {
+			Transaction tx = prefilled.get(itr);
+			if(tx == null && next < shortIds.size()) {
+				tx = known.get(shortIds.get(next++));
+			}
+			txs.add(tx);
+		}
+		return txs;
+	}
+	
+	/**
+	 * 
+	 * @return The positions still missing from what {@link #fill(Mempool)} returned
+	 */
+	public static List<Integer> getMissing(List<Transaction> txs) {
+		List<Integer> missing = new ArrayList<>();
+		for(int itr = 0; itr < txs.size(); itr++) {
+			if(txs.get(itr) == null) {
+				missing.add(itr);
+			}
+		}
+		return missing;
+	}
+	
+	/**
+	 * 
+	 * @return The full block or {@code null} if the transactions don't hash to this header, which means a short id matched the wrong one
+	 */
+	public Block toBlock(List<Transaction> txs) {
+		if(txs.contains(null) || !Block.hash(index, previousHash, timestamp, txs, difficulty, nonce).equals(hash)) {
+			return null;
+		}
+		return new Block(network, index, hash, previousHash, timestamp, txs, difficulty, nonce);
+	}
+	
+	public int getTransactionCount() {
+		return shortIds.size() + prefilled.size();
+	}
+	
+	public Network getNetwork() {
+		return network;
+	}
+	
+	public int getIndex() {
+		return index;
+	}
+	
+	public Hash getHash() {
+		return hash;
+	}
+	
+	public Hash getPreviousHash() {
+		return previousHash;
+	}
+	
+	public long getTimestamp() {
+		return timestamp;
+	}
+	
+	public int getDifficulty() {
+		return difficulty;
+	}
+	
+	public long getNonce() {
+		return nonce;
+	}
+	
+	public List<Long> getShortIds() {
+		return Collections.unmodifiableList(shortIds);
+	}
+	
+	public Map<Integer, Transaction> getPrefilled() {
+		return Collections.unmodifiableMap(prefilled);
+	}
+	
+	public String toString() {
+		return String.format("%s [%d] %d short ids, %d prefilled", hash, index, shortIds.size(), prefilled.size());
+	}
+}
@@ -1,27 +1,143 @@
 package io.tokhn.core;
 
 import java.math.BigInteger;
+import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
+import io.tokhn.node.NetworkParams;
 import io.tokhn.util.Hash;
 
 public class LocalBlock extends Block{
 	private static final long serialVersionUID = -852427239298408605L;
 	private final BigInteger aggregatedDifficulty;
 	private final Set<Address> aggregatedUniqueAddresses;
+	/*
+	 * the difficulty schedule is stored with the block, so the difficulty for
+	 * the next block never has to walk back through the BlockStore
+	 *
+	 * blocks stored before these fields existed will have a null anchor hash
+	 */
+	private final int nextDifficulty;
+	private final Hash retargetAnchorHash;
+	private final long retargetAnchorTimestamp;
+	private final int retargetAnchorDifficulty;
+	//a pruned block is only a header, its transactions and address set are gone
+	private final boolean pruned;
+	/*
+	 * the UTXOs this block spent as they were before it, which is what it
+	 * takes to roll the block back; null if the block was stored before they
+	 * were kept or its UTXO changes were never worked out
+	 */
+	private List<UTXO> spentUtxos;
 	
 	public LocalBlock(Block block, Blockchain chain) {
 		super(block.getNetwork(), block.getIndex(), block.getHash(), block.getPreviousHash(), block.getTimestamp(), block.getTransactions(), block.getDifficulty(), block.getNonce());
-		aggregatedDifficulty = getAggregateDifficulty(block, chain);
+		LocalBlock previous = block.getPreviousHash().equals(Hash.EMPTY_HASH) ? null : chain.getBlock(block.getPreviousHash());
+		aggregatedDifficulty = getAggregateDifficulty(block, previous);
+		aggregatedUniqueAddresses = getAggregateUniqueAddresses(block, previous);
+		
+		NetworkParams params = getNetwork().getParams();
+		if(isRetargetAnchor(getIndex(), params)) {
+			retargetAnchorHash = getHash();
+			retargetAnchorTimestamp = getTimestamp();
+			retargetAnchorDifficulty = getDifficulty();
+		} else if(previous.hasDifficultySchedule()) {
+			//the anchor of the parent is already known, so we only need to carry it forward
+			retargetAnchorHash = previous.retargetAnchorHash;
+			retargetAnchorTimestamp = previous.retargetAnchorTimestamp;
+			retargetAnchorDifficulty = previous.retargetAnchorDifficulty;
+		} else {
+			//the parent was stored before anchors were kept, so we find it the slow way once
+			LocalBlock anchor = previous;
+			while(!isRetargetAnchor(anchor.getIndex(), params)) {
+				anchor = chain.getBlock(anchor.getPreviousHash());
+			}
+			retargetAnchorHash = anchor.getHash();
+			retargetAnchorTimestamp = anchor.getTimestamp();
+			retargetAnchorDifficulty = anchor.getDifficulty();
+		}
+		nextDifficulty = getNextDifficulty(getIndex(), getTimestamp(), getDifficulty(), retargetAnchorTimestamp, retargetAnchorDifficulty, params);
+		pruned = false;
+	}
+	
+	private LocalBlock(LocalBlock block) {
+		super(block.getNetwork(), block.getIndex(), block.getHash(), block.getPreviousHash(), block.getTimestamp(), Collections.emptyList(), block.getDifficulty(), block.getNonce());
+		aggregatedDifficulty = block.aggregatedDifficulty;
 		aggregatedUniqueAddresses = new HashSet<>();
-		updateAggregatedUniqueAddresses(chain);
+		nextDifficulty = block.nextDifficulty;
+		retargetAnchorHash = block.retargetAnchorHash;
+		retargetAnchorTimestamp = block.retargetAnchorTimestamp;
+		retargetAnchorDifficulty = block.retargetAnchorDifficulty;
+		pruned = true;
+	}
+	
+	/**
+	 * 
+	 * @return This block without its transactions or address set, which is all that is needed to follow the chain and its difficulty
+	 */
+	public LocalBlock toHeader() {
+		return pruned ? this : new LocalBlock(this);
+	}
+	
+	public boolean isPruned() {
+		return pruned;
+	}
+	
+	/**
+	 * 
+	 * @return The UTXOs this block spent or {@code null} if they are not known
+	 */
+	public List<UTXO> getSpentUtxos() {
+		return spentUtxos == null ? null : Collections.unmodifiableList(spentUtxos);
+	}
+	
+	void setSpentUtxos(List<UTXO> spentUtxos) {
+		this.spentUtxos = new ArrayList<>(spentUtxos);
 	}
 
 	public BigInteger getAggregatedDifficulty() {
 		return aggregatedDifficulty;
 	}
 	
+	/**
+	 * 
+	 * @return Every address used after genesis up to and including this block
+	 */
+	public Set<Address> getAggregatedUniqueAddresses() {
+		return Collections.unmodifiableSet(aggregatedUniqueAddresses);
+	}
+	
+	/**
+	 *
+	 * @return The minimum difficulty for a block built on top of this one
+	 */
+	public int getNextDifficulty() {
+		return nextDifficulty;
+	}
+	
+	/**
+	 *
+	 * @return {@code false} if this block was stored before the difficulty schedule was kept with blocks
+	 */
+	public boolean hasDifficultySchedule() {
+		return retargetAnchorHash != null;
+	}
+	
+	public Hash getRetargetAnchorHash() {
+		return retargetAnchorHash;
+	}
+	
+	public long getRetargetAnchorTimestamp() {
+		return retargetAnchorTimestamp;
+	}
+	
+	public int getRetargetAnchorDifficulty() {
+		return retargetAnchorDifficulty;
+	}
+	
 	public static LocalBlock max(LocalBlock a, LocalBlock b) {
 		if(a.getIndex() >= b.getIndex()) {
 			return a;
@@ -30,22 +146,48 @@ public class LocalBlock extends Block{
 		}
 	}
 	
-	private BigInteger getAggregateDifficulty(Block block, Blockchain chain) {
-		if(block.getPreviousHash().equals(Hash.EMPTY_HASH)) {
+	/**
+	 * A retarget window is the {@link NetworkParams#getDifficultyAdjustmentInterval()}
+	 * blocks that end on an adjustment height; the anchor is the first block of it.
+	 */
+	public static boolean isRetargetAnchor(int index, NetworkParams params) {
+		return index == 0 || (index - 1) % params.getDifficultyAdjustmentInterval() == 0;
+	}
+	
+	public static int getNextDifficulty(int index, long timestamp, int difficulty, long anchorTimestamp, int anchorDifficulty, NetworkParams params) {
+		if(index % params.getDifficultyAdjustmentInterval() != 0 || index == 0) {
+			return difficulty;
+		}
+		
+		int timeExpected = params.getBlockGenerationInterval() * params.getDifficultyAdjustmentInterval();
+		long timeTaken = timestamp - anchorTimestamp;
+		
+		if(timeTaken < timeExpected / 2) {
+			return anchorDifficulty + 1;
+		} else if(timeTaken > timeExpected * 2) {
+			int newDifficulty = anchorDifficulty - 1;
+			return newDifficulty >= 1 ? newDifficulty : 1;
+		} else {
+			return anchorDifficulty;
+		}
+	}
+	
+	private BigInteger getAggregateDifficulty(Block block, LocalBlock previous) {
+		if(previous == null) {
 			return BigInteger.valueOf(2).pow(block.getDifficulty());
 		} else {
-			LocalBlock b = chain.getBlock(block.getPreviousHash());
-			return BigInteger.valueOf(2).pow(block.getDifficulty()).add(b.aggregatedDifficulty);
+			return BigInteger.valueOf(2).pow(block.getDifficulty()).add(previous.aggregatedDifficulty);
 		}
 	}
 	
-	private void updateAggregatedUniqueAddresses(Blockchain chain) {
-		Block b = this;
-		while(!b.getPreviousHash().equals(Hash.EMPTY_HASH)) {
-			if(b != null) {
-				b.getTransactions().stream().flatMap(t -> t.getAllAddresses().stream()).forEach(a -> aggregatedUniqueAddresses.add(a));
-			}
-			b = chain.getBlock(b.getPreviousHash());
+	private Set<Address> getAggregateUniqueAddresses(Block block, LocalBlock previous) {
+		if(previous == null) {
+			//genesis never counted its own addresses, and every block stored since depends on that
+			return new HashSet<>();
 		}
+		//the parent already has every address before this block, so we only add our own
+		Set<Address> addresses = new HashSet<>(previous.aggregatedUniqueAddresses);
+		block.getTransactions().stream().flatMap(t -> t.getAllAddresses().stream()).forEach(a -> addresses.add(a));
+		return addresses;
 	}
-}
\ No newline at end of file
+}
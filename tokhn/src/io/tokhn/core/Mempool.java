@@ -0,0 +1,87 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.core;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import io.tokhn.util.Hash;
+
+/*
+ * The transactions relayed to us that aren't in a block yet, kept so a
+ * compact block can be rebuilt without the transactions being sent again.
+ * When it is full the oldest transaction goes first.
+ */
+public class Mempool {
+	public static final int DEFAULT_MAX_TRANSACTIONS = 50000;
+	private final int maxTransactions;
+	private final LinkedHashMap<Hash, Transaction> transactions = new LinkedHashMap<>();
+	
+	public Mempool() {
+		this(DEFAULT_MAX_TRANSACTIONS);
+	}
+	
+	public Mempool(int maxTransactions) {
+		this.maxTransactions = maxTransactions;
+	}
+	
+	public synchronized void put(Transaction tx) {
+		transactions.put(tx.getId(), tx);
+		if(transactions.size() > maxTransactions) {
+			Iterator<Hash> eldest = transactions.keySet().iterator();
+			eldest.next();
+			eldest.remove();
+		}
+	}
+	
+	public synchronized Transaction get(Hash txId) {
+		return transactions.get(txId);
+	}
+	
+	/**
+	 * Drops the transactions that made it into a block.
+	 */
+	public synchronized void removeAll(Collection<Transaction> txs) {
+		txs.forEach(tx -> transactions.remove(tx.getId()));
+	}
+	
+	public synchronized int size() {
+		return transactions.size();
+	}
+	
+	/**
+	 * 
+	 * @return Every transaction by its short id in the compact block, leaving out short ids more than one transaction has
+	 */
+	public synchronized Map<Long, Transaction> getByShortId(CompactBlock block) {
+		Map<Long, Transaction> result = new HashMap<>();
+		Set<Long> collisions = new HashSet<>();
+		for(Transaction tx : transactions.values()) {
+			long shortId = block.getShortId(tx.getId());
+			if(result.put(shortId, tx) != null) {
+				collisions.add(shortId);
+			}
+		}
+		collisions.forEach(shortId -> result.remove(shortId));
+		return result;
+	}
+}
@@ -44,6 +44,16 @@ import io.tokhn.util.Hash;
 
 public class TXI implements Serializable {
 	private static final long serialVersionUID = -2192154375566006776L;
+	//getting a Signature is slow, so each signing thread keeps its own
+	private static final ThreadLocal<Signature> SIGNERS = ThreadLocal.withInitial(() -> {
+		try {
+			return Signature.getInstance("SHA256withECDSA", "BC");
+		} catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+			e.printStackTrace();
+			System.exit(-1);
+			return null;
+		}
+	});
 	private final Hash sourceTxId;
 	private final int sourceTxoIndex;
 	private final String script;
@@ -66,19 +76,19 @@ public class TXI implements Serializable {
 
 	public void sign(PrivateKey privateKey) {
 		try {
-			Signature ecdsaSign = Signature.getInstance("SHA256withECDSA", "BC");
+			Signature ecdsaSign = SIGNERS.get();
 			ecdsaSign.initSign(privateKey);
 			ecdsaSign.update(getData());
 			signature = ecdsaSign.sign();
-		} catch (NoSuchAlgorithmException | NoSuchProviderException e) {
-			e.printStackTrace();
-			System.exit(-1);
 		} catch (InvalidKeyException | SignatureException e) {
 			System.err.println(e);
 		}
 	}
 
 	public boolean verify() {
+		if(getSignature() == null) {
+			return false;
+		}
 		try {
 			byte[] dataBytes = getData();
 			byte[] sigBytes = getSignature();
@@ -102,6 +112,8 @@ public class TXI implements Serializable {
 			System.exit(-1);
 		} catch (InvalidKeyException | SignatureException | InvalidKeySpecException e) {
 			System.err.println(e);
+		} catch (IllegalArgumentException e) {
+			//the signature comes from whoever sent the transaction, so it may not even decode
 		}
 		
 		return false;
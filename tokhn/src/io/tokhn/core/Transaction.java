@@ -96,7 +96,7 @@ public class Transaction implements Comparable<Transaction>, Serializable {
 	}
 	
 	public List<Address> getAllAddresses() {
-		return txos.stream().map(t -> t.getAddress()).distinct().collect(Collectors.toList());
+		return getTxos().stream().map(t -> t.getAddress()).distinct().collect(Collectors.toList());
 	}
 
 	public Hash getId() {
@@ -125,12 +125,13 @@ public class Transaction implements Comparable<Transaction>, Serializable {
 			return true;
 		} else if (o == null) {
 			return false;
-		} else if (getClass() != o.getClass()) {
+		} else if (!(o instanceof Transaction)) {
+			//a transaction decoded lazily from the wire is still the same transaction
 			return false;
 		}
 
 		Transaction other = (Transaction) o;
-		if(!id.equals(other.getId())) {
+		if(!getId().equals(other.getId())) {
 			return false;
 		}
 		return true;
@@ -138,7 +139,7 @@ public class Transaction implements Comparable<Transaction>, Serializable {
 
 	@Override
 	public int compareTo(Transaction o) {
-		return id.compareTo(o.getId());
+		return getId().compareTo(o.getId());
 	}
 	
 	@Override
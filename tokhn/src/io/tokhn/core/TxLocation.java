@@ -0,0 +1,54 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.core;
+
+import java.io.Serializable;
+
+import io.tokhn.util.Hash;
+
+/*
+ * Where a transaction is in the chain: the block it is in and its position in
+ * that block's transactions.
+ */
+public final class TxLocation implements Serializable {
+	private static final long serialVersionUID = 6020743591826419517L;
+	private final Hash blockHash;
+	private final int blockIndex;
+	private final int position;
+	
+	public TxLocation(Hash blockHash, int blockIndex, int position) {
+		this.blockHash = blockHash;
+		this.blockIndex = blockIndex;
+		this.position = position;
+	}
+	
+	public Hash getBlockHash() {
+		return blockHash;
+	}
+	
+	public int getBlockIndex() {
+		return blockIndex;
+	}
+	
+	public int getPosition() {
+		return position;
+	}
+	
+	public String toString() {
+		return String.format("%s [%d] #%d", blockHash, blockIndex, position);
+	}
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.core;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import io.tokhn.store.UTXOStore;
+import io.tokhn.util.Hash;
+
+/*
+ * The UTXO changes made by one or more blocks, collected before any of them
+ * touch the UTXOStore. Applying a delta only removes and puts by id, so it is
+ * safe to apply it again after a crash part way through.
+ */
+public class UTXODelta implements Serializable {
+	private static final long serialVersionUID = 3870457826123098862L;
+	private final Map<Hash, UTXO> created = new LinkedHashMap<>();
+	private final Set<Hash> spent = new LinkedHashSet<>();
+	
+	/**
+	 * 
+	 * @return The UTXO as it will be once this delta is applied or {@code null} if it won't exist
+	 */
+	public UTXO get(Hash utxoId, UTXOStore uStore) {
+		if(created.containsKey(utxoId)) {
+			return created.get(utxoId);
+		} else if(spent.contains(utxoId)) {
+			return null;
+		} else {
+			return uStore.get(utxoId);
+		}
+	}
+	
+	public void create(UTXO utxo) {
+		created.put(utxo.getUtxoId(), utxo);
+	}
+	
+	public void spend(Hash utxoId) {
+		created.remove(utxoId);
+		spent.add(utxoId);
+	}
+	
+	public void applyTo(UTXOStore uStore) {
+		//spent goes first, since a UTXO can be spent by one branch and created again by the other
+		spent.forEach(utxoId -> uStore.remove(utxoId));
+		created.values().forEach(utxo -> uStore.put(utxo));
+	}
+	
+	public Hash getHash() {
+		StringBuilder sb = new StringBuilder();
+		spent.forEach(utxoId -> sb.append(utxoId));
+		created.values().forEach(utxo -> sb.append(utxo));
+		return Hash.of(sb.toString());
+	}
+}
@@ -31,23 +31,34 @@ import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Collectors;
 
 import io.tokhn.node.Network;
 import io.tokhn.store.MapDBWalletStore;
 import io.tokhn.store.WalletStore;
+import io.tokhn.util.Hash;
 
 public class Wallet implements Serializable {
 	private static final long serialVersionUID = 4678179293993780295L;
 	private final Map<Network, Address> addresses = new HashMap<>();
 	private final WalletStore store;
+	private final CoinSelector selector;
 	
 	public Wallet(WalletStore store) {
+		this(store, new CoinSelector());
+	}
+	
+	public Wallet(WalletStore store, CoinSelector selector) {
 		this.store = store;
+		this.selector = selector;
 		
 		PublicKey publicKey = store.getPublicKey();
 		if(publicKey != null) {
@@ -76,6 +87,63 @@ public class Wallet implements Serializable {
 		store.putUtxo(utxo);
 		
 	}
+	
+	/**
+	 * Applies what the block does to this wallet's UTXOs for the network. The
+	 * block has to follow the one the wallet was last synced to.
+	 */
+	public void applyBlock(Network network, Block block) {
+		Address address = addresses.get(network);
+		List<UTXO> spent = new ArrayList<>();
+		//a UTXO can be created and spent in the same block, so those never make it to the store
+		Map<Hash, UTXO> created = new LinkedHashMap<>();
+		for(Transaction tx : block.getTransactions()) {
+			for(TXI txi : tx.getTxis()) {
+				Hash utxoId = UTXO.hash(network, txi);
+				if(created.remove(utxoId) == null) {
+					UTXO utxo = store.getUtxo(utxoId);
+					if(utxo != null) {
+						spent.add(utxo);
+					}
+				}
+			}
+			List<TXO> txos = tx.getTxos();
+			for(int itr = 0; itr < txos.size(); itr++) {
+				TXO txo = txos.get(itr);
+				if(txo.getAddress().equals(address)) {
+					UTXO utxo = new UTXO(network, tx.getId(), itr, address, txo.getAmount(), txo.getScript());
+					created.put(utxo.getUtxoId(), utxo);
+				}
+			}
+		}
+		store.applyDelta(network, new WalletDelta(block.getHash(), block.getIndex(), spent, new ArrayList<>(created.values())));
+	}
+	
+	/**
+	 * Undoes the latest block applied for the network.
+	 * 
+	 * @return The delta undone or {@code null} if the wallet can't go back any further
+	 */
+	public WalletDelta rollbackBlock(Network network) {
+		return store.rollbackDelta(network);
+	}
+	
+	/**
+	 * 
+	 * @return The delta of the block the network is synced to or {@code null} if it was never synced
+	 */
+	public WalletDelta getLastSynced(Network network) {
+		return store.getLastDelta(network);
+	}
+	
+	/**
+	 * Replaces the UTXOs for the network with a full list from a node that was at the given block.
+	 */
+	public void resetUtxos(Network network, List<UTXO> utxos, Hash blockHash, int blockIndex) {
+		List<UTXO> mine = utxos.stream().filter(utxo -> utxo.getAddress().equals(addresses.get(network))).collect(Collectors.toList());
+		store.reset(network, mine, new WalletDelta(blockHash, blockIndex, new ArrayList<>(), new ArrayList<>()));
+	}
+	
 	public Token getBalance(Network network) {
 		long megas = store.getUtxos(network).stream().mapToLong(utxo -> utxo.getAmount().getValue()).sum();
 		return Token.valueOfInMegas(megas);
@@ -93,23 +161,74 @@ public class Wallet implements Serializable {
 		tx.getTxis().stream().forEach(txi -> txi.sign(store.getPrivateKey()));
 		return tx;
 	}
+	
+	/**
+	 * Signs the inputs of all the transactions in parallel.
+	 */
+	public List<Transaction> signAll(List<Transaction> txs) {
+		PrivateKey privateKey = store.getPrivateKey();
+		txs.stream().flatMap(tx -> tx.getTxis().stream()).collect(Collectors.toList()).parallelStream().forEach(txi -> txi.sign(privateKey));
+		return txs;
+	}
 
+	/**
+	 * Builds a transaction paying amount to the address and locks the UTXOs it
+	 * spends, so they aren't picked again before the transaction is in a
+	 * block. Use {@link #unlock(Transaction, Network)} if it never makes it in.
+	 */
 	public Transaction newTx(Network network, Address to, Token amount) throws Exception {
-		List<TXI> txis = new LinkedList<>();
-		List<TXO> txos = new LinkedList<>();
-		
-		List<UTXO> utxos = findUtxosForAmount(network, amount);
-		long leftOver = amount.getValue();
-		for(UTXO utxo : utxos) {
-			txis.add(convertToTxi(utxo));
-			leftOver -= utxo.getAmount().getValue();
-		}
-		if(leftOver > 0) {
-			txos.add(new TXO(addresses.get(network), Token.valueOfInMegas(leftOver)));
+		return newTxs(network, Collections.singletonList(Collections.singletonMap(to, amount))).get(0);
+	}
+	
+	/**
+	 * Builds one transaction with a TXO for each payment, see {@link #newTx(Network, Address, Token)}.
+	 */
+	public Transaction newBatchTx(Network network, Map<Address, Token> payments) throws Exception {
+		return newTxs(network, Collections.singletonList(payments)).get(0);
+	}
+	
+	/**
+	 * Builds a signed transaction for each map of payments. The UTXOs for all
+	 * of them are reserved together, so if any of them can't be paid for none
+	 * of them are built and nothing stays locked.
+	 */
+	public synchronized List<Transaction> newTxs(Network network, List<Map<Address, Token>> batches) throws Exception {
+		List<Transaction> txs = new ArrayList<>(batches.size());
+		List<Hash> reserved = new ArrayList<>();
+		try {
+			for(Map<Address, Token> payments : batches) {
+				long amount = payments.values().stream().mapToLong(t -> t.getValue()).sum();
+				List<UTXO> utxos = selector.select(store, network, Token.valueOfInMegas(amount));
+				List<TXI> txis = new LinkedList<>();
+				List<TXO> txos = new LinkedList<>();
+				long change = -amount;
+				for(UTXO utxo : utxos) {
+					txis.add(convertToTxi(utxo));
+					change += utxo.getAmount().getValue();
+				}
+				if(change >= selector.getMinChange()) {
+					txos.add(new TXO(addresses.get(network), Token.valueOfInMegas(change)));
+				}
+				payments.forEach((to, t) -> txos.add(new TXO(to, t)));
+				txs.add(new Transaction(Instant.now().getEpochSecond(), txis, txos));
+				
+				//locked as we go, so the next transaction in the batch picks other coins
+				List<Hash> utxoIds = utxos.stream().map(utxo -> utxo.getUtxoId()).collect(Collectors.toList());
+				store.lockUtxos(utxoIds);
+				reserved.addAll(utxoIds);
+			}
+		} catch(Exception e) {
+			store.unlockUtxos(reserved);
+			throw e;
 		}
-		txos.add(new TXO(to, amount));
-		
-		return new Transaction(Instant.now().getEpochSecond(), txis, txos);
+		return signAll(txs);
+	}
+	
+	/**
+	 * Makes the UTXOs a transaction from {@link #newTx(Network, Address, Token)} spent selectable again.
+	 */
+	public void unlock(Transaction tx, Network network) {
+		store.unlockUtxos(tx.getTxis().stream().map(txi -> UTXO.hash(network, txi)).collect(Collectors.toList()));
 	}
 	
 	public Map<Network, Address> getAddresses() {
@@ -136,17 +255,4 @@ public class Wallet implements Serializable {
 	private TXI convertToTxi(UTXO utxo) {
 		return new TXI(utxo.getSourceTxoId(), utxo.getSourceTxoIndex(), utxo.getScript());
 	}
-	
-	private List<UTXO> findUtxosForAmount(Network network, Token amount) throws Exception {
-		List<UTXO> found = new LinkedList<>();
-		long megasFound = 0;
-		for(UTXO utxo : store.getUtxos(network)) {
-			found.add(utxo);
-			megasFound += utxo.getAmount().getValue();
-			if(megasFound >= amount.getValue()) {
-				return found;
-			}
-		}
-		throw new Exception("Balance too small");
-	}
 }
\ No newline at end of file
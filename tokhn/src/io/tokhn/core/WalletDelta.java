@@ -0,0 +1,62 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.core;
+
+import java.io.Serializable;
+import java.util.List;
+
+import io.tokhn.util.Hash;
+
+/*
+ * What one block did to a wallet: the wallet's UTXOs it spent and the ones
+ * it created. The wallet keeps the latest of these, so it knows which block
+ * it is synced to and can undo blocks that a reorganization takes away.
+ */
+public final class WalletDelta implements Serializable {
+	private static final long serialVersionUID = 2950370385738128761L;
+	private final Hash blockHash;
+	private final int blockIndex;
+	private final List<UTXO> spent;
+	private final List<UTXO> created;
+	
+	public WalletDelta(Hash blockHash, int blockIndex, List<UTXO> spent, List<UTXO> created) {
+		this.blockHash = blockHash;
+		this.blockIndex = blockIndex;
+		this.spent = spent;
+		this.created = created;
+	}
+	
+	public Hash getBlockHash() {
+		return blockHash;
+	}
+	
+	public int getBlockIndex() {
+		return blockIndex;
+	}
+	
+	public List<UTXO> getSpent() {
+		return spent;
+	}
+	
+	public List<UTXO> getCreated() {
+		return created;
+	}
+	
+	public String toString() {
+		return String.format("%s [%d] -%d +%d", blockHash, blockIndex, spent.size(), created.size());
+	}
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.node;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.tokhn.util.Metrics;
+import io.tokhn.util.Metrics.Counter;
+import io.tokhn.util.TokenBucket;
+
+/*
+ * Decides whether a peer's request is worth doing right now. Each peer gets
+ * a bucket per kind of request, and every request is also paid for out of
+ * one bucket for the whole node. Costs are rough units of work, where one
+ * is about a block lookup.
+ * 
+ * Block relay is only held to its per peer limit and always takes from the
+ * node's bucket, even into debt. Everything else has to leave part of the
+ * node's bucket behind, more the less urgent it is, so a flood of syncs or
+ * wallet queries can't starve the blocks keeping us on the tip.
+ */
+public class Admission {
+	//blocks sent or taken for a single unit of cost when syncing
+	public static final int BLOCKS_PER_UNIT = 10;
+	//buckets that have refilled are dropped past this many, so peers that left don't stay around forever
+	private static final int MAX_BUCKETS = 10000;
+	private final double peerRate;
+	private final double peerBurst;
+	private final double nodeBurst;
+	private final TokenBucket node;
+	private final Map<String, TokenBucket> peers = new ConcurrentHashMap<>();
+	private final Counter admitted = Metrics.counter("admission.admitted");
+	private final Counter refused = Metrics.counter("admission.refused");
+	
+	public enum Priority {
+		BLOCK(0),
+		TRANSACTION(0.1),
+		SYNC(0.25),
+		QUERY(0.5);
+		
+		//the share of the node's bucket this priority has to leave for the ones above it
+		private final double reserve;
+		
+		private Priority(double reserve) {
+			this.reserve = reserve;
+		}
+		
+		public double getReserve() {
+			return reserve;
+		}
+	}
+	
+	public Admission(double peerRate, double peerBurst, double nodeRate, double nodeBurst) {
+		this.peerRate = peerRate;
+		this.peerBurst = peerBurst;
+		this.nodeBurst = nodeBurst;
+		node = new TokenBucket(nodeRate, nodeBurst);
+		Metrics.gauge("admission.tokens", () -> node.getTokens());
+		Metrics.gauge("admission.peers", () -> peers.size());
+	}
+	
+	/**
+	 * 
+	 * @param peer The host the request came from
+	 * @param request The kind of request, each of which is limited separately
+	 * @return Whether the request should be handled
+	 */
+	public boolean admit(String peer, String request, Priority priority, double cost) {
+		if(peers.size() > MAX_BUCKETS) {
+			peers.values().removeIf(TokenBucket::isFull);
+		}
+		
+		TokenBucket bucket = peers.computeIfAbsent(peer + " " + request, k -> new TokenBucket(peerRate, peerBurst));
+		if(!bucket.tryTake(cost, 0)) {
+			refused.increment();
+			return false;
+		}
+		
+		if(priority == Priority.BLOCK) {
+			node.take(cost);
+		} else if(!node.tryTake(cost, priority.getReserve() * nodeBurst)) {
+			//the peer isn't to blame for the node being busy, so it gets its tokens back
+			bucket.refund(cost);
+			refused.increment();
+			return false;
+		}
+		admitted.increment();
+		return true;
+	}
+	
+	public long getAdmitted() {
+		return admitted.getCount();
+	}
+	
+	public long getRefused() {
+		return refused.getCount();
+	}
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.node;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Grpc;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+import io.tokhn.grpc.AddressHistoryRequest;
+import io.tokhn.grpc.BlockTransactionsRequest;
+import io.tokhn.grpc.PartialChainRequest;
+import io.tokhn.grpc.SubscriptionRequest;
+import io.tokhn.grpc.TokhnServiceGrpc;
+import io.tokhn.node.Admission.Priority;
+
+/*
+ * Runs every request through Admission before the service sees it. A
+ * refused call is closed with RESOURCE_EXHAUSTED so the client can back
+ * off, while a refused message on a stream is just dropped since closing
+ * the stream would cut the peer off from relay altogether.
+ */
+public class AdmissionInterceptor implements ServerInterceptor {
+	private static final Rule DEFAULT_RULE = new Rule(Priority.QUERY, m -> 1);
+	private final Map<String, Rule> rules = new HashMap<>();
+	private final Admission admission;
+	
+	/**
+	 * 
+	 * @param chainLength The index of the latest block of each chain, which is how far back a partial chain can reach
+	 */
+	public AdmissionInterceptor(Admission admission, ToIntFunction<Network> chainLength) {
+		this.admission = admission;
+		rule(TokhnServiceGrpc.getGetBlockMethod(), Priority.BLOCK, m -> 1);
+		rule(TokhnServiceGrpc.getStreamBlocksMethod(), Priority.BLOCK, m -> 1);
+		rule(TokhnServiceGrpc.getStreamCompactBlocksMethod(), Priority.BLOCK, m -> 1);
+		rule(TokhnServiceGrpc.getGetBlockTransactionsMethod(), Priority.BLOCK, m -> 1 + ((BlockTransactionsRequest) m).getPositionsCount() / 100);
+		rule(TokhnServiceGrpc.getStreamTransactionsMethod(), Priority.TRANSACTION, m -> 1);
+		rule(TokhnServiceGrpc.getGetWelcomeMethod(), Priority.SYNC, m -> 1);
+		//the blocks are found by walking back from the tip, so it costs however far back the range starts
+		rule(TokhnServiceGrpc.getGetPartialChainMethod(), Priority.SYNC, m -> {
+			PartialChainRequest request = (PartialChainRequest) m;
+			return 10 + Math.max(0, getChainLength(chainLength, request) - request.getStartIndex()) / Admission.BLOCKS_PER_UNIT;
+		});
+		//without an address index this scans the whole UTXO set
+		rule(TokhnServiceGrpc.getGetUtxosMethod(), Priority.QUERY, m -> 50);
+		rule(TokhnServiceGrpc.getGeTxisMethod(), Priority.QUERY, m -> 2);
+		rule(TokhnServiceGrpc.getGeTxosMethod(), Priority.QUERY, m -> 2);
+		rule(TokhnServiceGrpc.getGetTransactionMethod(), Priority.QUERY, m -> 2);
+		rule(TokhnServiceGrpc.getGetAddressHistoryMethod(), Priority.QUERY, m -> 2 + Math.max(0, ((AddressHistoryRequest) m).getLimit()) / 100);
+		//every transaction and block afterwards is matched against it
+		rule(TokhnServiceGrpc.getSubscribeMethod(), Priority.QUERY, m -> 10 + ((SubscriptionRequest) m).getAddressesCount() / 100);
+	}
+	
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+		String method = call.getMethodDescriptor().getFullMethodName();
+		Rule rule = rules.getOrDefault(method, DEFAULT_RULE);
+		boolean stream = !call.getMethodDescriptor().getType().clientSendsOneMessage();
+		String peer = getPeer(call.getAttributes().get(Grpc.TRANSPORT_ATTR_REMOTE_ADDR));
+		return new SimpleForwardingServerCallListener<ReqT>(next.startCall(call, headers)) {
+			private boolean refused = false;
+			
+			@Override
+			public void onMessage(ReqT message) {
+				if(admission.admit(peer, method, rule.priority, rule.cost.applyAsDouble(message))) {
+					super.onMessage(message);
+				} else if(!stream) {
+					refused = true;
+					call.close(Status.RESOURCE_EXHAUSTED.withDescription("The node is too busy, try again later"), new Metadata());
+				}
+			}
+			
+			@Override
+			public void onHalfClose() {
+				//the handler never got a request, so it has nothing to answer
+				if(!refused) {
+					super.onHalfClose();
+				}
+			}
+		};
+	}
+	
+	/*
+	 * limits are by host rather than connection, otherwise a peer could get
+	 * a fresh set of buckets just by reconnecting
+	 */
+	private static String getPeer(SocketAddress address) {
+		if(address instanceof InetSocketAddress) {
+			InetSocketAddress inet = (InetSocketAddress) address;
+			return inet.getAddress() == null ? inet.getHostString() : inet.getAddress().getHostAddress();
+		}
+		return String.valueOf(address);
+	}
+	
+	private static int getChainLength(ToIntFunction<Network> chainLength, PartialChainRequest request) {
+		try {
+			return chainLength.applyAsInt(Network.valueOf(request.getNetwork().name()));
+		} catch(IllegalArgumentException e) {
+			//the service turns it away, which doesn't walk anything
+			return 0;
+		}
+	}
+	
+	private void rule(MethodDescriptor<?, ?> method, Priority priority, ToDoubleFunction<Object> cost) {
+		rules.put(method.getFullMethodName(), new Rule(priority, cost));
+	}
+	
+	private static class Rule {
+		private final Priority priority;
+		private final ToDoubleFunction<Object> cost;
+		
+		public Rule(Priority priority, ToDoubleFunction<Object> cost) {
+			this.priority = priority;
+			this.cost = cost;
+		}
+	}
+}
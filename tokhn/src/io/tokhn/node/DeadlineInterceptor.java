@@ -0,0 +1,117 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.node;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.ForwardingServerCall.SimpleForwardingServerCall;
+import io.grpc.ForwardingServerCallListener.SimpleForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.MethodDescriptor.MethodType;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+/*
+ * Gives every unary call a deadline on the server side, so a client that
+ * set no deadline of its own isn't left waiting forever on a slow lookup.
+ * The call is closed with DEADLINE_EXCEEDED when it runs out, and anything
+ * the handler sends after that is dropped. The handler keeps its executor
+ * thread until it returns though, so the long ones check whether the
+ * Context was cancelled as they go. Streams are left alone since they are
+ * meant to stay open.
+ */
+public class DeadlineInterceptor implements ServerInterceptor {
+	private final long timeout;
+	private final TimeUnit unit;
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "rpc-deadlines");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	public DeadlineInterceptor(long timeout, TimeUnit unit) {
+		this.timeout = timeout;
+		this.unit = unit;
+	}
+	
+	@Override
+	public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers, ServerCallHandler<ReqT, RespT> next) {
+		if(call.getMethodDescriptor().getType() != MethodType.UNARY) {
+			return next.startCall(call, headers);
+		}
+		
+		Context.CancellableContext context = Context.current().withDeadlineAfter(timeout, unit, scheduler);
+		DeadlineCall<ReqT, RespT> deadlineCall = new DeadlineCall<>(call);
+		//this also runs when we cancel the context ourselves once the call is over, which is harmless since it is already closed
+		context.addListener(c -> deadlineCall.expire(), Runnable::run);
+		return new SimpleForwardingServerCallListener<ReqT>(Contexts.interceptCall(context, deadlineCall, headers, next)) {
+			@Override
+			public void onComplete() {
+				super.onComplete();
+				context.cancel(null);
+			}
+			
+			@Override
+			public void onCancel() {
+				super.onCancel();
+				context.cancel(null);
+			}
+		};
+	}
+	
+	private static class DeadlineCall<ReqT, RespT> extends SimpleForwardingServerCall<ReqT, RespT> {
+		private boolean closed = false;
+		
+		public DeadlineCall(ServerCall<ReqT, RespT> call) {
+			super(call);
+		}
+		
+		@Override
+		public synchronized void sendHeaders(Metadata headers) {
+			if(!closed) {
+				super.sendHeaders(headers);
+			}
+		}
+		
+		@Override
+		public synchronized void sendMessage(RespT message) {
+			if(!closed) {
+				super.sendMessage(message);
+			}
+		}
+		
+		@Override
+		public synchronized void close(Status status, Metadata trailers) {
+			if(!closed) {
+				closed = true;
+				super.close(status, trailers);
+			}
+		}
+		
+		public synchronized void expire() {
+			if(!closed) {
+				close(Status.DEADLINE_EXCEEDED.withDescription("The node took too long"), new Metadata());
+			}
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.node;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+import java.util.stream.LongStream;
+
+import io.tokhn.core.Address;
+import io.tokhn.core.Block;
+import io.tokhn.core.Blockchain;
+import io.tokhn.core.ChainState;
+import io.tokhn.core.LocalBlock;
+import io.tokhn.core.TXI;
+import io.tokhn.core.Transaction;
+import io.tokhn.core.UTXO;
+import io.tokhn.util.Hash;
+import io.tokhn.util.Log;
+import io.tokhn.util.Metrics;
+import io.tokhn.util.Metrics.Counter;
+import io.tokhn.util.Metrics.Histogram;
+import io.tokhn.util.Metrics.Meter;
+
+/*
+ * Mines the transactions a node is sent while its network is still easy
+ * enough to mine internally. Transactions are queued and mined together once
+ * per interval on a background thread, so the stream they came in on never
+ * waits on mining. Mining stops as soon as another block becomes the tip,
+ * and the transactions not in that block go back in the queue.
+ */
+public class InternalMiner implements AutoCloseable {
+	public static final long DEFAULT_INTERVAL = 1000;
+	//keeps a block, and the time spent mining it, reasonable however much is queued
+	public static final int MAX_TRANSACTIONS = 1000;
+	private final Blockchain chain;
+	private final Supplier<Address> rewardAddress;
+	//hands a mined block to the node, which adds and relays it
+	private final Predicate<Block> submit;
+	private final LinkedHashMap<Hash, Transaction> pending = new LinkedHashMap<>();
+	private final ScheduledExecutorService executor;
+	private volatile Hash miningOn = null;
+	private volatile boolean cancelled = false;
+	private final Meter hashes;
+	private final Counter blocksFound;
+	private final Counter cancellations;
+	//milliseconds from starting on a batch to finding its block
+	private final Histogram latency;
+	private volatile long lastLatency = 0;
+	
+	public InternalMiner(Blockchain chain, Supplier<Address> rewardAddress, Predicate<Block> submit, long interval) {
+		this.chain = chain;
+		this.rewardAddress = rewardAddress;
+		this.submit = submit;
+		String prefix = chain.getNetwork() + ".miner.";
+		hashes = Metrics.meter(prefix + "hashes");
+		blocksFound = Metrics.counter(prefix + "blocks");
+		cancellations = Metrics.counter(prefix + "cancellations");
+		latency = Metrics.histogram(prefix + "latency");
+		Metrics.gauge(prefix + "pending", () -> getPending());
+		executor = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "internal-miner-" + chain.getNetwork());
+			t.setDaemon(true);
+			return t;
+		});
+		executor.scheduleWithFixedDelay(() -> {
+			try {
+				mine();
+			} catch(RuntimeException e) {
+				//one bad batch shouldn't stop mining for good
+				Log.error("Internal mining failed: %s", e);
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+	
+	public synchronized void submit(Transaction tx) {
+		pending.putIfAbsent(tx.getId(), tx);
+	}
+	
+	/**
+	 * Lets the miner know a block was added, so it can stop mining on the
+	 * old tip and forget the transactions the block already has.
+	 */
+	public void onNewTip(Block block) {
+		synchronized(this) {
+			block.getTransactions().forEach(tx -> pending.remove(tx.getId()));
+		}
+		//whatever the new tip builds on, including our own parent, the block we are mining can't follow it anymore
+		Hash parent = miningOn;
+		if(parent != null && !parent.equals(block.getHash())) {
+			cancelled = true;
+		}
+	}
+	
+	public synchronized int getPending() {
+		return pending.size();
+	}
+	
+	public long getHashes() {
+		return hashes.getCount();
+	}
+	
+	/**
+	 * 
+	 * @return Hashes per second over about the last minute
+	 */
+	public double getHashRate() {
+		return hashes.getRate();
+	}
+	
+	public long getBlocksFound() {
+		return blocksFound.getCount();
+	}
+	
+	public long getCancellations() {
+		return cancellations.getCount();
+	}
+	
+	/**
+	 * 
+	 * @return How long the last block took to mine in milliseconds
+	 */
+	public long getLastLatency() {
+		return lastLatency;
+	}
+	
+	public double getAverageLatency() {
+		return latency.getMean();
+	}
+	
+	@Override
+	public void close() {
+		cancelled = true;
+		executor.shutdownNow();
+	}
+	
+	private void mine() {
+		//one snapshot, so the tail, difficulty and reward all belong to the same tip
+		ChainState state = chain.getState();
+		if(state.getDifficulty() > chain.getNetwork().getParams().getMaxInternalMineDifficulty()) {
+			//the network got too hard for us, so what is queued goes out to the real miners instead
+			return;
+		}
+		
+		List<Transaction> batch = takeBatch();
+		if(batch.isEmpty()) {
+			return;
+		}
+		
+		LocalBlock tail = state.getLatestBlock();
+		int difficulty = state.getDifficulty();
+		List<Transaction> transactions = new ArrayList<>();
+		transactions.add(Transaction.rewardOf(rewardAddress.get(), state.getReward()));
+		transactions.addAll(batch);
+		long timestamp = Instant.now().getEpochSecond();
+		
+		miningOn = tail.getHash();
+		cancelled = !tail.getHash().equals(chain.getLatestBlock().getHash());
+		long start = System.currentTimeMillis();
+		//once cancelled every nonce matches, which ends the search right away
+		Block block = LongStream.iterate(0, i -> i + 1).parallel()
+				.peek(i -> hashes.mark())
+				.mapToObj(i -> new Block(chain.getNetwork(), tail.getIndex() + 1, tail.getHash(), timestamp, transactions, difficulty, i))
+				.filter(b -> cancelled || Block.hashMatchesDifficulty(b.getHash(), difficulty))
+				.findAny().orElse(null);
+		miningOn = null;
+		
+		if(cancelled || block == null) {
+			cancellations.increment();
+			requeue(batch);
+		} else if(submit.test(block)) {
+			lastLatency = System.currentTimeMillis() - start;
+			latency.update(lastLatency);
+			blocksFound.increment();
+			Log.info("Internally mined %s with %d transactions in %d ms", block, batch.size(), lastLatency);
+		} else {
+			//the tip moved between finding the block and adding it, so we try again on the new one
+			requeue(batch);
+		}
+	}
+	
+	/*
+	 * takes the oldest transactions that are still valid and don't spend
+	 * the same output, anything invalid is dropped since it never will be
+	 */
+	private synchronized List<Transaction> takeBatch() {
+		List<Transaction> batch = new ArrayList<>();
+		Set<Hash> spent = new HashSet<>();
+		Iterator<Transaction> itr = pending.values().iterator();
+		while(itr.hasNext() && batch.size() < MAX_TRANSACTIONS) {
+			Transaction tx = itr.next();
+			if(!chain.isValidTransaction(tx)) {
+				Log.warn("Dropping invalid transaction %s", tx);
+				itr.remove();
+				continue;
+			}
+			
+			List<Hash> inputs = new ArrayList<>();
+			for(TXI txi : tx.getTxis()) {
+				inputs.add(UTXO.hash(chain.getNetwork(), txi));
+			}
+			if(inputs.stream().noneMatch(input -> spent.contains(input))) {
+				spent.addAll(inputs);
+				batch.add(tx);
+				itr.remove();
+			}
+		}
+		return batch;
+	}
+	
+	private synchronized void requeue(Collection<Transaction> batch) {
+		//they go back in front of anything that came in while we were mining
+		Map<Hash, Transaction> newer = new LinkedHashMap<>(pending);
+		pending.clear();
+		batch.forEach(tx -> pending.put(tx.getId(), tx));
+		pending.putAll(newer);
+	}
+}
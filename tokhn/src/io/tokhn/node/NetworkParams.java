@@ -98,4 +98,16 @@ public interface NetworkParams {
 	default int getMaxInternalMineDifficulty() {
 		return 1;
 	}
+	
+	/**
+	 * Blocks that arrive before their parent are held in an orphan pool until
+	 * the parent shows up. The pool is bounded so a peer can't exhaust our
+	 * storage with blocks that never connect; the oldest orphans are dropped
+	 * first.
+	 * 
+	 * @return Maximum number of orphan blocks to hold
+	 */
+	default int getMaxOrphans() {
+		return 750;
+	}
 }
\ No newline at end of file
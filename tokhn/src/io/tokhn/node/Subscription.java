@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.node;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.tokhn.core.Address;
+import io.tokhn.core.Block;
+import io.tokhn.core.TXI;
+import io.tokhn.core.TXO;
+import io.tokhn.core.Transaction;
+import io.tokhn.core.UTXO;
+import io.tokhn.grpc.NetworkModel;
+import io.tokhn.grpc.SubscriptionEvent;
+import io.tokhn.util.BloomFilter;
+import io.tokhn.util.GRPC;
+import io.tokhn.util.Hash;
+
+/*
+ * A light client's interest in one network: the addresses it named and,
+ * optionally, a Bloom filter over the bytes of more addresses. A transaction
+ * matches when it pays or spends from one of them.
+ * 
+ * Events come from both the threads relaying transactions and the chain
+ * writer, so they are sent one at a time.
+ */
+public class Subscription {
+	private final Network network;
+	private final Set<Address> addresses;
+	private final BloomFilter filter;
+	private final ServerCallStreamObserver<SubscriptionEvent> observer;
+	private boolean closed = false;
+	
+	public Subscription(Network network, Set<Address> addresses, BloomFilter filter, ServerCallStreamObserver<SubscriptionEvent> observer) {
+		this.network = network;
+		this.addresses = addresses;
+		this.filter = filter;
+		this.observer = observer;
+	}
+	
+	public boolean matches(Address address) {
+		return addresses.contains(address) || (filter != null && filter.mightContain(address.getBytes()));
+	}
+	
+	/**
+	 * 
+	 * @param spent the address each input spends from, by UTXO id, where it is known
+	 */
+	public boolean matches(Transaction tx, Map<Hash, Address> spent) {
+		for(TXO txo : tx.getTxos()) {
+			if(matches(txo.getAddress())) {
+				return true;
+			}
+		}
+		for(TXI txi : tx.getTxis()) {
+			Address address = spent.get(UTXO.hash(network, txi));
+			if(address != null && matches(address)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * An unconfirmed transaction is only a heads up, its confirmation carries
+	 * it again, so it is dropped for a client that isn't reading.
+	 * 
+	 * @return {@code false} if the subscription is closed
+	 */
+	public synchronized boolean sendTransaction(Transaction tx) {
+		if(!closed && observer.isReady()) {
+			observer.onNext(SubscriptionEvent.newBuilder().setNetwork(NetworkModel.valueOf(network.name())).setTransaction(GRPC.transform(network, tx)).build());
+		}
+		return !closed;
+	}
+	
+	/**
+	 * Every block is confirmed so the client can follow the chain, but only
+	 * the matching transactions are sent with it. A client that isn't reading
+	 * would lose track of the chain if one was dropped, and would have them
+	 * pile up if they were all kept, so its subscription is closed instead.
+	 * 
+	 * @return {@code false} if the subscription is closed
+	 */
+	public synchronized boolean sendConfirmation(Block block, Map<Hash, Address> spent) {
+		if(closed) {
+			return false;
+		} else if(!observer.isReady()) {
+			closed = true;
+			observer.onError(Status.RESOURCE_EXHAUSTED.withDescription("Subscription fell behind, subscribe again").asRuntimeException());
+			return false;
+		}
+		List<Transaction> matching = block.getTransactions().stream().filter(tx -> matches(tx, spent)).collect(Collectors.toList());
+		observer.onNext(SubscriptionEvent.newBuilder().setNetwork(NetworkModel.valueOf(network.name())).setConfirmation(GRPC.transform(block, matching)).build());
+		return true;
+	}
+	
+	public Network getNetwork() {
+		return network;
+	}
+}
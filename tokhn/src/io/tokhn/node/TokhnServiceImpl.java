@@ -21,60 +21,180 @@ import java.security.NoSuchProviderException;
 import java.security.spec.InvalidKeySpecException;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
+import com.google.protobuf.ByteString;
+
+import io.grpc.Context;
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import io.tokhn.core.Address;
+import io.tokhn.core.AddressHistory;
 import io.tokhn.core.Block;
 import io.tokhn.core.Blockchain;
+import io.tokhn.core.ChainState;
+import io.tokhn.core.CompactBlock;
+import io.tokhn.core.InvalidChainException;
 import io.tokhn.core.LocalBlock;
+import io.tokhn.core.Mempool;
+import io.tokhn.core.TXI;
+import io.tokhn.core.TXO;
 import io.tokhn.core.Transaction;
+import io.tokhn.core.TxLocation;
 import io.tokhn.core.UTXO;
 import io.tokhn.core.Wallet;
+import io.tokhn.grpc.AddressHistoryRequest;
+import io.tokhn.grpc.AddressHistoryResponse;
 import io.tokhn.grpc.BlockModel;
 import io.tokhn.grpc.BlockRequest;
 import io.tokhn.grpc.BlockResponse;
+import io.tokhn.grpc.BlockTransactionsRequest;
+import io.tokhn.grpc.BlockTransactionsResponse;
+import io.tokhn.grpc.CompactBlockModel;
+import io.tokhn.grpc.MetricsRequest;
+import io.tokhn.grpc.MetricsResponse;
 import io.tokhn.grpc.NetworkModel;
 import io.tokhn.grpc.PartialChainRequest;
 import io.tokhn.grpc.PartialChainResponse;
+import io.tokhn.grpc.SubscriptionEvent;
+import io.tokhn.grpc.SubscriptionRequest;
 import io.tokhn.grpc.TokhnServiceGrpc;
 import io.tokhn.grpc.TokhnServiceGrpc.TokhnServiceImplBase;
 import io.tokhn.grpc.TokhnServiceGrpc.TokhnServiceStub;
 import io.tokhn.grpc.TransactionModel;
+import io.tokhn.grpc.TransactionRequest;
+import io.tokhn.grpc.TransactionResponse;
+import io.tokhn.grpc.TxiRequest;
+import io.tokhn.grpc.TxiResponse;
+import io.tokhn.grpc.TxoRequest;
+import io.tokhn.grpc.TxoResponse;
 import io.tokhn.grpc.UtxoRequest;
 import io.tokhn.grpc.UtxoResponse;
 import io.tokhn.grpc.WelcomeModel;
 import io.tokhn.grpc.WelcomeRequest;
 import io.tokhn.grpc.WelcomeRequest.PeerType;
 import io.tokhn.grpc.WelcomeResponse;
+import io.tokhn.store.CachingBlockStore;
+import io.tokhn.store.CachingUTXOStore;
+import io.tokhn.store.FlatFileBlockStore;
+import io.tokhn.store.HeapAddressIndexStore;
+import io.tokhn.store.HeapBlockStore;
+import io.tokhn.store.HeapTxIndexStore;
+import io.tokhn.store.MapDBAddressIndexStore;
 import io.tokhn.store.MapDBBlockStore;
+import io.tokhn.store.MapDBTxIndexStore;
 import io.tokhn.store.MapDBUTXOStore;
 import io.tokhn.store.MapDBWalletStore;
+import io.tokhn.store.MeteredUTXOStore;
+import io.tokhn.store.OffHeapUTXOStore;
+import io.tokhn.util.BloomFilter;
 import io.tokhn.util.GRPC;
 import io.tokhn.util.Hash;
+import io.tokhn.util.Log;
+import io.tokhn.util.Metrics;
+import io.tokhn.util.Metrics.Meter;
 
 public class TokhnServiceImpl extends TokhnServiceImplBase {
 	private static final Set<Peer> nodes = new HashSet<>();
-	private static final List<StreamObserver<TransactionModel>> txObservers = new ArrayList<>();
-	private static final List<StreamObserver<BlockModel>> blockObservers = new ArrayList<>();
+	private static final List<StreamObserver<TransactionModel>> txObservers = new CopyOnWriteArrayList<>();
+	private static final List<StreamObserver<BlockModel>> blockObservers = new CopyOnWriteArrayList<>();
+	private static final List<TokhnServiceStub> peerStubs = new CopyOnWriteArrayList<>();
+	private static final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+	private static final List<StreamObserver<CompactBlockModel>> compactObservers = new CopyOnWriteArrayList<>();
+	//compact blocks waiting on transactions from peers, with the ones we have filled in
+	private final Map<Hash, List<Transaction>> pendingBlocks = new ConcurrentHashMap<>();
+	//past this many, compact blocks are fetched whole instead of waiting on their transactions
+	private static final int MAX_PENDING_BLOCKS = 100;
+	//how long a peer gets to answer before the next one is asked, so a pending block can't wait forever
+	private static final long PEER_TIMEOUT = 30; //in seconds
+	//where the next request to a single peer starts, so the requests are spread over all of them
+	private final AtomicInteger nextPeer = new AtomicInteger();
+	private final Map<Network, Mempool> mempools = new HashMap<>();
+	private final Map<Network, InternalMiner> miners = new HashMap<>();
 	private final Map<Network, Blockchain> chains = new HashMap<>();
+	private static final int DEFAULT_HISTORY_PAGE = 100;
+	private static final int MAX_HISTORY_PAGE = 1000;
 	private Wallet wallet = null;
+	private final Meter blocksReceived = Metrics.meter("node.blocks.received");
+	private final Meter transactionsReceived = Metrics.meter("node.transactions.received");
+	private final Meter transactionsRelayed = Metrics.meter("node.transactions.relayed");
+	private final Meter transactionsRejected = Metrics.meter("node.transactions.rejected");
 	
-	public TokhnServiceImpl(Set<Network> networks) {
+	/**
+	 * 
+	 * @param inMemory Keeps the chains in memory only, with the UTXOs in direct memory, so they start over every time
+	 * @param pruneDepth How many of the latest blocks keep their transactions or 0 to keep them all, which has to be 0 with either index
+	 */
+	public TokhnServiceImpl(Set<Network> networks, boolean revalidate, boolean txIndex, boolean addressIndex, boolean flatFiles, boolean inMemory, int pruneDepth, long mineInterval) {
+		if(inMemory && flatFiles) {
+			throw new IllegalArgumentException("Flat files can't be used for chains kept in memory");
+		} else if(pruneDepth != 0 && (txIndex || addressIndex)) {
+			throw new IllegalArgumentException("The indexes can't be kept for pruned chains");
+		}
+		
 		//get all the chains setup first
 		networks.forEach(n -> {
-			chains.put(n, new Blockchain(n, new MapDBBlockStore(n), new MapDBUTXOStore(n)));
+			try {
+				Blockchain chain = inMemory ? openInMemory(n, txIndex, addressIndex, pruneDepth) : openOnDisk(n, txIndex, addressIndex, flatFiles, pruneDepth);
+				chains.put(n, chain);
+				Mempool mempool = new Mempool();
+				mempools.put(n, mempool);
+				Metrics.gauge(n + ".mempool", () -> mempool.size());
+				//the wallet isn't loaded yet, so the reward address is looked up for each block
+				miners.put(n, new InternalMiner(chain, () -> wallet == null ? n.getCharityAddress() : wallet.getAddress(n), b -> onNextBlock(chain, b, GRPC.transform(b)), mineInterval));
+				//the UTXO cache holds back changes between flushes, so they are written out on the way down
+				Runtime.getRuntime().addShutdownHook(new Thread() {
+					@Override
+					public void run() {
+						chain.flush();
+						chain.close();
+					}
+				});
+				if(revalidate) {
+					chain.revalidate().whenComplete((v, e) -> {
+						if(e != null) {
+							System.err.printf("%s chain failed revalidation: %s\n", n, e.getMessage());
+							System.exit(-1);
+						}
+						System.out.printf("%s chain revalidated\n", n);
+					});
+				}
+			} catch(InvalidChainException e) {
+				System.err.printf("%s chain is corrupt: %s\n", n, e.getMessage());
+				System.exit(-1);
+			} catch(IllegalArgumentException e) {
+				System.err.printf("%s chain can't be opened: %s\n", n, e.getMessage());
+				System.exit(-1);
+			}
 			nodes.add(new Peer(n.getParams().getHost(), n.getParams().getPort()));
 		});
 		
+		Metrics.gauge("node.peers", () -> peerStubs.size());
+		Metrics.gauge("node.observers.transactions", () -> txObservers.size());
+		Metrics.gauge("node.observers.blocks", () -> blockObservers.size());
+		Metrics.gauge("node.observers.compact", () -> compactObservers.size());
+		Metrics.gauge("node.subscriptions", () -> subscriptions.size());
+		Metrics.gauge("node.pending.blocks", () -> pendingBlocks.size());
+		
 		nodes.forEach(p -> {
 			ManagedChannel channel = ManagedChannelBuilder.forAddress(p.getHost(), p.getPort()).usePlaintext(true).build();
 			
@@ -86,6 +206,7 @@ public class TokhnServiceImpl extends TokhnServiceImplBase {
 			});
 			
 			TokhnServiceStub tokhnStub = TokhnServiceGrpc.newStub(channel);
+			peerStubs.add(tokhnStub);
 			
 			tokhnStub.getWelcome(WelcomeRequest.newBuilder().setPeerType(PeerType.NODE).build(), new StreamObserver<WelcomeResponse>() {
 				@Override
@@ -96,7 +217,10 @@ public class TokhnServiceImpl extends TokhnServiceImplBase {
 						int chainIndex = chain.getLength();
 						int welcomeIndex = welcomeModel.getLatestBlock().getIndex();
 						
-						if(welcomeIndex > chainIndex) {
+						if(welcomeIndex > chainIndex && welcomeModel.getPrunedIndex() > chainIndex + 1) {
+							//the blocks we need next were pruned from that node
+							Log.info("%s peer %s:%d can only serve blocks from %d", network, p.getHost(), p.getPort(), welcomeModel.getPrunedIndex());
+						} else if(welcomeIndex > chainIndex) {
 							//someone is claiming a further along chain
 							if(welcomeIndex - chainIndex != 1) {
 								//we are missing a bunch of blocks
@@ -111,16 +235,18 @@ public class TokhnServiceImpl extends TokhnServiceImplBase {
 												chain.addBlockToChain(block);
 											}
 										}
+										//blocks that arrived out of order will have connected by now, so only ask for what is still missing
+										partialChainResponse.getBlocksList().stream().map(b -> chain.getMissingAncestor(GRPC.getHash(b))).filter(h -> h != null).distinct().forEach(h -> requestBlock(chain.getNetwork(), h));
 									}
 									
 									@Override
 									public void onError(Throwable t) {
-										System.err.println(t);
+										Log.warn("%s", t);
 									}
 									
 									@Override
 									public void onCompleted() {
-										System.out.println("Completed handling partial chain");
+										Log.debug("Completed handling partial chain");
 									}
 								});
 							}
@@ -130,21 +256,21 @@ public class TokhnServiceImpl extends TokhnServiceImplBase {
 				
 				@Override
 				public void onError(Throwable t) {
-					System.err.println(t);
+					Log.warn("%s", t);
 				}
 				
 				@Override
 				public void onCompleted() {
-					System.out.println("Completed handling welcome");
+					Log.debug("Completed handling welcome");
 					StreamObserver<TransactionModel> txObserver = tokhnStub.streamTransactions(new StreamObserver<TransactionModel>() {
 						@Override
 						public void onCompleted() {
-							System.out.println("Transaction stream completed");
+							Log.debug("Transaction stream completed");
 						}
 						
 						@Override
 						public void onError(Throwable t) {
-							System.err.println(t);
+							Log.warn("%s", t);
 						}
 						
 						@Override
@@ -152,25 +278,8 @@ public class TokhnServiceImpl extends TokhnServiceImplBase {
 							onNextTransaction(transactionModel);
 						}
 					});
-					StreamObserver<BlockModel> blockObserver = tokhnStub.streamBlocks(new StreamObserver<BlockModel>() {
-						@Override
-						public void onCompleted() {
-							System.out.println("Block stream completed");
-						}
-						
-						@Override
-						public void onError(Throwable t) {
-							System.err.println(t);
-						}
-						
-						@Override
-						public void onNext(BlockModel blockModel) {
-							onNextBlock(blockModel);
-						}
-					});
-					
 					txObservers.add(txObserver);
-					blockObservers.add(blockObserver);
+					streamCompactBlocks(tokhnStub);
 				}
 			});
 		});
@@ -186,32 +295,126 @@ public class TokhnServiceImpl extends TokhnServiceImplBase {
 		}
 	}
 	
+	private Blockchain openOnDisk(Network n, boolean txIndex, boolean addressIndex, boolean flatFiles, int pruneDepth) throws InvalidChainException {
+		CachingBlockStore bStore = new CachingBlockStore(flatFiles ? new FlatFileBlockStore(n) : new MapDBBlockStore(n));
+		CachingUTXOStore uStore = new CachingUTXOStore(new MapDBUTXOStore(n));
+		Metrics.gauge(n + ".block.cache.hit.ratio", () -> bStore.getHitRatio());
+		return new Blockchain(n, bStore, new MeteredUTXOStore(uStore), txIndex || addressIndex ? new MapDBTxIndexStore(n) : null, addressIndex ? new MapDBAddressIndexStore(n) : null, pruneDepth);
+	}
+	
+	private Blockchain openInMemory(Network n, boolean txIndex, boolean addressIndex, int pruneDepth) throws InvalidChainException {
+		OffHeapUTXOStore uStore = new OffHeapUTXOStore(n);
+		Metrics.gauge(n + ".utxo.offheap.bytes", () -> uStore.getOffHeapBytes());
+		return new Blockchain(n, new HeapBlockStore(n), new MeteredUTXOStore(uStore), txIndex || addressIndex ? new HeapTxIndexStore(n) : null, addressIndex ? new HeapAddressIndexStore(n) : null, pruneDepth);
+	}
+	
+	private void streamCompactBlocks(TokhnServiceStub tokhnStub) {
+		AtomicReference<StreamObserver<CompactBlockModel>> compactObserver = new AtomicReference<>();
+		compactObserver.set(tokhnStub.streamCompactBlocks(new StreamObserver<CompactBlockModel>() {
+			@Override
+			public void onCompleted() {
+				Log.debug("Compact block stream completed");
+			}
+			
+			@Override
+			public void onError(Throwable t) {
+				compactObservers.remove(compactObserver.get());
+				if(Status.fromThrowable(t).getCode() == Status.Code.UNIMPLEMENTED) {
+					//the peer is older than compact blocks, so we exchange whole blocks with it
+					streamBlocks(tokhnStub);
+				} else {
+					Log.warn("%s", t);
+				}
+			}
+			
+			@Override
+			public void onNext(CompactBlockModel compactBlockModel) {
+				onNextCompactBlock(compactBlockModel);
+			}
+		}));
+		compactObservers.add(compactObserver.get());
+	}
+	
+	private void streamBlocks(TokhnServiceStub tokhnStub) {
+		StreamObserver<BlockModel> blockObserver = tokhnStub.streamBlocks(new StreamObserver<BlockModel>() {
+			@Override
+			public void onCompleted() {
+				Log.debug("Block stream completed");
+			}
+			
+			@Override
+			public void onError(Throwable t) {
+				Log.warn("%s", t);
+			}
+			
+			@Override
+			public void onNext(BlockModel blockModel) {
+				onNextBlock(blockModel);
+			}
+		});
+		blockObservers.add(blockObserver);
+	}
+	
 	public void getWelcome(WelcomeRequest request, StreamObserver<WelcomeResponse> responseObserver) {
 		PeerType peerType = request.getPeerType();
-		System.out.printf("A %s just joined.\n", peerType);
+		Log.info("A %s just joined", peerType);
 		
 		responseObserver.onNext(WelcomeResponse.newBuilder().addAllWelcomes(chains.values().stream().map(chain -> {
-			return WelcomeModel.newBuilder().setNetwork(NetworkModel.valueOf(chain.getNetwork().name())).setTimestamp(Instant.now().getEpochSecond()).setDifficulty(chain.getDifficulty()).setReward(chain.getReward()).setLatestBlock(GRPC.transform(chain.getLatestBlock())).build();
+			ChainState state = chain.getState();
+			return WelcomeModel.newBuilder().setNetwork(NetworkModel.valueOf(chain.getNetwork().name())).setTimestamp(Instant.now().getEpochSecond()).setDifficulty(state.getDifficulty()).setReward(state.getReward()).setLatestBlock(GRPC.transform(state.getLatestBlock())).setPrunedIndex(state.getPrunedIndex()).build();
 		}).collect(Collectors.toList())).build());
 		responseObserver.onCompleted();
 	}
 	
+	/**
+	 * 
+	 * @return The index of the latest block of the chain or 0 if the network isn't served
+	 */
+	public int getLength(Network network) {
+		Blockchain chain = chains.get(network);
+		return chain == null ? 0 : chain.getLength();
+	}
+	
 	public void getBlock(BlockRequest request, StreamObserver<BlockResponse> responseObserver) {
 		Network network = Network.valueOf(request.getNetwork().name());
 		Blockchain chain = chains.get(network);
-		responseObserver.onNext(BlockResponse.newBuilder().setNetwork(NetworkModel.valueOf(chain.getNetwork().name())).setBlock(GRPC.transform(chain.getBlock(new Hash(request.getHash())))).build());
-		responseObserver.onCompleted();
+		LocalBlock block = chain.getBlock(new Hash(request.getHash()));
+		if(block != null && block.isPruned()) {
+			responseObserver.onError(new Exception("Requested block was pruned"));
+		} else if(block != null) {
+			responseObserver.onNext(BlockResponse.newBuilder().setNetwork(NetworkModel.valueOf(chain.getNetwork().name())).setBlock(GRPC.transform(block)).build());
+			responseObserver.onCompleted();
+		} else {
+			responseObserver.onError(new Exception("Requested block not found"));
+		}
 	}
 	
 	public void getPartialChain(PartialChainRequest request, StreamObserver<PartialChainResponse> responseObserver) {
 		Network network = Network.valueOf(request.getNetwork().name());
 		Blockchain chain = chains.get(network);
-		if(chain.getLength() >= request.getEndIndex()) {
+		ChainState state = chain.getState();
+		//genesis is never pruned, so only blocks from 1 up to the pruned index are gone
+		int firstPrunable = Math.max(request.getStartIndex(), 1);
+		if(firstPrunable < state.getPrunedIndex() && request.getEndIndex() >= firstPrunable) {
+			responseObserver.onError(new Exception("Requested chain was pruned"));
+		} else if(state.getLength() >= request.getEndIndex()) {
 			//we have the requested blocks
 			LinkedList<Block> blocks = new LinkedList<>();
-			LocalBlock b = chain.getLatestBlock();
+			LocalBlock b = state.getLatestBlock();
 			while(b != null) {
-				if(b.getIndex() >= request.getStartIndex() && b.getIndex() <= request.getEndIndex()) {
+				if(b.getIndex() < request.getStartIndex()) {
+					//everything further back is before the range
+					break;
+				} else if(Context.current().isCancelled()) {
+					//the deadline ran out or the client went away, so nobody is left to answer
+					return;
+				}
+				if(b.getIndex() <= request.getEndIndex()) {
+					if(b.isPruned()) {
+						//the chain was pruned since we looked
+						responseObserver.onError(new Exception("Requested chain was pruned"));
+						return;
+					}
 					blocks.addFirst(b);
 				}
 				b = chain.getBlock(b.getPreviousHash());
@@ -231,10 +434,92 @@ public class TokhnServiceImpl extends TokhnServiceImplBase {
 			responseObserver.onNext(UtxoResponse.newBuilder().setNetwork(NetworkModel.valueOf(chain.getNetwork().name())).addAllUtxos(utxos.stream().map(utxo -> GRPC.transform(utxo)).collect(Collectors.toList())).build());
 			responseObserver.onCompleted();
 		} catch(InvalidNetworkException e) {
-			System.err.println(e);
+			Log.warn("%s", e);
+		}
+	}
+	
+	public void geTxis(TxiRequest request, StreamObserver<TxiResponse> responseObserver) {
+		Network network = Network.valueOf(request.getNetwork().name());
+		Blockchain chain = chains.get(network);
+		Transaction tx = findTransaction(chain, request.getSourceTxId(), responseObserver);
+		if(tx != null) {
+			responseObserver.onNext(TxiResponse.newBuilder().setNetwork(NetworkModel.valueOf(chain.getNetwork().name())).addAllTxis(tx.getTxis().stream().map(txi -> GRPC.transform(txi)).collect(Collectors.toList())).build());
+			responseObserver.onCompleted();
+		}
+	}
+	
+	public void geTxos(TxoRequest request, StreamObserver<TxoResponse> responseObserver) {
+		Network network = Network.valueOf(request.getNetwork().name());
+		Blockchain chain = chains.get(network);
+		Transaction tx = findTransaction(chain, request.getSourceTxId(), responseObserver);
+		if(tx != null) {
+			responseObserver.onNext(TxoResponse.newBuilder().setNetwork(NetworkModel.valueOf(chain.getNetwork().name())).addAllTxos(tx.getTxos().stream().map(txo -> GRPC.transform(txo)).collect(Collectors.toList())).build());
+			responseObserver.onCompleted();
+		}
+	}
+	
+	public void getTransaction(TransactionRequest request, StreamObserver<TransactionResponse> responseObserver) {
+		Network network = Network.valueOf(request.getNetwork().name());
+		Blockchain chain = chains.get(network);
+		Transaction tx = findTransaction(chain, request.getId(), responseObserver);
+		if(tx != null) {
+			TxLocation location = chain.getTxLocation(tx.getId());
+			if(location == null) {
+				//the chain reorganized away from it while we were looking
+				responseObserver.onError(new Exception("Requested transaction not found"));
+				return;
+			}
+			responseObserver.onNext(TransactionResponse.newBuilder().setNetwork(NetworkModel.valueOf(chain.getNetwork().name())).setTransaction(GRPC.transform(network, tx)).setBlockHash(location.getBlockHash().toString()).setBlockIndex(location.getBlockIndex()).build());
+			responseObserver.onCompleted();
 		}
 	}
 	
+	public void getAddressHistory(AddressHistoryRequest request, StreamObserver<AddressHistoryResponse> responseObserver) {
+		Network network = Network.valueOf(request.getNetwork().name());
+		Blockchain chain = chains.get(network);
+		if(!chain.hasAddressIndex()) {
+			responseObserver.onError(new Exception("Address index is not enabled"));
+			return;
+		}
+		
+		try {
+			Address address = new Address(request.getAddress().toByteArray());
+			int limit = request.getLimit() <= 0 ? DEFAULT_HISTORY_PAGE : Math.min(request.getLimit(), MAX_HISTORY_PAGE);
+			//the cursor is the block index and position of the last entry already sent
+			int beforeBlockIndex = Integer.MAX_VALUE;
+			int beforePosition = Integer.MAX_VALUE;
+			if(!request.getCursor().isEmpty()) {
+				String[] parts = request.getCursor().split(":");
+				beforeBlockIndex = Integer.parseInt(parts[0]);
+				beforePosition = Integer.parseInt(parts[1]);
+			}
+			
+			List<AddressHistory> history = chain.getAddressHistory(address, beforeBlockIndex, beforePosition, limit);
+			AddressHistoryResponse.Builder response = AddressHistoryResponse.newBuilder().setNetwork(NetworkModel.valueOf(chain.getNetwork().name())).addAllHistory(history.stream().map(h -> GRPC.transform(h)).collect(Collectors.toList()));
+			if(history.size() == limit) {
+				AddressHistory last = history.get(history.size() - 1);
+				response.setNextCursor(last.getBlockIndex() + ":" + last.getPosition());
+			}
+			responseObserver.onNext(response.build());
+			responseObserver.onCompleted();
+		} catch(InvalidNetworkException | NumberFormatException | ArrayIndexOutOfBoundsException e) {
+			responseObserver.onError(new Exception("Invalid address history request"));
+		}
+	}
+	
+	private Transaction findTransaction(Blockchain chain, String txId, StreamObserver<?> responseObserver) {
+		if(!chain.hasTxIndex()) {
+			responseObserver.onError(new Exception("Transaction index is not enabled"));
+			return null;
+		}
+		
+		Transaction tx = chain.getTransaction(new Hash(txId));
+		if(tx == null) {
+			responseObserver.onError(new Exception("Requested transaction not found"));
+		}
+		return tx;
+	}
+	
 	public StreamObserver<TransactionModel> streamTransactions(StreamObserver<TransactionModel> responseObserver) {
 		//add it to our list of observers
 		txObservers.add(responseObserver);
@@ -247,7 +532,7 @@ public class TokhnServiceImpl extends TokhnServiceImplBase {
 			
 			@Override
 			public void onError(Throwable t) {
-				System.err.println(t);
+				Log.warn("%s", t);
 			}
 			
 			@Override
@@ -272,7 +557,7 @@ public class TokhnServiceImpl extends TokhnServiceImplBase {
 			
 			@Override
 			public void onError(Throwable t) {
-				System.err.println(t);
+				Log.warn("%s", t);
 			}
 			
 			@Override
@@ -285,37 +570,300 @@ public class TokhnServiceImpl extends TokhnServiceImplBase {
 		};
 	}
 	
+	public void subscribe(SubscriptionRequest request, StreamObserver<SubscriptionEvent> responseObserver) {
+		try {
+			Network network = Network.valueOf(request.getNetwork().name());
+			Set<Address> addresses = new HashSet<>();
+			for(ByteString address : request.getAddressesList()) {
+				addresses.add(new Address(address.toByteArray()));
+			}
+			BloomFilter filter = request.hasFilter() ? GRPC.transform(request.getFilter()) : null;
+			ServerCallStreamObserver<SubscriptionEvent> serverObserver = (ServerCallStreamObserver<SubscriptionEvent>) responseObserver;
+			Subscription subscription = new Subscription(network, addresses, filter, serverObserver);
+			//the client never sends anything else, so it ends the subscription by cancelling the call
+			serverObserver.setOnCancelHandler(() -> subscriptions.remove(subscription));
+			subscriptions.add(subscription);
+		} catch(InvalidNetworkException | IllegalArgumentException e) {
+			responseObserver.onError(e);
+		}
+	}
+	
+	public StreamObserver<CompactBlockModel> streamCompactBlocks(StreamObserver<CompactBlockModel> responseObserver) {
+		//add it to our list of observers
+		compactObservers.add(responseObserver);
+		
+		return new StreamObserver<CompactBlockModel>() {
+			@Override
+			public void onNext(CompactBlockModel compactBlockModel) {
+				onNextCompactBlock(compactBlockModel);
+			}
+			
+			@Override
+			public void onError(Throwable t) {
+				Log.warn("%s", t);
+			}
+			
+			@Override
+			public void onCompleted() {
+				//guess the peer doesn't want to exchange blocks anymore
+				responseObserver.onCompleted();
+				//remove it from our list of observers
+				compactObservers.remove(responseObserver);
+			}
+		};
+	}
+	
+	public void getBlockTransactions(BlockTransactionsRequest request, StreamObserver<BlockTransactionsResponse> responseObserver) {
+		Network network = Network.valueOf(request.getNetwork().name());
+		Blockchain chain = chains.get(network);
+		LocalBlock block = chain.getBlock(new Hash(request.getBlockHash()));
+		if(block == null || block.isPruned()) {
+			responseObserver.onError(new Exception("Block not available"));
+			return;
+		}
+		
+		BlockTransactionsResponse.Builder response = BlockTransactionsResponse.newBuilder().setNetwork(request.getNetwork()).setBlockHash(request.getBlockHash());
+		List<Transaction> txs = block.getTransactions();
+		for(int position : request.getPositionsList()) {
+			if(position < 0 || position >= txs.size()) {
+				responseObserver.onError(new Exception("No transaction at " + position));
+				return;
+			}
+			response.addPositions(position).addTransactions(GRPC.transform(network, txs.get(position)));
+		}
+		responseObserver.onNext(response.build());
+		responseObserver.onCompleted();
+	}
+	
+	public void getMetrics(MetricsRequest request, StreamObserver<MetricsResponse> responseObserver) {
+		MetricsResponse.Builder response = MetricsResponse.newBuilder();
+		Metrics.getAll(request.getPrefix()).forEach((name, metric) -> response.addMetrics(GRPC.transform(name, metric)));
+		responseObserver.onNext(response.build());
+		responseObserver.onCompleted();
+	}
+	
 	private void onNextBlock(BlockModel blockModel) {
+		blocksReceived.mark();
 		Network network = Network.valueOf(blockModel.getNetwork().name());
 		Blockchain chain = chains.get(network);
-		if(chain.getBlock(new Hash(blockModel.getHash())) != null) {
+		Block block = GRPC.transform(blockModel);
+		if(chain.getBlock(block.getHash()) != null) {
 			//we already have it so don't bother
-		} else if(chain.addBlockToChain(GRPC.transform(blockModel))) {
-			// broadcast new block to peers
+			return;
+		}
+		
+		onNextBlock(chain, block, blockModel);
+	}
+	
+	private boolean onNextBlock(Blockchain chain, Block block, BlockModel blockModel) {
+		Network network = chain.getNetwork();
+		Map<Hash, Address> spent = getSpentAddresses(chain, block.getTransactions());
+		if(chain.addBlockToChain(block)) {
+			mempools.get(network).removeAll(block.getTransactions());
+			miners.get(network).onNewTip(block);
+			// broadcast new block to peers, the ones that take compact blocks will rebuild it from their mempool
 			for(StreamObserver<BlockModel> observer : blockObservers) {
 				observer.onNext(blockModel);
 			}
+			CompactBlockModel compactBlockModel = GRPC.transform(CompactBlock.of(block));
+			for(StreamObserver<CompactBlockModel> observer : compactObservers) {
+				observer.onNext(compactBlockModel);
+			}
+			confirm(block, spent);
+			return true;
+		} else {
+			Hash missing = chain.getMissingAncestor(block.getHash());
+			if(missing != null) {
+				requestBlock(network, missing);
+			}
+			return false;
 		}
 	}
 	
+	private void onNextCompactBlock(CompactBlockModel compactBlockModel) {
+		blocksReceived.mark();
+		Network network = Network.valueOf(compactBlockModel.getNetwork().name());
+		Blockchain chain = chains.get(network);
+		Hash hash = GRPC.getHash(compactBlockModel);
+		if(chain.getBlock(hash) != null || pendingBlocks.containsKey(hash)) {
+			//we already have it or are still rebuilding it
+			return;
+		}
+		
+		CompactBlock compact = GRPC.transform(compactBlockModel);
+		List<Transaction> txs = compact.fill(mempools.get(network));
+		List<Integer> missing = CompactBlock.getMissing(txs);
+		if(missing.isEmpty()) {
+			completeCompactBlock(chain, compact, txs);
+			return;
+		}
+		
+		if(pendingBlocks.size() >= MAX_PENDING_BLOCKS) {
+			//too many are already waiting on peers, so we just ask for the whole block
+			requestBlock(network, hash);
+			return;
+		}
+		
+		if(pendingBlocks.putIfAbsent(hash, txs) != null) {
+			//another peer announced it while we were filling it in
+			return;
+		}
+		BlockTransactionsRequest request = BlockTransactionsRequest.newBuilder().setNetwork(compactBlockModel.getNetwork()).setBlockHash(hash.toString()).addAllPositions(missing).build();
+		askPeers((stub, observer) -> stub.getBlockTransactions(request, observer), (BlockTransactionsResponse response) -> {
+			List<Transaction> pending = pendingBlocks.remove(hash);
+			if(pending == null) {
+				//it was already filled in
+				return;
+			}
+			for(int itr = 0; itr < response.getPositionsCount() && itr < response.getTransactionsCount(); itr++) {
+				int position = response.getPositions(itr);
+				if(position >= 0 && position < pending.size()) {
+					pending.set(position, GRPC.transform(response.getTransactions(itr)));
+				}
+			}
+			completeCompactBlock(chain, compact, pending);
+		}, () -> {
+			//nobody could send the transactions, so we fall back to the whole block
+			pendingBlocks.remove(hash);
+			Log.warn("%s is missing %d transactions and no peer could send them", compact, missing.size());
+			requestBlock(network, hash);
+		});
+	}
+	
+	private void completeCompactBlock(Blockchain chain, CompactBlock compact, List<Transaction> txs) {
+		Block block = compact.toBlock(txs);
+		if(block == null) {
+			//a short id matched the wrong transaction, or a peer sent a bad one, so we fall back to the whole block
+			requestBlock(chain.getNetwork(), compact.getHash());
+		} else {
+			onNextBlock(chain, block, GRPC.transform(block));
+		}
+	}
+	
+	private void requestBlock(Network network, Hash hash) {
+		BlockRequest request = BlockRequest.newBuilder().setNetwork(NetworkModel.valueOf(network.name())).setHash(hash.toString()).build();
+		//this goes through the normal path, so it will connect any waiting orphans or ask for the next missing block
+		askPeers((stub, observer) -> stub.getBlock(request, observer), (BlockResponse blockResponse) -> onNextBlock(blockResponse.getBlock()), () -> Log.warn("%s no peer could send block %s", network, hash));
+	}
+	
+	/**
+	 * Asks one peer at a time, moving on to the next one if it fails, until
+	 * one answers or they have all failed.
+	 */
+	private <T> void askPeers(BiConsumer<TokhnServiceStub, StreamObserver<T>> call, Consumer<T> answered, Runnable failed) {
+		List<TokhnServiceStub> stubs = new ArrayList<>(peerStubs);
+		if(stubs.isEmpty()) {
+			failed.run();
+		} else {
+			askPeer(stubs, Math.floorMod(nextPeer.getAndIncrement(), stubs.size()), stubs.size(), call, answered, failed);
+		}
+	}
+	
+	private <T> void askPeer(List<TokhnServiceStub> stubs, int peer, int remaining, BiConsumer<TokhnServiceStub, StreamObserver<T>> call, Consumer<T> answered, Runnable failed) {
+		call.accept(stubs.get(peer).withDeadlineAfter(PEER_TIMEOUT, TimeUnit.SECONDS), new StreamObserver<T>() {
+			@Override
+			public void onNext(T response) {
+				answered.accept(response);
+			}
+			
+			@Override
+			public void onError(Throwable t) {
+				Log.warn("%s", t);
+				if(remaining > 1) {
+					askPeer(stubs, (peer + 1) % stubs.size(), remaining - 1, call, answered, failed);
+				} else {
+					failed.run();
+				}
+			}
+			
+			@Override
+			public void onCompleted() {
+				//the response was already handled in onNext
+			}
+		});
+	}
+	
 	private void onNextTransaction(TransactionModel transactionModel) {
+		transactionsReceived.mark();
 		Network network = Network.valueOf(transactionModel.getNetwork().name());
 		Blockchain chain = chains.get(network);
 		if(network.getParams().getMaxInternalMineDifficulty() >= chain.getDifficulty()) {
-			Block latestBlock = chain.getLatestBlock();
-			List<Transaction> transactions = new LinkedList<>();
-			Address address = network.getCharityAddress();
-			if(wallet != null) {
-				address = wallet.getAddress(network);
-			}
-			transactions.add(Transaction.rewardOf(address, chain.getReward()));
-			transactions.add(GRPC.transform(transactionModel));
-			chain.addBlockToChain(Block.findBlock(network, latestBlock.getIndex() + 1, latestBlock.getHash(), transactions, chain.getDifficulty()));
+			//mining happens on the miner's own thread, so this stream can keep taking transactions
+			miners.get(network).submit(GRPC.transform(transactionModel));
 		} else {
+			Transaction tx = GRPC.transform(transactionModel);
+			Mempool mempool = mempools.get(network);
+			if(mempool.get(tx.getId()) != null) {
+				//we relayed it already, which also keeps it from going around in circles between peers
+				return;
+			} else if(!chain.isValidTransaction(tx)) {
+				//an invalid transaction is neither kept nor passed on, so it doesn't spread past the first honest peer
+				transactionsRejected.mark();
+				Log.debug("Dropping invalid transaction %s", tx.getId());
+				return;
+			}
+			mempool.put(tx);
+			transactionsRelayed.mark();
 			//we are only going to relay the transaction if we aren't internal mining
 			for(StreamObserver<TransactionModel> observer : txObservers) {
 				observer.onNext(transactionModel);
 			}
+			Map<Hash, Address> spent = getSpentAddresses(chain, Collections.singletonList(tx));
+			for(Subscription subscription : subscriptions) {
+				if(subscription.getNetwork() == network && subscription.matches(tx, spent)) {
+					send(subscription, () -> subscription.sendTransaction(tx));
+				}
+			}
+		}
+	}
+	
+	/*
+	 * subscriptions match inputs by the address they spend from, which is
+	 * only in the UTXO set until the block spending it is added, so we look
+	 * them up first
+	 */
+	private Map<Hash, Address> getSpentAddresses(Blockchain chain, List<Transaction> transactions) {
+		Map<Hash, Address> spent = new HashMap<>();
+		Network network = chain.getNetwork();
+		if(subscriptions.stream().noneMatch(s -> s.getNetwork() == network)) {
+			return spent;
+		}
+		
+		for(Transaction tx : transactions) {
+			for(TXI txi : tx.getTxis()) {
+				Hash utxoId = UTXO.hash(network, txi);
+				if(!spent.containsKey(utxoId)) {
+					UTXO utxo = chain.getUtxo(utxoId);
+					if(utxo != null) {
+						spent.put(utxoId, utxo.getAddress());
+					}
+				}
+			}
+			//a later transaction in the same block can spend these
+			List<TXO> txos = tx.getTxos();
+			for(int itr = 0; itr < txos.size(); itr++) {
+				spent.put(UTXO.hash(network, tx.getId(), itr), txos.get(itr).getAddress());
+			}
+		}
+		return spent;
+	}
+	
+	private void confirm(Block block, Map<Hash, Address> spent) {
+		for(Subscription subscription : subscriptions) {
+			if(subscription.getNetwork() == block.getNetwork()) {
+				send(subscription, () -> subscription.sendConfirmation(block, spent));
+			}
+		}
+	}
+	
+	private void send(Subscription subscription, BooleanSupplier send) {
+		try {
+			if(!send.getAsBoolean()) {
+				subscriptions.remove(subscription);
+			}
+		} catch(StatusRuntimeException e) {
+			//the client went away without us hearing about it
+			subscriptions.remove(subscription);
 		}
 	}
 }
\ No newline at end of file
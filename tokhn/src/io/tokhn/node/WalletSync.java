@@ -0,0 +1,256 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.node;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.stream.Collectors;
+
+import com.google.protobuf.ByteString;
+
+import io.grpc.ManagedChannel;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.tokhn.core.Address;
+import io.tokhn.core.Block;
+import io.tokhn.core.UTXO;
+import io.tokhn.core.Wallet;
+import io.tokhn.core.WalletDelta;
+import io.tokhn.grpc.NetworkModel;
+import io.tokhn.grpc.PartialChainRequest;
+import io.tokhn.grpc.PartialChainResponse;
+import io.tokhn.grpc.SubscriptionEvent;
+import io.tokhn.grpc.SubscriptionRequest;
+import io.tokhn.grpc.TokhnServiceGrpc;
+import io.tokhn.grpc.TokhnServiceGrpc.TokhnServiceBlockingStub;
+import io.tokhn.grpc.TokhnServiceGrpc.TokhnServiceStub;
+import io.tokhn.grpc.UtxoRequest;
+import io.tokhn.grpc.WelcomeModel;
+import io.tokhn.grpc.WelcomeRequest;
+import io.tokhn.grpc.WelcomeRequest.PeerType;
+import io.tokhn.util.GRPC;
+import io.tokhn.util.Hash;
+import io.tokhn.util.Log;
+
+/*
+ * Keeps a wallet's UTXOs for one network in step with a node by applying
+ * blocks as they come instead of pulling the whole UTXO list every time. The
+ * wallet remembers the last block it applied, so a restart only fetches the
+ * blocks since then. The full UTXO list is only pulled the first time, or
+ * when a reorganization goes deeper than the blocks the wallet remembers.
+ * 
+ * Announced blocks are handled on a thread of our own, since a resync makes
+ * blocking calls that mustn't hold up the gRPC thread delivering them.
+ */
+public class WalletSync implements AutoCloseable {
+	//how many blocks to ask for at once while catching up
+	private static final int BATCH_SIZE = 100;
+	private final Wallet wallet;
+	private final Network network;
+	private final NetworkModel networkModel;
+	private final TokhnServiceBlockingStub stub;
+	private final TokhnServiceStub async;
+	private final CountDownLatch closed = new CountDownLatch(1);
+	//sync and onBlock share this, so closing never waits on a sync in progress
+	private final Object syncLock = new Object();
+	private final ExecutorService announcements;
+	private ClientCallStreamObserver<SubscriptionRequest> subscription = null;
+	
+	public WalletSync(Wallet wallet, Network network, ManagedChannel channel) {
+		this.wallet = wallet;
+		this.network = network;
+		networkModel = NetworkModel.valueOf(network.name());
+		stub = TokhnServiceGrpc.newBlockingStub(channel).withWaitForReady();
+		async = TokhnServiceGrpc.newStub(channel).withWaitForReady();
+		announcements = Executors.newSingleThreadExecutor(r -> {
+			Thread t = new Thread(r, "wallet-sync-" + network);
+			t.setDaemon(true);
+			return t;
+		});
+	}
+	
+	/**
+	 * Brings the wallet up to the node's latest block.
+	 * 
+	 * @return The number of blocks applied
+	 */
+	public int sync() {
+		synchronized(syncLock) {
+			return syncToLatest();
+		}
+	}
+	
+	private int syncToLatest() {
+		Block latest = getLatestBlock();
+		if(wallet.getLastSynced(network) == null) {
+			bootstrap();
+			return 0;
+		}
+		
+		//undo blocks until the last one we applied is on the node's main chain
+		WalletDelta last = wallet.getLastSynced(network);
+		Map<Integer, Hash> mainChain = new HashMap<>();
+		while(last != null && !last.getBlockHash().equals(getBlockHash(mainChain, last.getBlockIndex(), latest.getIndex()))) {
+			Log.info("Rolling back %s", last);
+			wallet.rollbackBlock(network);
+			last = wallet.getLastSynced(network);
+		}
+		if(last == null) {
+			//the reorganization went deeper than we remember
+			bootstrap();
+			return 0;
+		}
+		
+		int applied = 0;
+		while(last.getBlockIndex() < latest.getIndex()) {
+			int end = Math.min(last.getBlockIndex() + BATCH_SIZE, latest.getIndex());
+			for(Block block : getBlocks(last.getBlockIndex() + 1, end)) {
+				if(!block.getPreviousHash().equals(last.getBlockHash())) {
+					//the node reorganized while we were catching up, so we go around again
+					return applied + syncToLatest();
+				}
+				wallet.applyBlock(network, block);
+				last = wallet.getLastSynced(network);
+				applied++;
+			}
+		}
+		return applied;
+	}
+	
+	/**
+	 * Applies new blocks as the node announces them. Only our own
+	 * transactions come with each block, which is all a wallet needs. A
+	 * block that doesn't follow the last one applied means we missed some or
+	 * the node reorganized, so we {@link #sync()} instead.
+	 */
+	public synchronized void subscribe() {
+		if(subscription != null) {
+			return;
+		}
+		
+		SubscriptionRequest request = SubscriptionRequest.newBuilder().setNetwork(networkModel).addAddresses(ByteString.copyFrom(wallet.getAddress(network).getBytes())).build();
+		async.subscribe(request, new ClientResponseObserver<SubscriptionRequest, SubscriptionEvent>() {
+			@Override
+			public void beforeStart(ClientCallStreamObserver<SubscriptionRequest> requestStream) {
+				subscription = requestStream;
+			}
+			
+			@Override
+			public void onNext(SubscriptionEvent event) {
+				if(event.hasConfirmation()) {
+					Block block = GRPC.transform(network, event.getConfirmation());
+					try {
+						//in the order they were announced
+						announcements.execute(() -> onBlock(block));
+					} catch(RejectedExecutionException e) {
+						//we were closed while it was on the way
+					}
+				}
+			}
+			
+			@Override
+			public void onError(Throwable t) {
+				Log.error("%s subscription failed: %s", network, t);
+				closed.countDown();
+			}
+			
+			@Override
+			public void onCompleted() {
+				Log.info("%s subscription completed", network);
+				closed.countDown();
+			}
+		});
+	}
+	
+	/**
+	 * Waits until the subscription is closed from either end.
+	 */
+	public void awaitClose() throws InterruptedException {
+		closed.await();
+	}
+	
+	@Override
+	public synchronized void close() {
+		if(subscription != null) {
+			subscription.cancel("Wallet closed", null);
+			subscription = null;
+		}
+		announcements.shutdownNow();
+		closed.countDown();
+	}
+	
+	private void onBlock(Block block) {
+		synchronized(syncLock) {
+			try {
+				WalletDelta last = wallet.getLastSynced(network);
+				if(last != null && block.getPreviousHash().equals(last.getBlockHash())) {
+					wallet.applyBlock(network, block);
+				} else if(last == null || block.getIndex() > last.getBlockIndex() || !block.getHash().equals(last.getBlockHash())) {
+					syncToLatest();
+				}
+			} catch(RuntimeException e) {
+				//the next block announced tries again
+				Log.error("%s sync failed: %s", network, e);
+			}
+		}
+	}
+	
+	private void bootstrap() {
+		Block latest = getLatestBlock();
+		Address address = wallet.getAddress(network);
+		UtxoRequest request = UtxoRequest.newBuilder().setNetwork(networkModel).setAddress(ByteString.copyFrom(address.getBytes())).build();
+		List<UTXO> utxos = stub.getUtxos(request).getUtxosList().stream().map(utxo -> GRPC.transform(utxo)).collect(Collectors.toList());
+		wallet.resetUtxos(network, utxos, latest.getHash(), latest.getIndex());
+		Log.info("Loaded %d UTXOs at %s", utxos.size(), latest);
+	}
+	
+	private Block getLatestBlock() {
+		for(WelcomeModel welcome : stub.getWelcome(WelcomeRequest.newBuilder().setPeerType(PeerType.CLIENT).build()).getWelcomesList()) {
+			if(welcome.getNetwork() == networkModel) {
+				return GRPC.transform(welcome.getLatestBlock());
+			}
+		}
+		throw new IllegalStateException("The node doesn't serve " + network);
+	}
+	
+	/**
+	 * Looks up the hash of the node's block at the index, fetching it along
+	 * with the batch of blocks below it, since a rollback checks them in turn.
+	 * 
+	 * @param mainChain The hashes fetched so far by index
+	 * @return The hash or {@code null} if the node's chain isn't that long
+	 */
+	private Hash getBlockHash(Map<Integer, Hash> mainChain, int index, int latestIndex) {
+		if(index > latestIndex) {
+			return null;
+		} else if(!mainChain.containsKey(index)) {
+			getBlocks(Math.max(0, index - BATCH_SIZE + 1), index).forEach(block -> mainChain.put(block.getIndex(), block.getHash()));
+		}
+		return mainChain.get(index);
+	}
+	
+	private List<Block> getBlocks(int startIndex, int endIndex) {
+		PartialChainRequest request = PartialChainRequest.newBuilder().setNetwork(networkModel).setStartIndex(startIndex).setEndIndex(endIndex).build();
+		PartialChainResponse response = stub.getPartialChain(request);
+		return response.getBlocksList().stream().map(block -> GRPC.transform(block)).collect(Collectors.toList());
+	}
+}
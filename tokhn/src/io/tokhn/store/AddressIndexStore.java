@@ -0,0 +1,37 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import java.util.List;
+
+import io.tokhn.core.Address;
+import io.tokhn.core.AddressHistory;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+public interface AddressIndexStore {
+	public void put(Address address, AddressHistory history);
+	public void remove(Address address, int blockIndex, int position);
+	/**
+	 * 
+	 * @return Up to limit entries for the address that come before the given block index and position, newest first
+	 */
+	public List<AddressHistory> getHistory(Address address, int beforeBlockIndex, int beforePosition, int limit);
+	public Hash getTip();
+	public void setTip(Hash tip);
+	public Network getNetwork();
+}
@@ -16,8 +16,14 @@
 
 package io.tokhn.store;
 
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
 import io.tokhn.core.Block;
+import io.tokhn.core.Checkpoint;
 import io.tokhn.core.LocalBlock;
+import io.tokhn.core.UTXODelta;
 import io.tokhn.node.Network;
 import io.tokhn.util.Hash;
 
@@ -25,9 +31,29 @@ public interface BlockStore {
 	public void put(LocalBlock block);
 	public boolean contains(Hash hash);
 	public LocalBlock get(Hash hash);
+	/**
+	 * Replaces a stored block with its header, see {@link LocalBlock#toHeader()}.
+	 */
+	public void prune(Hash hash);
 	public LocalBlock getLatestBlock();
+	/**
+	 * Reads every stored block, branch blocks included and pruned blocks as
+	 * headers, in whatever order is cheapest for the store. It can run while
+	 * blocks are being put, which it may or may not see.
+	 */
+	public void forEach(Consumer<LocalBlock> consumer);
 	public Network getNetwork();
 	public void putOrphan(Block block);
 	public Block getOrphan(Hash hash);
 	public void removeOrphan(Hash hash);
+	public List<Block> getOrphans();
+	public Checkpoint getCheckpoint();
+	public void putCheckpoint(Checkpoint checkpoint);
+	/**
+	 * Keeps a journal entry apart from the Checkpoint, which only counts
+	 * them, so adding one doesn't write the ones before it again.
+	 */
+	public void putJournalEntry(int position, Map.Entry<Hash, UTXODelta> entry);
+	public Map.Entry<Hash, UTXODelta> getJournalEntry(int position);
+	public void removeJournalEntry(int position);
 }
\ No newline at end of file
@@ -0,0 +1,246 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import io.tokhn.core.Block;
+import io.tokhn.core.Checkpoint;
+import io.tokhn.core.LocalBlock;
+import io.tokhn.core.Transaction;
+import io.tokhn.core.UTXODelta;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+/*
+ * A cache of decoded blocks in front of another BlockStore, bounded by the
+ * approximate number of bytes the cached blocks take up on the heap. Blocks
+ * are immutable once stored, so the cache is write-through and never dirty.
+ * 
+ * Orphans, the checkpoint and the journal go straight to the store underneath.
+ */
+public class CachingBlockStore implements BlockStore, AutoCloseable {
+	public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+	/*
+	 * rough heap sizes used to weigh a block without serializing it, the
+	 * unique address set dominates for any block far from genesis
+	 */
+	private static final int BLOCK_BYTES = 256;
+	private static final int TRANSACTION_BYTES = 160;
+	private static final int TXI_BYTES = 400;
+	private static final int TXO_BYTES = 120;
+	private static final int ADDRESS_BYTES = 96;
+	private final BlockStore store;
+	private final long maxBytes;
+	private final Eviction eviction;
+	private final LinkedHashMap<Hash, LocalBlock> blocks;
+	private final Map<Hash, Long> sizes = new HashMap<>();
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+	
+	public enum Eviction {
+		//the least recently read block goes first
+		LRU,
+		//the oldest cached block goes first, which keeps reads cheaper since they don't reorder the cache
+		FIFO
+	}
+	
+	public CachingBlockStore(BlockStore store) {
+		this(store, DEFAULT_MAX_BYTES, Eviction.LRU);
+	}
+	
+	public CachingBlockStore(BlockStore store, long maxBytes, Eviction eviction) {
+		this.store = store;
+		this.maxBytes = maxBytes;
+		this.eviction = eviction;
+		blocks = new LinkedHashMap<>(16, 0.75f, eviction == Eviction.LRU);
+	}
+	
+	@Override
+	public synchronized void put(LocalBlock block) {
+		store.put(block);
+		cache(block);
+	}
+	
+	@Override
+	public synchronized void prune(Hash hash) {
+		store.prune(hash);
+		if(blocks.remove(hash) != null) {
+			bytes -= sizes.remove(hash);
+		}
+	}
+	
+	@Override
+	public synchronized boolean contains(Hash hash) {
+		return blocks.containsKey(hash) || store.contains(hash);
+	}
+	
+	@Override
+	public synchronized LocalBlock get(Hash hash) {
+		LocalBlock block = blocks.get(hash);
+		if(block != null) {
+			hits++;
+			return block;
+		}
+		
+		misses++;
+		block = store.get(hash);
+		if(block != null) {
+			cache(block);
+		}
+		return block;
+	}
+	
+	@Override
+	public LocalBlock getLatestBlock() {
+		return store.getLatestBlock();
+	}
+	
+	@Override
+	public Network getNetwork() {
+		return store.getNetwork();
+	}
+	
+	/**
+	 * Goes straight to the store underneath, a pass over every block would
+	 * only push out the ones worth caching.
+	 */
+	@Override
+	public void forEach(Consumer<LocalBlock> consumer) {
+		store.forEach(consumer);
+	}
+	
+	@Override
+	public void putOrphan(Block block) {
+		store.putOrphan(block);
+	}
+	
+	@Override
+	public Block getOrphan(Hash hash) {
+		return store.getOrphan(hash);
+	}
+	
+	@Override
+	public void removeOrphan(Hash hash) {
+		store.removeOrphan(hash);
+	}
+	
+	@Override
+	public List<Block> getOrphans() {
+		return store.getOrphans();
+	}
+	
+	@Override
+	public Checkpoint getCheckpoint() {
+		return store.getCheckpoint();
+	}
+	
+	@Override
+	public void putCheckpoint(Checkpoint checkpoint) {
+		store.putCheckpoint(checkpoint);
+	}
+	
+	@Override
+	public void putJournalEntry(int position, Map.Entry<Hash, UTXODelta> entry) {
+		store.putJournalEntry(position, entry);
+	}
+	
+	@Override
+	public Map.Entry<Hash, UTXODelta> getJournalEntry(int position) {
+		return store.getJournalEntry(position);
+	}
+	
+	@Override
+	public void removeJournalEntry(int position) {
+		store.removeJournalEntry(position);
+	}
+	
+	public Eviction getEviction() {
+		return eviction;
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized double getHitRatio() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+	
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	
+	public synchronized int getCachedBlocks() {
+		return blocks.size();
+	}
+	
+	/**
+	 * 
+	 * @return The approximate heap used by the cached blocks
+	 */
+	public synchronized long getCachedBytes() {
+		return bytes;
+	}
+	
+	@Override
+	public void close() throws Exception {
+		if(store instanceof AutoCloseable) {
+			((AutoCloseable) store).close();
+		}
+	}
+	
+	public static long estimateSize(LocalBlock block) {
+		long size = BLOCK_BYTES;
+		for(Transaction tx : block.getTransactions()) {
+			size += TRANSACTION_BYTES + tx.getTxis().size() * TXI_BYTES + tx.getTxos().size() * TXO_BYTES;
+		}
+		return size + block.getAggregatedUniqueAddresses().size() * ADDRESS_BYTES;
+	}
+	
+	private void cache(LocalBlock block) {
+		long size = estimateSize(block);
+		if(size > maxBytes) {
+			//a block bigger than the whole cache would only push everything else out
+			return;
+		}
+		
+		Long replaced = sizes.put(block.getHash(), size);
+		if(replaced != null) {
+			bytes -= replaced;
+		}
+		blocks.put(block.getHash(), block);
+		bytes += size;
+		
+		while(bytes > maxBytes) {
+			Hash eldest = blocks.keySet().iterator().next();
+			blocks.remove(eldest);
+			bytes -= sizes.remove(eldest);
+			evictions++;
+		}
+	}
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import io.tokhn.core.Address;
+import io.tokhn.core.UTXO;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+import io.tokhn.util.Log;
+import io.tokhn.util.Metrics;
+import io.tokhn.util.Metrics.Counter;
+import io.tokhn.util.Metrics.Histogram;
+
+/*
+ * A write-back cache in front of another UTXOStore. Changes are kept in memory
+ * until the store is flushed, which happens every few blocks, when too many
+ * changes are waiting or on shutdown. Spends are kept as tombstones, so a
+ * spent UTXO is never read back from the store underneath before the flush.
+ * 
+ * Until a flush the Blockchain keeps the changes in its journal, so nothing
+ * is lost if we stop before they are written.
+ */
+public class CachingUTXOStore implements UTXOStore, AutoCloseable {
+	public static final int DEFAULT_MAX_ENTRIES = 100000;
+	public static final int DEFAULT_FLUSH_INTERVAL = 10; //in blocks
+	private final UTXOStore store;
+	private final int maxEntries;
+	private final int flushInterval;
+	//changes waiting to be flushed, a null value is a spend
+	private final Map<Hash, UTXO> dirty = new HashMap<>();
+	//recently read UTXOs in access order, so the least recently used is evicted first
+	private final LinkedHashMap<Hash, UTXO> clean;
+	private int blocksSinceFlush = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long flushes = 0;
+	private long lastFlushMillis = 0;
+	private long totalFlushMillis = 0;
+	private final Histogram flushTimes;
+	private final Counter flushedChanges;
+	
+	public CachingUTXOStore(UTXOStore store) {
+		this(store, DEFAULT_MAX_ENTRIES, DEFAULT_FLUSH_INTERVAL);
+	}
+	
+	/**
+	 * 
+	 * @param maxEntries The most clean UTXOs to keep and the most changes to wait on before a flush
+	 * @param flushInterval The number of blocks between flushes
+	 */
+	public CachingUTXOStore(UTXOStore store, int maxEntries, int flushInterval) {
+		this.store = store;
+		this.maxEntries = maxEntries;
+		this.flushInterval = flushInterval;
+		clean = new LinkedHashMap<Hash, UTXO>(16, 0.75f, true) {
+			private static final long serialVersionUID = 6113823475032860528L;
+			
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Hash, UTXO> eldest) {
+				return size() > CachingUTXOStore.this.maxEntries;
+			}
+		};
+		String prefix = store.getNetwork() + ".utxo.cache.";
+		flushTimes = Metrics.histogram(prefix + "flush");
+		flushedChanges = Metrics.counter(prefix + "flushed");
+		Metrics.gauge(prefix + "hit.ratio", () -> getHitRatio());
+	}
+	
+	@Override
+	public synchronized void put(UTXO utxo) {
+		dirty.put(utxo.getUtxoId(), utxo);
+		clean.remove(utxo.getUtxoId());
+	}
+	
+	@Override
+	public synchronized UTXO get(Hash utxoId) {
+		if(dirty.containsKey(utxoId)) {
+			hits++;
+			return dirty.get(utxoId);
+		}
+		
+		UTXO utxo = clean.get(utxoId);
+		if(utxo != null) {
+			hits++;
+			return utxo;
+		}
+		
+		misses++;
+		utxo = store.get(utxoId);
+		if(utxo != null) {
+			clean.put(utxoId, utxo);
+		}
+		return utxo;
+	}
+	
+	@Override
+	public synchronized void remove(Hash utxoId) {
+		dirty.put(utxoId, null);
+		clean.remove(utxoId);
+	}
+	
+	@Override
+	public Network getNetwork() {
+		return store.getNetwork();
+	}
+	
+	@Override
+	public synchronized List<UTXO> getUtxos() {
+		Map<Hash, UTXO> utxos = new LinkedHashMap<>();
+		store.getUtxos().forEach(utxo -> utxos.put(utxo.getUtxoId(), utxo));
+		overlayDirty(utxos);
+		return new ArrayList<>(utxos.values());
+	}
+	
+	@Override
+	public synchronized void forEachUtxo(Consumer<UTXO> consumer) {
+		//overlaying the buffered changes would need the whole set, so they are written out first
+		flush();
+		store.forEachUtxo(consumer);
+	}
+	
+	@Override
+	public synchronized long getSize() {
+		flush();
+		return store.getSize();
+	}
+	
+	@Override
+	public synchronized List<UTXO> getUtxosForAddress(Address address) {
+		Map<Hash, UTXO> utxos = new LinkedHashMap<>();
+		store.getUtxosForAddress(address).forEach(utxo -> utxos.put(utxo.getUtxoId(), utxo));
+		overlayDirty(utxos);
+		return utxos.values().stream().filter(utxo -> utxo.getAddress().equals(address)).collect(Collectors.toList());
+	}
+	
+	@Override
+	public synchronized boolean commit() {
+		blocksSinceFlush++;
+		if(blocksSinceFlush >= flushInterval || dirty.size() >= maxEntries) {
+			flush();
+			return true;
+		}
+		return false;
+	}
+	
+	@Override
+	public synchronized void flush() {
+		long start = System.nanoTime();
+		int changes = dirty.size();
+		dirty.forEach((utxoId, utxo) -> {
+			if(utxo == null) {
+				store.remove(utxoId);
+			} else {
+				store.put(utxo);
+				clean.put(utxoId, utxo);
+			}
+		});
+		dirty.clear();
+		store.flush();
+		blocksSinceFlush = 0;
+		
+		flushTimes.updateSince(start);
+		flushedChanges.add(changes);
+		lastFlushMillis = (System.nanoTime() - start) / 1000000;
+		totalFlushMillis += lastFlushMillis;
+		flushes++;
+		Log.info("%s UTXO cache flushed %d changes in %d ms", getNetwork(), changes, lastFlushMillis);
+	}
+	
+	public synchronized double getHitRatio() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+	
+	public synchronized long getHits() {
+		return hits;
+	}
+	
+	public synchronized long getMisses() {
+		return misses;
+	}
+	
+	public synchronized long getFlushes() {
+		return flushes;
+	}
+	
+	public synchronized long getLastFlushMillis() {
+		return lastFlushMillis;
+	}
+	
+	public synchronized long getAverageFlushMillis() {
+		return flushes == 0 ? 0 : totalFlushMillis / flushes;
+	}
+	
+	@Override
+	public void close() throws Exception {
+		flush();
+		if(store instanceof AutoCloseable) {
+			((AutoCloseable) store).close();
+		}
+	}
+	
+	private void overlayDirty(Map<Hash, UTXO> utxos) {
+		dirty.forEach((utxoId, utxo) -> {
+			if(utxo == null) {
+				utxos.remove(utxoId);
+			} else {
+				utxos.put(utxoId, utxo);
+			}
+		});
+	}
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+import org.mapdb.Atomic;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
+
+import io.tokhn.codec.BlockSerializer;
+import io.tokhn.codec.CheckpointSerializer;
+import io.tokhn.codec.HashSerializer;
+import io.tokhn.codec.JournalEntrySerializer;
+import io.tokhn.core.Block;
+import io.tokhn.core.Checkpoint;
+import io.tokhn.core.LocalBlock;
+import io.tokhn.core.UTXODelta;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+import io.tokhn.util.Log;
+
+/*
+ * Blocks are appended to segment files that are preallocated and memory
+ * mapped, and a small MapDB index maps each hash to the segment, offset and
+ * length of its record. A record is a magic number, the length and CRC32 of
+ * the serialized block, and then the block itself.
+ * 
+ * The segment files are the source of truth: anything appended after the
+ * index was last committed is found again on startup by scanning forward from
+ * where the index says the next record goes, and if the index is lost it is
+ * rebuilt from a scan of every segment.
+ * 
+ * Orphans and the checkpoint are kept in the index, since they change.
+ * 
+ * Pruning a block appends its header as a new record, as does storing a
+ * block again with new undo data, and a segment is deleted once none of the
+ * blocks in the index point into it anymore.
+ */
+public class FlatFileBlockStore implements BlockStore, AutoCloseable {
+	public static final int DEFAULT_SEGMENT_BYTES = 128 * 1024 * 1024;
+	private static final int RECORD_MAGIC = 0x544B4E42;
+	private static final int HEADER_BYTES = 3 * Integer.BYTES;
+	private final Network network;
+	private final File directory;
+	private final int segmentBytes;
+	private final DB db;
+	//the value is { segment, offset, length } with the offset pointing at the record header
+	private HTreeMap<Hash, int[]> locations;
+	private HTreeMap<Hash, Block> orphans;
+	private Atomic.Var<Checkpoint> checkpoint;
+	private HTreeMap<Integer, Map.Entry<Hash, UTXODelta>> journal;
+	private Atomic.Var<Hash> latest;
+	//the segment in the high half and the offset in the low half of where the next record goes
+	private Atomic.Long end;
+	//a deleted segment leaves a null behind, so the rest keep their numbers
+	private final List<MappedByteBuffer> segments = new CopyOnWriteArrayList<>();
+	//how many indexed blocks point into each segment
+	private final Map<Integer, Integer> liveRecords = new HashMap<>();
+	private int latestIndex = -1;
+	
+	public FlatFileBlockStore(Network network) {
+		this(network, new File("BFiles-" + network.toString()), DEFAULT_SEGMENT_BYTES);
+	}
+	
+	/**
+	 * 
+	 * @param segmentBytes How big each segment file is, a block bigger than this gets a segment of its own
+	 */
+	public FlatFileBlockStore(Network network, File directory, int segmentBytes) {
+		this.network = network;
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		directory.mkdirs();
+		db = DBMaker.fileDB(new File(directory, "index.db")).transactionEnable().closeOnJvmShutdown().make();
+		locations = db.hashMap("locations").keySerializer(new HashSerializer()).valueSerializer(Serializer.INT_ARRAY).createOrOpen();
+		orphans = db.hashMap("orphans").keySerializer(new HashSerializer()).valueSerializer(new BlockSerializer()).createOrOpen();
+		checkpoint = db.atomicVar("checkpoint", new CheckpointSerializer()).createOrOpen();
+		journal = db.hashMap("journal").keySerializer(Serializer.INTEGER).valueSerializer(new JournalEntrySerializer()).createOrOpen();
+		latest = db.atomicVar("latest", new HashSerializer()).createOrOpen();
+		end = db.atomicLong("end").createOrOpen();
+		
+		int lastSegment = -1;
+		for(String name : directory.list()) {
+			if(name.matches("blk\\d{5}\\.dat")) {
+				lastSegment = Math.max(lastSegment, Integer.parseInt(name.substring(3, 8)));
+			}
+		}
+		for(int segment = 0; segment <= lastSegment; segment++) {
+			File file = getSegmentFile(segment);
+			segments.add(file.exists() ? mapSegment(file, 0) : null);
+		}
+		if(latest.get() != null) {
+			latestIndex = get(latest.get()).getIndex();
+		}
+		recover();
+		locations.forEach((hash, location) -> liveRecords.merge(location[0], 1, Integer::sum));
+	}
+	
+	@Override
+	public synchronized void put(LocalBlock block) {
+		if(locations.containsKey(block.getHash())) {
+			//only the undo data of a block changes, when a reorganization connects it
+			replace(block);
+			return;
+		}
+		
+		byte[] data = serialize(block);
+		int[] location = append(data);
+		index(block, location[0], location[1], data.length);
+		liveRecords.merge(location[0], 1, Integer::sum);
+		db.commit();
+	}
+	
+	@Override
+	public synchronized void prune(Hash hash) {
+		LocalBlock block = get(hash);
+		if(block == null || block.isPruned()) {
+			return;
+		}
+		replace(block.toHeader());
+	}
+	
+	private void replace(LocalBlock block) {
+		int oldSegment = locations.get(block.getHash())[0];
+		byte[] data = serialize(block);
+		int[] location = append(data);
+		index(block, location[0], location[1], data.length);
+		liveRecords.merge(location[0], 1, Integer::sum);
+		db.commit();
+		
+		if(liveRecords.merge(oldSegment, -1, Integer::sum) == 0 && oldSegment != location[0]) {
+			//nothing points into it anymore, the mapping goes away once it is collected
+			liveRecords.remove(oldSegment);
+			segments.set(oldSegment, null);
+			getSegmentFile(oldSegment).delete();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return The segment and offset the record was written at
+	 */
+	private int[] append(byte[] data) {
+		int recordBytes = HEADER_BYTES + data.length;
+		int segment = (int) (end.get() >>> 32);
+		int offset = (int) end.get();
+		if(segments.isEmpty() || offset + recordBytes > segments.get(segment).capacity()) {
+			//roll over to a new segment, leaving the rest of this one unused
+			segment = segments.isEmpty() ? 0 : segment + 1;
+			offset = 0;
+			if(segment == segments.size()) {
+				segments.add(mapSegment(getSegmentFile(segment), Math.max(segmentBytes, recordBytes)));
+			}
+		}
+		
+		MappedByteBuffer map = segments.get(segment);
+		ByteBuffer buffer = map.duplicate();
+		buffer.position(offset);
+		buffer.putInt(RECORD_MAGIC).putInt(data.length).putInt(checksum(data)).put(data);
+		if(buffer.remaining() >= Integer.BYTES) {
+			//a torn record from before a crash could be sitting past this one, so the scan has to stop here
+			buffer.putInt(0);
+		}
+		map.force();
+		
+		end.set(toPosition(segment, offset + recordBytes));
+		return new int[] { segment, offset };
+	}
+	
+	@Override
+	public LocalBlock get(Hash hash) {
+		int[] location = locations.get(hash);
+		if(location == null) {
+			return null;
+		}
+		ByteBuffer buffer = segments.get(location[0]).duplicate();
+		buffer.position(location[1] + HEADER_BYTES);
+		byte[] data = new byte[location[2]];
+		buffer.get(data);
+		return deserialize(data);
+	}
+	
+	@Override
+	public boolean contains(Hash hash) {
+		return locations.containsKey(hash);
+	}
+	
+	@Override
+	public LocalBlock getLatestBlock() {
+		Hash hash = latest.get();
+		return hash == null ? null : get(hash);
+	}
+	
+	@Override
+	public Network getNetwork() {
+		return network;
+	}
+	
+	/**
+	 * Reads every stored block in the order it was written, which is a
+	 * sequential read of the segment files.
+	 */
+	@Override
+	public void forEach(Consumer<LocalBlock> consumer) {
+		int segment = 0;
+		int offset = 0;
+		long stop = end.get();
+		while(segment < segments.size() && toPosition(segment, offset) < stop) {
+			if(segments.get(segment) == null) {
+				segment++;
+				continue;
+			}
+			ByteBuffer buffer = segments.get(segment).duplicate();
+			int length = readRecordLength(buffer, offset);
+			if(length < 0) {
+				segment++;
+				offset = 0;
+				continue;
+			}
+			byte[] data = new byte[length];
+			buffer.position(offset + HEADER_BYTES);
+			buffer.get(data);
+			LocalBlock block = deserialize(data);
+			int[] location = locations.get(block.getHash());
+			if(location != null && location[0] == segment && location[1] == offset) {
+				//a pruned block has its old body still sitting in front of its header until the segment goes away
+				consumer.accept(block);
+			}
+			offset += HEADER_BYTES + length;
+		}
+	}
+	
+	@Override
+	public void putOrphan(Block block) {
+		orphans.put(block.getHash(), block);
+		db.commit();
+	}
+	
+	@Override
+	public Block getOrphan(Hash hash) {
+		return orphans.get(hash);
+	}
+	
+	@Override
+	public void removeOrphan(Hash hash) {
+		orphans.remove(hash);
+		db.commit();
+	}
+	
+	@Override
+	public List<Block> getOrphans() {
+		List<Block> result = new ArrayList<>();
+		for(Object o : orphans.values()) {
+			result.add((Block) o);
+		}
+		return result;
+	}
+	
+	@Override
+	public Checkpoint getCheckpoint() {
+		return checkpoint.get();
+	}
+	
+	@Override
+	public void putCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint.set(checkpoint);
+		db.commit();
+	}
+	
+	@Override
+	public void putJournalEntry(int position, Map.Entry<Hash, UTXODelta> entry) {
+		journal.put(position, entry);
+		db.commit();
+	}
+	
+	@Override
+	public Map.Entry<Hash, UTXODelta> getJournalEntry(int position) {
+		return journal.get(position);
+	}
+	
+	@Override
+	public void removeJournalEntry(int position) {
+		journal.remove(position);
+		db.commit();
+	}
+	
+	@Override
+	public void close() throws Exception {
+		segments.stream().filter(map -> map != null).forEach(map -> map.force());
+		db.close();
+	}
+	
+	private void recover() {
+		/*
+		 * everything before the end position is in the index, so we only scan
+		 * what comes after it, which is all of it if the index was lost
+		 */
+		int segment = (int) (end.get() >>> 32);
+		int offset = (int) end.get();
+		int recovered = 0;
+		while(segment < segments.size()) {
+			int length = segments.get(segment) == null ? -1 : readRecordLength(segments.get(segment).duplicate(), offset);
+			if(length < 0) {
+				if(segment + 1 == segments.size()) {
+					break;
+				}
+				segment++;
+				offset = 0;
+				continue;
+			}
+			ByteBuffer buffer = segments.get(segment).duplicate();
+			byte[] data = new byte[length];
+			buffer.position(offset + HEADER_BYTES);
+			buffer.get(data);
+			index(deserialize(data), segment, offset, length);
+			offset += HEADER_BYTES + length;
+			recovered++;
+		}
+		if(recovered > 0) {
+			Log.info("Indexed %d blocks found in the %s segment files", recovered, network);
+			end.set(toPosition(segment, offset));
+			db.commit();
+		}
+	}
+	
+	private void index(LocalBlock block, int segment, int offset, int length) {
+		locations.put(block.getHash(), new int[] { segment, offset, length });
+		if(block.getIndex() > latestIndex) {
+			latestIndex = block.getIndex();
+			latest.set(block.getHash());
+		}
+	}
+	
+	/**
+	 * 
+	 * @return The length of the block in the record at offset or -1 if there isn't a whole record there
+	 */
+	private static int readRecordLength(ByteBuffer buffer, int offset) {
+		if(offset + HEADER_BYTES > buffer.capacity()) {
+			return -1;
+		}
+		buffer.position(offset);
+		if(buffer.getInt() != RECORD_MAGIC) {
+			return -1;
+		}
+		int length = buffer.getInt();
+		int crc = buffer.getInt();
+		if(length < 0 || length > buffer.remaining()) {
+			return -1;
+		}
+		byte[] data = new byte[length];
+		buffer.get(data);
+		return checksum(data) == crc ? length : -1;
+	}
+	
+	private static int checksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data);
+		return (int) crc.getValue();
+	}
+	
+	private static long toPosition(int segment, int offset) {
+		return ((long) segment << 32) | (offset & 0xFFFFFFFFL);
+	}
+	
+	private File getSegmentFile(int segment) {
+		return new File(directory, String.format("blk%05d.dat", segment));
+	}
+	
+	private static MappedByteBuffer mapSegment(File file, int size) {
+		//the mapping outlives the file, so the file is closed right away
+		try(RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, raf.length()));
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private static byte[] serialize(LocalBlock block) {
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			ObjectOutputStream oos = new ObjectOutputStream(out);
+			oos.writeObject(block);
+			oos.flush();
+			return out.toByteArray();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private static LocalBlock deserialize(byte[] data) {
+		try {
+			ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+			return (LocalBlock) ois.readObject();
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		} catch(ClassNotFoundException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+}
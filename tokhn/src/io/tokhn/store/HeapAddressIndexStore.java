@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+
+import io.tokhn.core.Address;
+import io.tokhn.core.AddressHistory;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+public class HeapAddressIndexStore implements AddressIndexStore {
+	//each address has its history ordered by block index and then position
+	private Map<Address, NavigableMap<Long, AddressHistory>> histories = new HashMap<>();
+	private Hash tip = null;
+	private Network network = null;
+	
+	public HeapAddressIndexStore(Network network) {
+		this.network = network;
+	}
+	
+	@Override
+	public void put(Address address, AddressHistory history) {
+		histories.computeIfAbsent(address, a -> new TreeMap<>()).put(key(history.getBlockIndex(), history.getPosition()), history);
+	}
+	
+	@Override
+	public void remove(Address address, int blockIndex, int position) {
+		NavigableMap<Long, AddressHistory> history = histories.get(address);
+		if(history != null) {
+			history.remove(key(blockIndex, position));
+			if(history.isEmpty()) {
+				histories.remove(address);
+			}
+		}
+	}
+	
+	@Override
+	public List<AddressHistory> getHistory(Address address, int beforeBlockIndex, int beforePosition, int limit) {
+		NavigableMap<Long, AddressHistory> history = histories.getOrDefault(address, new TreeMap<>());
+		return history.headMap(key(beforeBlockIndex, beforePosition), false).descendingMap().values().stream().limit(limit).collect(Collectors.toList());
+	}
+	
+	@Override
+	public Hash getTip() {
+		return tip;
+	}
+	
+	@Override
+	public void setTip(Hash tip) {
+		this.tip = tip;
+	}
+	
+	@Override
+	public Network getNetwork() {
+		return network;
+	}
+	
+	private static long key(int blockIndex, int position) {
+		return ((long) blockIndex << 32) | (position & 0xFFFFFFFFL);
+	}
+}
@@ -16,18 +16,26 @@
 
 package io.tokhn.store;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Consumer;
 
 import io.tokhn.core.Block;
+import io.tokhn.core.Checkpoint;
 import io.tokhn.core.LocalBlock;
+import io.tokhn.core.UTXODelta;
 import io.tokhn.node.Network;
 import io.tokhn.util.Hash;
 
 public class HeapBlockStore implements BlockStore {
 	private Map<Hash, LocalBlock> blocks = new LinkedHashMap<>();
 	private Map<Hash, Block> orphans = new LinkedHashMap<>();
+	private Checkpoint checkpoint = null;
+	private Map<Integer, Map.Entry<Hash, UTXODelta>> journal = new HashMap<>();
 	private Network network = null;
 	
 	public HeapBlockStore(Network network) {
@@ -44,6 +52,11 @@ public class HeapBlockStore implements BlockStore {
 		return blocks.get(hash);
 	}
 	
+	@Override
+	public void prune(Hash hash) {
+		blocks.computeIfPresent(hash, (h, block) -> block.toHeader());
+	}
+	
 	@Override
 	public boolean contains(Hash hash) {
 		return blocks.containsKey(hash);
@@ -78,4 +91,39 @@ public class HeapBlockStore implements BlockStore {
 	public void removeOrphan(Hash hash) {
 		orphans.remove(hash);
 	}
+
+	@Override
+	public void forEach(Consumer<LocalBlock> consumer) {
+		new ArrayList<>(blocks.values()).forEach(consumer);
+	}
+	
+	@Override
+	public List<Block> getOrphans() {
+		return new ArrayList<>(orphans.values());
+	}
+	
+	@Override
+	public Checkpoint getCheckpoint() {
+		return checkpoint;
+	}
+	
+	@Override
+	public void putCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint = checkpoint;
+	}
+	
+	@Override
+	public void putJournalEntry(int position, Map.Entry<Hash, UTXODelta> entry) {
+		journal.put(position, entry);
+	}
+	
+	@Override
+	public Map.Entry<Hash, UTXODelta> getJournalEntry(int position) {
+		return journal.get(position);
+	}
+	
+	@Override
+	public void removeJournalEntry(int position) {
+		journal.remove(position);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import io.tokhn.core.TxLocation;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+public class HeapTxIndexStore implements TxIndexStore {
+	private Map<Hash, TxLocation> locations = new HashMap<>();
+	private Hash tip = null;
+	private Network network = null;
+	
+	public HeapTxIndexStore(Network network) {
+		this.network = network;
+	}
+	
+	@Override
+	public void put(Hash txId, TxLocation location) {
+		locations.put(txId, location);
+	}
+	
+	@Override
+	public TxLocation get(Hash txId) {
+		return locations.get(txId);
+	}
+	
+	@Override
+	public void remove(Hash txId) {
+		locations.remove(txId);
+	}
+	
+	@Override
+	public Hash getTip() {
+		return tip;
+	}
+	
+	@Override
+	public void setTip(Hash tip) {
+		this.tip = tip;
+	}
+	
+	@Override
+	public Network getNetwork() {
+		return network;
+	}
+}
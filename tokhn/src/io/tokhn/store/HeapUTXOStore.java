@@ -19,6 +19,7 @@ package io.tokhn.store;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import io.tokhn.core.Address;
@@ -59,6 +60,16 @@ public class HeapUTXOStore implements UTXOStore {
 		return utxos.values().stream().collect(Collectors.toList());
 	}
 
+	@Override
+	public void forEachUtxo(Consumer<UTXO> consumer) {
+		utxos.values().forEach(consumer);
+	}
+	
+	@Override
+	public long getSize() {
+		return utxos.size();
+	}
+	
 	@Override
 	public List<UTXO> getUtxosForAddress(Address address) {
 		return utxos.values().stream().filter(utxo -> utxo.getAddress().equals(address)).collect(Collectors.toList());
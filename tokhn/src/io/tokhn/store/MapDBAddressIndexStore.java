@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+
+import org.mapdb.Atomic;
+import org.mapdb.BTreeMap;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.Serializer;
+import org.mapdb.serializer.SerializerArrayTuple;
+
+import io.tokhn.codec.HashSerializer;
+import io.tokhn.core.Address;
+import io.tokhn.core.AddressHistory;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+public class MapDBAddressIndexStore implements AddressIndexStore, AutoCloseable {
+	private final Network network;
+	private final DB db;
+	/*
+	 * the key is (address, block index, position) and the value is (txId, delta),
+	 * so the history of an address is one ordered range of the tree
+	 */
+	private BTreeMap<Object[], Object[]> histories;
+	private Atomic.Var<Hash> tip;
+	
+	@SuppressWarnings("unchecked")
+	public MapDBAddressIndexStore(Network network) {
+		this.network = network;
+		db = DBMaker.fileDB("AStore-" + network.toString() + ".db").transactionEnable().closeOnJvmShutdown().make();
+		histories = db.treeMap("histories").keySerializer(new SerializerArrayTuple(Serializer.BYTE_ARRAY, Serializer.INTEGER, Serializer.INTEGER)).valueSerializer(new SerializerArrayTuple(new HashSerializer(), Serializer.LONG)).createOrOpen();
+		tip = db.atomicVar("tip", new HashSerializer()).createOrOpen();
+	}
+	
+	@Override
+	public void put(Address address, AddressHistory history) {
+		histories.put(new Object[] { address.getBytes(), history.getBlockIndex(), history.getPosition() }, new Object[] { history.getTxId(), history.getDelta() });
+	}
+	
+	@Override
+	public void remove(Address address, int blockIndex, int position) {
+		histories.remove(new Object[] { address.getBytes(), blockIndex, position });
+	}
+	
+	@Override
+	public List<AddressHistory> getHistory(Address address, int beforeBlockIndex, int beforePosition, int limit) {
+		ConcurrentNavigableMap<Object[], Object[]> range = histories.subMap(new Object[] { address.getBytes() }, true, new Object[] { address.getBytes(), beforeBlockIndex, beforePosition }, false);
+		List<AddressHistory> history = new ArrayList<>();
+		Iterator<Map.Entry<Object[], Object[]>> itr = range.descendingMap().entrySet().iterator();
+		while(itr.hasNext() && history.size() < limit) {
+			Map.Entry<Object[], Object[]> entry = itr.next();
+			history.add(new AddressHistory((Hash) entry.getValue()[0], (Integer) entry.getKey()[1], (Integer) entry.getKey()[2], (Long) entry.getValue()[1]));
+		}
+		return history;
+	}
+	
+	@Override
+	public Hash getTip() {
+		return tip.get();
+	}
+	
+	@Override
+	public void setTip(Hash tip) {
+		//the tip is only moved once a block is fully indexed, so this is where we commit
+		this.tip.set(tip);
+		db.commit();
+	}
+	
+	@Override
+	public Network getNetwork() {
+		return network;
+	}
+	
+	@Override
+	public void close() throws Exception {
+		db.close();
+	}
+}
@@ -16,15 +16,26 @@
 
 package io.tokhn.store;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.mapdb.Atomic;
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
+import org.mapdb.Serializer;
 
 import io.tokhn.codec.BlockSerializer;
+import io.tokhn.codec.CheckpointSerializer;
 import io.tokhn.codec.HashSerializer;
+import io.tokhn.codec.JournalEntrySerializer;
 import io.tokhn.codec.LocalBlockSerializer;
 import io.tokhn.core.Block;
+import io.tokhn.core.Checkpoint;
 import io.tokhn.core.LocalBlock;
+import io.tokhn.core.UTXODelta;
 import io.tokhn.node.Network;
 import io.tokhn.util.Hash;
 
@@ -33,12 +44,16 @@ public class MapDBBlockStore implements BlockStore, AutoCloseable {
 	private final DB db;
 	private HTreeMap<Hash, LocalBlock> blocks;
 	private HTreeMap<Hash, Block> orphans;
+	private Atomic.Var<Checkpoint> checkpoint;
+	private HTreeMap<Integer, Map.Entry<Hash, UTXODelta>> journal;
 	
 	public MapDBBlockStore(Network network) {
 		this.network = network;
-		db = DBMaker.fileDB("BStore-" + network.toString() + ".db").closeOnJvmShutdown().make();
+		db = DBMaker.fileDB("BStore-" + network.toString() + ".db").transactionEnable().closeOnJvmShutdown().make();
 		blocks = db.hashMap("blocks").keySerializer(new HashSerializer()).valueSerializer(new LocalBlockSerializer()).createOrOpen();
 		orphans = db.hashMap("orphans").keySerializer(new HashSerializer()).valueSerializer(new BlockSerializer()).createOrOpen();
+		checkpoint = db.atomicVar("checkpoint", new CheckpointSerializer()).createOrOpen();
+		journal = db.hashMap("journal").keySerializer(Serializer.INTEGER).valueSerializer(new JournalEntrySerializer()).createOrOpen();
 	}
 	
 	@Override
@@ -52,6 +67,15 @@ public class MapDBBlockStore implements BlockStore, AutoCloseable {
 		return blocks.get(hash);
 	}
 	
+	@Override
+	public void prune(Hash hash) {
+		LocalBlock block = blocks.get(hash);
+		if(block != null && !block.isPruned()) {
+			blocks.put(hash, block.toHeader());
+			db.commit();
+		}
+	}
+	
 	@Override
 	public boolean contains(Hash hash) {
 		return blocks.containsKey(hash);
@@ -95,4 +119,48 @@ public class MapDBBlockStore implements BlockStore, AutoCloseable {
 		orphans.remove(hash);
 		db.commit();
 	}
+
+	@Override
+	public void forEach(Consumer<LocalBlock> consumer) {
+		for(Object o : blocks.values()) {
+			consumer.accept((LocalBlock) o);
+		}
+	}
+	
+	@Override
+	public List<Block> getOrphans() {
+		List<Block> result = new ArrayList<>();
+		for(Object o : orphans.values()) {
+			result.add((Block) o);
+		}
+		return result;
+	}
+	
+	@Override
+	public Checkpoint getCheckpoint() {
+		return checkpoint.get();
+	}
+	
+	@Override
+	public void putCheckpoint(Checkpoint checkpoint) {
+		this.checkpoint.set(checkpoint);
+		db.commit();
+	}
+	
+	@Override
+	public void putJournalEntry(int position, Map.Entry<Hash, UTXODelta> entry) {
+		journal.put(position, entry);
+		db.commit();
+	}
+	
+	@Override
+	public Map.Entry<Hash, UTXODelta> getJournalEntry(int position) {
+		return journal.get(position);
+	}
+	
+	@Override
+	public void removeJournalEntry(int position) {
+		journal.remove(position);
+		db.commit();
+	}
 }
\ No newline at end of file
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import org.mapdb.Atomic;
+import org.mapdb.DB;
+import org.mapdb.DBMaker;
+import org.mapdb.HTreeMap;
+
+import io.tokhn.codec.HashSerializer;
+import io.tokhn.codec.TxLocationSerializer;
+import io.tokhn.core.TxLocation;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+public class MapDBTxIndexStore implements TxIndexStore, AutoCloseable {
+	private final Network network;
+	private final DB db;
+	private HTreeMap<Hash, TxLocation> locations;
+	private Atomic.Var<Hash> tip;
+	
+	public MapDBTxIndexStore(Network network) {
+		this.network = network;
+		db = DBMaker.fileDB("TStore-" + network.toString() + ".db").transactionEnable().closeOnJvmShutdown().make();
+		locations = db.hashMap("locations").keySerializer(new HashSerializer()).valueSerializer(new TxLocationSerializer()).createOrOpen();
+		tip = db.atomicVar("tip", new HashSerializer()).createOrOpen();
+	}
+	
+	@Override
+	public void put(Hash txId, TxLocation location) {
+		locations.put(txId, location);
+	}
+	
+	@Override
+	public TxLocation get(Hash txId) {
+		return locations.get(txId);
+	}
+	
+	@Override
+	public void remove(Hash txId) {
+		locations.remove(txId);
+	}
+	
+	@Override
+	public Hash getTip() {
+		return tip.get();
+	}
+	
+	@Override
+	public void setTip(Hash tip) {
+		//the tip is only moved once a block is fully indexed, so this is where we commit
+		this.tip.set(tip);
+		db.commit();
+	}
+	
+	@Override
+	public Network getNetwork() {
+		return network;
+	}
+	
+	@Override
+	public void close() throws Exception {
+		db.close();
+	}
+}
@@ -18,6 +18,7 @@ package io.tokhn.store;
 
 import java.util.List;
 import java.util.NavigableSet;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 import org.mapdb.DB;
@@ -40,7 +41,7 @@ public class MapDBUTXOStore implements UTXOStore, AutoCloseable {
 	
 	public MapDBUTXOStore(Network network) {
 		this.network = network;
-		db = DBMaker.fileDB("UStore-" + network.toString() + ".db").closeOnJvmShutdown().make();
+		db = DBMaker.fileDB("UStore-" + network.toString() + ".db").transactionEnable().closeOnJvmShutdown().make();
 		utxos = db.hashMap("utxos").keySerializer(new HashSerializer()).valueSerializer(new UTXOSerializer()).createOrOpen();
 		utxoIndex = db.treeSet("utxoIndex").serializer(Serializer.BYTE_ARRAY).createOrOpen();
 	}
@@ -49,7 +50,6 @@ public class MapDBUTXOStore implements UTXOStore, AutoCloseable {
 	public void put(UTXO utxo) {
 		utxos.put(utxo.getUtxoId(), utxo);
 		utxoIndex.add(utxo.getUtxoId().getBytes());
-		db.commit();
 	}
 
 	@Override
@@ -61,6 +61,17 @@ public class MapDBUTXOStore implements UTXOStore, AutoCloseable {
 	public void remove(Hash utxoId) {
 		utxos.remove(utxoId);
 		utxoIndex.remove(utxoId.getBytes());
+	}
+	
+	@Override
+	public boolean commit() {
+		//a block's changes go to disk together or not at all
+		db.commit();
+		return true;
+	}
+	
+	@Override
+	public void flush() {
 		db.commit();
 	}
 
@@ -79,6 +90,16 @@ public class MapDBUTXOStore implements UTXOStore, AutoCloseable {
 		return utxoIndex.stream().map(utxoId -> utxos.get(new Hash(utxoId))).collect(Collectors.toList());
 	}
 
+	@Override
+	public void forEachUtxo(Consumer<UTXO> consumer) {
+		utxoIndex.forEach(utxoId -> consumer.accept(utxos.get(new Hash(utxoId))));
+	}
+	
+	@Override
+	public long getSize() {
+		return utxos.sizeLong();
+	}
+	
 	@Override
 	public List<UTXO> getUtxosForAddress(Address address) {
 		return utxoIndex.stream().map(utxoId -> utxos.get(new Hash(utxoId))).filter(uxto -> uxto.getAddress().equals(address)).collect(Collectors.toList());
@@ -25,25 +25,46 @@ import java.security.PublicKey;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.PKCS8EncodedKeySpec;
 import java.security.spec.X509EncodedKeySpec;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.NavigableSet;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.mapdb.DB;
 import org.mapdb.DBMaker;
 import org.mapdb.HTreeMap;
 import org.mapdb.Serializer;
+import org.mapdb.serializer.SerializerArrayTuple;
 
 import io.tokhn.codec.HashSerializer;
 import io.tokhn.codec.UTXOSerializer;
+import io.tokhn.codec.WalletDeltasSerializer;
 import io.tokhn.core.UTXO;
+import io.tokhn.core.WalletDelta;
 import io.tokhn.node.Network;
 import io.tokhn.util.Hash;
 
 public class MapDBWalletStore implements WalletStore, AutoCloseable {
+	//how many blocks back a reorganization can be undone before the wallet has to start over
+	private static final int MAX_DELTAS = 100;
+	//a transaction that isn't in a block this long after it was made is taken to be lost, so its UTXOs can be spent again
+	private static final long LOCK_SECONDS = 60 * 60;
 	private final DB db;
 	private HTreeMap<Hash, UTXO> utxos;
-	private NavigableSet<byte[]> utxoIndex;
+	//each network has its spendable UTXOs ordered by (amount, utxoId), so selection never reads another network's coins
+	private final Map<Network, NavigableSet<Object[]>> spendable = new EnumMap<>(Network.class);
+	//locked UTXOs are kept out of spendable until they are unlocked or removed, the value is when they were locked
+	private HTreeMap<Hash, Long> locked;
+	//the latest deltas for each network, oldest first
+	private HTreeMap<String, ArrayList<WalletDelta>> deltas;
 	private HTreeMap<String, byte[]> params;
 	private PrivateKey privateKey;
 	private PublicKey publicKey;
@@ -53,11 +74,28 @@ public class MapDBWalletStore implements WalletStore, AutoCloseable {
 	}
 	
 	public MapDBWalletStore(File file) throws NoSuchAlgorithmException, NoSuchProviderException, InvalidKeySpecException {
-		db = DBMaker.fileDB(file).closeOnJvmShutdown().make();
+		db = DBMaker.fileDB(file).transactionEnable().closeOnJvmShutdown().make();
 		utxos = db.hashMap("utxos").keySerializer(new HashSerializer()).valueSerializer(new UTXOSerializer()).createOrOpen();
-		utxoIndex = db.treeSet("utxoIndex").serializer(Serializer.BYTE_ARRAY).createOrOpen();
+		for(Network network : Network.values()) {
+			spendable.put(network, db.treeSet("spendable-" + network).serializer(new SerializerArrayTuple(Serializer.LONG, Serializer.BYTE_ARRAY)).createOrOpen());
+		}
+		locked = db.hashMap("locked").keySerializer(new HashSerializer()).valueSerializer(Serializer.LONG).createOrOpen();
+		deltas = db.hashMap("deltas").keySerializer(Serializer.STRING).valueSerializer(new WalletDeltasSerializer()).createOrOpen();
 		params = db.hashMap("params").keySerializer(Serializer.STRING).valueSerializer(Serializer.BYTE_ARRAY).createOrOpen();
 		
+		//wallets from before the per network index had one index of every UTXO
+		NavigableSet<byte[]> utxoIndex = db.treeSet("utxoIndex").serializer(Serializer.BYTE_ARRAY).createOrOpen();
+		if(!utxoIndex.isEmpty()) {
+			utxoIndex.forEach(utxoId -> {
+				UTXO utxo = utxos.get(new Hash(utxoId));
+				if(utxo != null) {
+					spendable.get(utxo.getNetwork()).add(toKey(utxo));
+				}
+			});
+			utxoIndex.clear();
+			db.commit();
+		}
+		
 		if(params.containsKey("PUBLICKEY") && params.containsKey("PRIVATEKEY")) {
 			KeyFactory fact = KeyFactory.getInstance("ECDSA", "BC");
 			PKCS8EncodedKeySpec privateKeySpec = new PKCS8EncodedKeySpec(params.get("PRIVATEKEY"));
@@ -80,8 +118,135 @@ public class MapDBWalletStore implements WalletStore, AutoCloseable {
 
 	@Override
 	public List<UTXO> getUtxos(Network network) {
-		return utxoIndex.stream().map(utxoId -> utxos.get(new Hash(utxoId))).filter(utxo -> utxo.getNetwork() == network).collect(Collectors.toList());
+		Stream<UTXO> unlocked = spendable.get(network).stream().map(key -> utxos.get(new Hash((byte[]) key[1])));
+		return Stream.concat(unlocked, getLockedUtxos(network).stream()).collect(Collectors.toList());
+	}
+	
+	@Override
+	public Iterator<UTXO> getSpendableUtxos(Network network, long maxAmount) {
+		NavigableSet<Object[]> keys = spendable.get(network);
+		if(maxAmount < Long.MAX_VALUE) {
+			//a key with only the amount sorts before every key with that amount
+			keys = keys.headSet(new Object[] { maxAmount + 1 }, false);
+		}
+		Iterator<Object[]> itr = keys.descendingIterator();
+		return new Iterator<UTXO>() {
+			@Override
+			public boolean hasNext() {
+				return itr.hasNext();
+			}
+			
+			@Override
+			public UTXO next() {
+				return utxos.get(new Hash((byte[]) itr.next()[1]));
+			}
+		};
+	}
+	
+	@Override
+	public List<UTXO> getLockedUtxos(Network network) {
+		List<UTXO> result = new ArrayList<>();
+		for(Object utxoId : locked.keySet()) {
+			UTXO utxo = utxos.get(utxoId);
+			if(utxo != null && utxo.getNetwork() == network) {
+				result.add(utxo);
+			}
+		}
+		return result;
+	}
+	
+	@Override
+	public void lockUtxo(Hash utxoId) {
+		lockUtxos(Collections.singletonList(utxoId));
+	}
+	
+	@Override
+	public void unlockUtxo(Hash utxoId) {
+		unlockUtxos(Collections.singletonList(utxoId));
+	}
+	
+	@Override
+	public void lockUtxos(Collection<Hash> utxoIds) {
+		//one commit for all of them, so they are reserved together or not at all
+		long now = Instant.now().getEpochSecond();
+		for(Hash utxoId : utxoIds) {
+			UTXO utxo = utxos.get(utxoId);
+			if(utxo != null && spendable.get(utxo.getNetwork()).remove(toKey(utxo))) {
+				locked.put(utxoId, now);
+			}
+		}
+		db.commit();
+	}
+	
+	@Override
+	public void unlockUtxos(Collection<Hash> utxoIds) {
+		for(Hash utxoId : utxoIds) {
+			UTXO utxo = utxos.get(utxoId);
+			if(utxo != null && locked.remove(utxoId) != null) {
+				spendable.get(utxo.getNetwork()).add(toKey(utxo));
+			}
+		}
+		db.commit();
+	}
+	
+	@Override
+	public WalletDelta getLastDelta(Network network) {
+		ArrayList<WalletDelta> history = deltas.get(network.toString());
+		return history == null || history.isEmpty() ? null : history.get(history.size() - 1);
+	}
+	
+	@Override
+	public void applyDelta(Network network, WalletDelta delta) {
+		delta.getSpent().forEach(utxo -> remove(utxo));
+		delta.getCreated().forEach(utxo -> put(utxo));
+		expireLocks(network);
+		ArrayList<WalletDelta> history = deltas.getOrDefault(network.toString(), new ArrayList<>());
+		history.add(delta);
+		if(history.size() > MAX_DELTAS) {
+			history.remove(0);
+		}
+		deltas.put(network.toString(), history);
+		db.commit();
+	}
+	
+	@Override
+	public WalletDelta rollbackDelta(Network network) {
+		ArrayList<WalletDelta> history = deltas.get(network.toString());
+		if(history == null || history.isEmpty()) {
+			return null;
+		}
+		
+		WalletDelta delta = history.remove(history.size() - 1);
+		delta.getCreated().forEach(utxo -> remove(utxo));
+		delta.getSpent().forEach(utxo -> put(utxo));
+		deltas.put(network.toString(), history);
+		db.commit();
+		return delta;
+	}
+	
+	@Override
+	public void reset(Network network, List<UTXO> replacements, WalletDelta base) {
+		List<UTXO> current = getUtxos(network);
+		Map<Hash, Long> wasLocked = new HashMap<>();
+		for(UTXO utxo : current) {
+			Long lockedAt = locked.get(utxo.getUtxoId());
+			if(lockedAt != null) {
+				wasLocked.put(utxo.getUtxoId(), lockedAt);
+			}
+			remove(utxo);
+		}
+		for(UTXO utxo : replacements) {
+			put(utxo);
+			if(wasLocked.containsKey(utxo.getUtxoId())) {
+				spendable.get(network).remove(toKey(utxo));
+				locked.put(utxo.getUtxoId(), wasLocked.get(utxo.getUtxoId()));
+			}
+		}
+		expireLocks(network);
+		deltas.put(network.toString(), new ArrayList<>(Collections.singletonList(base)));
+		db.commit();
 	}
+	
 	@Override
 	public UTXO getUtxo(Hash utxoId) {
 		return utxos.get(utxoId);
@@ -89,15 +254,16 @@ public class MapDBWalletStore implements WalletStore, AutoCloseable {
 
 	@Override
 	public void removeUtxo(Hash utxoId) {
-		utxos.remove(utxoId);
-		utxoIndex.remove(utxoId.getBytes());
-		db.commit();
+		UTXO utxo = utxos.get(utxoId);
+		if(utxo != null) {
+			remove(utxo);
+			db.commit();
+		}
 	}
 
 	@Override
 	public void putUtxo(UTXO utxo) {
-		utxos.put(utxo.getUtxoId(), utxo);
-		utxoIndex.add(utxo.getUtxoId().getBytes());
+		put(utxo);
 		db.commit();
 	}
 
@@ -115,4 +281,45 @@ public class MapDBWalletStore implements WalletStore, AutoCloseable {
 		params.put("PUBLICKEY", publicKey.getEncoded());
 		db.commit();
 	}
+	
+	private void put(UTXO utxo) {
+		utxos.put(utxo.getUtxoId(), utxo);
+		if(!locked.containsKey(utxo.getUtxoId())) {
+			spendable.get(utxo.getNetwork()).add(toKey(utxo));
+		}
+	}
+	
+	private void remove(UTXO utxo) {
+		utxos.remove(utxo.getUtxoId());
+		spendable.get(utxo.getNetwork()).remove(toKey(utxo));
+		locked.remove(utxo.getUtxoId());
+	}
+	
+	/**
+	 * Makes the UTXOs locked longer than {@link #LOCK_SECONDS} spendable
+	 * again, it is only called once a block was applied, since a UTXO spent in
+	 * that block is already gone instead.
+	 */
+	private void expireLocks(Network network) {
+		long expiry = Instant.now().getEpochSecond() - LOCK_SECONDS;
+		List<Hash> expired = new ArrayList<>();
+		for(Object utxoId : locked.keySet()) {
+			if(locked.get(utxoId) < expiry) {
+				expired.add((Hash) utxoId);
+			}
+		}
+		for(Hash utxoId : expired) {
+			UTXO utxo = utxos.get(utxoId);
+			if(utxo == null) {
+				locked.remove(utxoId);
+			} else if(utxo.getNetwork() == network) {
+				locked.remove(utxoId);
+				spendable.get(network).add(toKey(utxo));
+			}
+		}
+	}
+	
+	private static Object[] toKey(UTXO utxo) {
+		return new Object[] { utxo.getAmount().getValue(), utxo.getUtxoId().getBytes() };
+	}
 }
\ No newline at end of file
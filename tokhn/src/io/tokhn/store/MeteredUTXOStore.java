@@ -0,0 +1,130 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import java.util.List;
+import java.util.function.Consumer;
+
+import io.tokhn.core.Address;
+import io.tokhn.core.UTXO;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+import io.tokhn.util.Metrics;
+import io.tokhn.util.Metrics.Histogram;
+
+/*
+ * Times every call into another UTXOStore, in microseconds, under
+ * <network>.utxo.<operation>. In front of a cache it measures what the
+ * Blockchain actually waits on, hits and flushes included.
+ */
+public class MeteredUTXOStore implements UTXOStore, AutoCloseable {
+	private final UTXOStore store;
+	private final Histogram gets;
+	private final Histogram puts;
+	private final Histogram removes;
+	private final Histogram scans;
+	private final Histogram commits;
+	private final Histogram flushes;
+	
+	public MeteredUTXOStore(UTXOStore store) {
+		this.store = store;
+		String prefix = store.getNetwork() + ".utxo.";
+		gets = Metrics.histogram(prefix + "get");
+		puts = Metrics.histogram(prefix + "put");
+		removes = Metrics.histogram(prefix + "remove");
+		scans = Metrics.histogram(prefix + "scan");
+		commits = Metrics.histogram(prefix + "commit");
+		flushes = Metrics.histogram(prefix + "flush");
+	}
+	
+	@Override
+	public void put(UTXO utxo) {
+		long start = System.nanoTime();
+		store.put(utxo);
+		puts.updateSince(start);
+	}
+	
+	@Override
+	public UTXO get(Hash utxoId) {
+		long start = System.nanoTime();
+		UTXO utxo = store.get(utxoId);
+		gets.updateSince(start);
+		return utxo;
+	}
+	
+	@Override
+	public List<UTXO> getUtxos() {
+		long start = System.nanoTime();
+		List<UTXO> utxos = store.getUtxos();
+		scans.updateSince(start);
+		return utxos;
+	}
+	
+	@Override
+	public void forEachUtxo(Consumer<UTXO> consumer) {
+		long start = System.nanoTime();
+		store.forEachUtxo(consumer);
+		scans.updateSince(start);
+	}
+	
+	@Override
+	public long getSize() {
+		return store.getSize();
+	}
+	
+	@Override
+	public List<UTXO> getUtxosForAddress(Address address) {
+		long start = System.nanoTime();
+		List<UTXO> utxos = store.getUtxosForAddress(address);
+		scans.updateSince(start);
+		return utxos;
+	}
+	
+	@Override
+	public void remove(Hash utxoId) {
+		long start = System.nanoTime();
+		store.remove(utxoId);
+		removes.updateSince(start);
+	}
+	
+	@Override
+	public Network getNetwork() {
+		return store.getNetwork();
+	}
+	
+	@Override
+	public boolean commit() {
+		long start = System.nanoTime();
+		boolean durable = store.commit();
+		commits.updateSince(start);
+		return durable;
+	}
+	
+	@Override
+	public void flush() {
+		long start = System.nanoTime();
+		store.flush();
+		flushes.updateSince(start);
+	}
+	
+	@Override
+	public void close() throws Exception {
+		if(store instanceof AutoCloseable) {
+			((AutoCloseable) store).close();
+		}
+	}
+}
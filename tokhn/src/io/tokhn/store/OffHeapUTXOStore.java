@@ -0,0 +1,400 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import io.tokhn.core.Address;
+import io.tokhn.core.Token;
+import io.tokhn.core.UTXO;
+import io.tokhn.node.InvalidNetworkException;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+/*
+ * A UTXOStore that keeps each UTXO as a fixed size slot in direct memory, so
+ * a large UTXO set costs about 150 bytes per coin and nothing for the GC to
+ * trace. The slots form an open addressing hash table split across slabs,
+ * since a single ByteBuffer can't be larger than 2GB.
+ * 
+ * 		Bytes	:Description
+ * 		1	:	slot state
+ * 		32	:	UTXO id
+ * 		32	:	source transaction id
+ * 		4	:	source TXO index
+ * 		25	:	address
+ * 		8	:	amount in megas
+ * 		4	:	script reference, -1 if there is no script
+ * 
+ * Scripts are rare, so they are kept on the heap and only referenced from the
+ * slot. Like the other stores this expects a single writer, which holds a
+ * StampedLock while it changes the table. Lookups read optimistically and
+ * only take the read lock if a write overlapped them, since a slot can be
+ * overwritten in place and a torn read would otherwise be returned as is.
+ */
+public class OffHeapUTXOStore implements UTXOStore {
+	private static final int STATE = 0;
+	private static final int UTXO_ID = 1;
+	private static final int SOURCE_TX_ID = 33;
+	private static final int SOURCE_TXO_INDEX = 65;
+	private static final int ADDRESS = 69;
+	private static final int AMOUNT = 94;
+	private static final int SCRIPT = 102;
+	private static final int SLOT_LENGTH = 106;
+	private static final int HASH_LENGTH = 32;
+	private static final int ADDRESS_LENGTH = 25;
+	private static final byte EMPTY = 0;
+	private static final byte FULL = 1;
+	private static final byte DELETED = 2;
+	private static final int SLAB_BITS = 16; //slots per slab as a power of 2
+	private static final double MAX_LOAD = 0.7;
+	private final Network network;
+	private final Map<Integer, String> scripts = new ConcurrentHashMap<>();
+	private final StampedLock lock = new StampedLock();
+	private volatile Table table;
+	private int size = 0;
+	private int deleted = 0;
+	private int nextScriptRef = 0;
+	
+	public OffHeapUTXOStore(Network network) {
+		this(network, 1 << SLAB_BITS);
+	}
+	
+	/**
+	 * 
+	 * @param expectedSize The number of UTXOs to size the table for up front
+	 */
+	public OffHeapUTXOStore(Network network, int expectedSize) {
+		this.network = network;
+		int capacity = 1 << SLAB_BITS;
+		while(capacity * MAX_LOAD < expectedSize) {
+			capacity <<= 1;
+		}
+		table = new Table(capacity);
+	}
+	
+	@Override
+	public void put(UTXO utxo) {
+		long stamp = lock.writeLock();
+		try {
+			write(utxo);
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	private void write(UTXO utxo) {
+		if(size + deleted + 1 > table.capacity * MAX_LOAD) {
+			//only grow if the live slots need it, otherwise we are just clearing out deleted slots
+			rehash(size + 1 > table.capacity * MAX_LOAD / 2 ? table.capacity << 1 : table.capacity);
+		}
+		
+		Table t = table;
+		long[] key = toLongs(utxo.getUtxoId().getBytes());
+		int slot = find(t, key);
+		if(slot >= 0) {
+			releaseScript(t, slot);
+		} else {
+			slot = ~slot;
+			if(t.getState(slot) == DELETED) {
+				deleted--;
+			}
+			size++;
+		}
+		
+		ByteBuffer slab = t.getSlab(slot);
+		int offset = t.getOffset(slot);
+		for(int itr = 0; itr < key.length; itr++) {
+			slab.putLong(offset + UTXO_ID + itr * 8, key[itr]);
+		}
+		putBytes(slab, offset + SOURCE_TX_ID, utxo.getSourceTxoId().getBytes(), HASH_LENGTH);
+		slab.putInt(offset + SOURCE_TXO_INDEX, utxo.getSourceTxoIndex());
+		putBytes(slab, offset + ADDRESS, utxo.getAddress().getBytes(), ADDRESS_LENGTH);
+		slab.putLong(offset + AMOUNT, utxo.getAmount().getValue());
+		slab.putInt(offset + SCRIPT, storeScript(utxo.getScript()));
+		//the state goes last, so a reader never finds a key without its value
+		slab.put(offset + STATE, FULL);
+	}
+	
+	@Override
+	public UTXO get(Hash utxoId) {
+		long[] key = toLongs(utxoId.getBytes());
+		return read(() -> {
+			Table t = table;
+			int slot = find(t, key);
+			return slot >= 0 ? decode(t, slot) : null;
+		});
+	}
+	
+	@Override
+	public void remove(Hash utxoId) {
+		long stamp = lock.writeLock();
+		try {
+			Table t = table;
+			int slot = find(t, toLongs(utxoId.getBytes()));
+			if(slot >= 0) {
+				t.getSlab(slot).put(t.getOffset(slot) + STATE, DELETED);
+				releaseScript(t, slot);
+				size--;
+				deleted++;
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+	
+	@Override
+	public Network getNetwork() {
+		return network;
+	}
+	
+	@Override
+	public List<UTXO> getUtxos() {
+		List<UTXO> result = new ArrayList<>();
+		forEachUtxo(utxo -> result.add(utxo));
+		return result;
+	}
+	
+	@Override
+	public void forEachUtxo(Consumer<UTXO> consumer) {
+		//the consumer can't be undone if we had to retry, so a scan always locks
+		long stamp = lock.readLock();
+		try {
+			Table t = table;
+			for(int slot = 0; slot < t.capacity; slot++) {
+				if(t.getState(slot) == FULL) {
+					consumer.accept(decode(t, slot));
+				}
+			}
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	@Override
+	public long getSize() {
+		return size();
+	}
+	
+	@Override
+	public List<UTXO> getUtxosForAddress(Address address) {
+		byte[] addressBytes = address.getBytes();
+		long stamp = lock.readLock();
+		try {
+			Table t = table;
+			List<UTXO> result = new ArrayList<>();
+			for(int slot = 0; slot < t.capacity; slot++) {
+				if(t.getState(slot) == FULL && matches(t.getSlab(slot), t.getOffset(slot) + ADDRESS, addressBytes)) {
+					result.add(decode(t, slot));
+				}
+			}
+			return result;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	public int size() {
+		return read(() -> size);
+	}
+	
+	/**
+	 * 
+	 * @return The direct memory used by the table, not counting scripts
+	 */
+	public long getOffHeapBytes() {
+		return (long) table.capacity * SLOT_LENGTH;
+	}
+	
+	private <T> T read(Supplier<T> reader) {
+		long stamp = lock.tryOptimisticRead();
+		if(stamp != 0) {
+			try {
+				T result = reader.get();
+				if(lock.validate(stamp)) {
+					return result;
+				}
+			} catch(RuntimeException e) {
+				//a slot was overwritten while we read it, so we will try again under the lock
+			}
+		}
+		
+		stamp = lock.readLock();
+		try {
+			return reader.get();
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+	
+	/*
+	 * linear probing from the start of the UTXO id, which is already a hash
+	 * returns the slot holding the key or the complement of the slot it should go in
+	 */
+	private int find(Table t, long[] key) {
+		int mask = t.capacity - 1;
+		int slot = (int) (key[0] ^ (key[0] >>> 32)) & mask;
+		int firstDeleted = -1;
+		for(int probe = 0; probe < t.capacity; probe++) {
+			byte state = t.getState(slot);
+			if(state == EMPTY) {
+				return ~(firstDeleted >= 0 ? firstDeleted : slot);
+			} else if(state == DELETED) {
+				if(firstDeleted < 0) {
+					firstDeleted = slot;
+				}
+			} else if(keyEquals(t.getSlab(slot), t.getOffset(slot), key)) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		if(firstDeleted < 0) {
+			throw new IllegalStateException("UTXO table is full");
+		}
+		return ~firstDeleted;
+	}
+	
+	private void rehash(int capacity) {
+		Table old = table;
+		Table t = new Table(capacity);
+		byte[] raw = new byte[SLOT_LENGTH];
+		for(int slot = 0; slot < old.capacity; slot++) {
+			if(old.getState(slot) == FULL) {
+				ByteBuffer from = old.getSlab(slot).duplicate();
+				from.position(old.getOffset(slot));
+				from.get(raw);
+				long[] key = new long[4];
+				ByteBuffer wrapped = ByteBuffer.wrap(raw, UTXO_ID, HASH_LENGTH);
+				for(int itr = 0; itr < key.length; itr++) {
+					key[itr] = wrapped.getLong();
+				}
+				int newSlot = ~find(t, key);
+				ByteBuffer to = t.getSlab(newSlot).duplicate();
+				to.position(t.getOffset(newSlot));
+				to.put(raw);
+			}
+		}
+		deleted = 0;
+		table = t;
+	}
+	
+	private UTXO decode(Table t, int slot) {
+		ByteBuffer slab = t.getSlab(slot);
+		int offset = t.getOffset(slot);
+		byte[] sourceTxId = getBytes(slab, offset + SOURCE_TX_ID, HASH_LENGTH);
+		int sourceTxoIndex = slab.getInt(offset + SOURCE_TXO_INDEX);
+		byte[] address = getBytes(slab, offset + ADDRESS, ADDRESS_LENGTH);
+		long megas = slab.getLong(offset + AMOUNT);
+		int scriptRef = slab.getInt(offset + SCRIPT);
+		String script = scriptRef < 0 ? "" : scripts.get(scriptRef);
+		if(script == null) {
+			throw new IllegalStateException("UTXO script changed while it was read");
+		}
+		try {
+			return new UTXO(network, new Hash(sourceTxId), sourceTxoIndex, new Address(address), Token.valueOfInMegas(megas), script);
+		} catch(InvalidNetworkException e) {
+			throw new IllegalStateException("UTXO slot changed while it was read");
+		}
+	}
+	
+	private int storeScript(String script) {
+		if(script == null || script.isEmpty()) {
+			return -1;
+		}
+		int ref = nextScriptRef++;
+		scripts.put(ref, script);
+		return ref;
+	}
+	
+	private void releaseScript(Table t, int slot) {
+		int ref = t.getSlab(slot).getInt(t.getOffset(slot) + SCRIPT);
+		if(ref >= 0) {
+			scripts.remove(ref);
+		}
+	}
+	
+	private static long[] toLongs(byte[] hash) {
+		ByteBuffer bb = ByteBuffer.wrap(hash);
+		return new long[] { bb.getLong(), bb.getLong(), bb.getLong(), bb.getLong() };
+	}
+	
+	private static boolean keyEquals(ByteBuffer slab, int offset, long[] key) {
+		for(int itr = 0; itr < key.length; itr++) {
+			if(slab.getLong(offset + UTXO_ID + itr * 8) != key[itr]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static boolean matches(ByteBuffer slab, int offset, byte[] bytes) {
+		for(int itr = 0; itr < bytes.length; itr++) {
+			if(slab.get(offset + itr) != bytes[itr]) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	private static void putBytes(ByteBuffer slab, int offset, byte[] bytes, int length) {
+		for(int itr = 0; itr < length; itr++) {
+			slab.put(offset + itr, itr < bytes.length ? bytes[itr] : 0);
+		}
+	}
+	
+	private static byte[] getBytes(ByteBuffer slab, int offset, int length) {
+		byte[] bytes = new byte[length];
+		for(int itr = 0; itr < length; itr++) {
+			bytes[itr] = slab.get(offset + itr);
+		}
+		return bytes;
+	}
+	
+	private static final class Table {
+		private final int capacity;
+		private final ByteBuffer[] slabs;
+		
+		private Table(int capacity) {
+			this.capacity = capacity;
+			int slotsPerSlab = Math.min(capacity, 1 << SLAB_BITS);
+			slabs = new ByteBuffer[capacity / slotsPerSlab];
+			for(int itr = 0; itr < slabs.length; itr++) {
+				//direct buffers start zeroed, which is EMPTY for every slot
+				slabs[itr] = ByteBuffer.allocateDirect(slotsPerSlab * SLOT_LENGTH);
+			}
+		}
+		
+		private ByteBuffer getSlab(int slot) {
+			return slabs[slot >>> SLAB_BITS];
+		}
+		
+		private int getOffset(int slot) {
+			return (slot & ((1 << SLAB_BITS) - 1)) * SLOT_LENGTH;
+		}
+		
+		private byte getState(int slot) {
+			return getSlab(slot).get(getOffset(slot) + STATE);
+		}
+	}
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import io.tokhn.core.TxLocation;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+public interface TxIndexStore {
+	public void put(Hash txId, TxLocation location);
+	public TxLocation get(Hash txId);
+	public void remove(Hash txId);
+	public Hash getTip();
+	public void setTip(Hash tip);
+	public Network getNetwork();
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.store;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import io.tokhn.core.Address;
+import io.tokhn.core.Block;
+import io.tokhn.core.Checkpoint;
+import io.tokhn.core.LocalBlock;
+import io.tokhn.core.TXI;
+import io.tokhn.core.TXO;
+import io.tokhn.core.Token;
+import io.tokhn.core.Transaction;
+import io.tokhn.core.UTXO;
+import io.tokhn.node.InvalidNetworkException;
+import io.tokhn.node.Network;
+import io.tokhn.util.Hash;
+
+/*
+ * A UTXO snapshot is the whole UTXO set at one block, which lets a new node
+ * start from that block instead of replaying every block from genesis.
+ * 
+ * 		Bytes	:Description
+ * 		4	:	magic
+ * 		1	:	version
+ * 		1	:	network id
+ * 		4+n	:	genesis LocalBlock
+ * 		4+n	:	snapshot LocalBlock
+ * 		8	:	number of UTXOs
+ * 	then for each UTXO
+ * 		32	:	source transaction id
+ * 		4	:	source TXO index
+ * 		25	:	address
+ * 		8	:	amount in megas
+ * 		4+n	:	UTF-8 script
+ * 	and finally
+ * 		32	:	SHA-512/256 of everything before it
+ * 
+ * The checksum is also what a snapshot is trusted by, it has to come from
+ * somewhere other than the file to import it.
+ */
+public class UTXOSnapshot {
+	private static final int MAGIC = 0x544B4E53; //TKNS
+	private static final byte VERSION = 1;
+	private static final int HASH_LENGTH = 32;
+	private static final int ADDRESS_LENGTH = 25;
+	//the snapshot block carries every address ever used, so it can be big, but not this big
+	private static final int MAX_BLOCK_BYTES = 256 * 1024 * 1024;
+	private static final int MAX_SCRIPT_BYTES = 1024 * 1024;
+	//everything a LocalBlock is made of, nothing else is deserialized from a snapshot
+	private static final Set<String> BLOCK_CLASSES = new HashSet<>(Arrays.asList(
+			LocalBlock.class.getName(), Block.class.getName(), Transaction.class.getName(), Transaction.Type.class.getName(),
+			TXI.class.getName(), TXO.class.getName(), UTXO.class.getName(), Address.class.getName(), Token.class.getName(),
+			Hash.class.getName(), Network.class.getName(), Enum.class.getName(), Number.class.getName(), BigInteger.class.getName(),
+			ArrayList.class.getName(), LinkedList.class.getName(), HashSet.class.getName(), Collections.emptyList().getClass().getName(),
+			byte[].class.getName()));
+	
+	/**
+	 * Streams the UTXO set out of the store, so it is never all in memory.
+	 * 
+	 * @return The checksum of the snapshot, which is needed to import it
+	 */
+	public static Hash write(OutputStream out, Network network, LocalBlock genesis, LocalBlock tip, UTXOStore uStore) throws IOException {
+		MessageDigest digest = getDigest();
+		DataOutputStream dos = new DataOutputStream(new DigestOutputStream(out, digest));
+		dos.writeInt(MAGIC);
+		dos.writeByte(VERSION);
+		dos.writeByte(network.getId());
+		writeBlock(dos, genesis);
+		writeBlock(dos, tip);
+		long count = uStore.getSize();
+		dos.writeLong(count);
+		long[] written = { 0 };
+		try {
+			uStore.forEachUtxo(utxo -> {
+				try {
+					dos.write(utxo.getSourceTxoId().getBytes());
+					dos.writeInt(utxo.getSourceTxoIndex());
+					dos.write(utxo.getAddress().getBytes());
+					dos.writeLong(utxo.getAmount().getValue());
+					writeBytes(dos, utxo.getScript() == null ? new byte[0] : utxo.getScript().getBytes(StandardCharsets.UTF_8));
+					written[0]++;
+				} catch(IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		} catch(UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if(written[0] != count) {
+			throw new IOException("The UTXO set changed while it was being written");
+		}
+		dos.flush();
+		//the checksum itself isn't part of what is hashed
+		byte[] checksum = digest.digest();
+		out.write(checksum);
+		out.flush();
+		return new Hash(checksum);
+	}
+	
+	/**
+	 * Loads a snapshot into empty stores. The whole file is checked against
+	 * the trusted checksum before a block is read from it or anything is
+	 * stored, the UTXOs stored are taken out again if the file changes under
+	 * the second pass, and the Checkpoint is written last, so a bad snapshot
+	 * never leaves a partial UTXO set behind.
+	 * 
+	 * @param checksum The checksum {@link #write} returned for the snapshot, from a source that is trusted
+	 * @return The block the snapshot was taken at
+	 */
+	public static LocalBlock read(File file, Network network, Hash checksum, BlockStore bStore, UTXOStore uStore) throws IOException {
+		if(bStore.getCheckpoint() != null || bStore.getLatestBlock() != null || uStore.getSize() != 0) {
+			throw new IOException("A snapshot can only be imported into an empty store");
+		}
+		
+		//the first pass only checks the file, the second one stores what it checked
+		try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			parse(in, network, checksum, false, utxo -> {});
+		}
+		LocalBlock[] blocks = null;
+		try(InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+			blocks = parse(in, network, checksum, true, utxo -> uStore.put(utxo));
+		} catch(IOException | RuntimeException e) {
+			clear(uStore);
+			throw e;
+		}
+		uStore.flush();
+		
+		bStore.put(blocks[0]);
+		bStore.put(blocks[1]);
+		bStore.putCheckpoint(new Checkpoint(network, blocks[1].getHash(), blocks[1]));
+		return blocks[1];
+	}
+	
+	/**
+	 * 
+	 * @param readBlocks Whether to read the blocks or only skip over them, which is all the pass before the checksum is known to match does
+	 * @return The genesis and snapshot blocks, if the checksum matches and they were read
+	 */
+	private static LocalBlock[] parse(InputStream in, Network network, Hash checksum, boolean readBlocks, Consumer<UTXO> sink) throws IOException {
+		MessageDigest digest = getDigest();
+		DigestInputStream dis = new DigestInputStream(in, digest);
+		DataInputStream data = new DataInputStream(dis);
+		if(data.readInt() != MAGIC) {
+			throw new IOException("Not a UTXO snapshot");
+		} else if(data.readByte() != VERSION) {
+			throw new IOException("Unsupported UTXO snapshot version");
+		} else if(data.readByte() != network.getId()) {
+			throw new IOException("UTXO snapshot is not for " + network);
+		}
+		
+		byte[] genesisBytes = readBytes(data, MAX_BLOCK_BYTES);
+		byte[] tipBytes = readBytes(data, MAX_BLOCK_BYTES);
+		LocalBlock genesis = readBlocks ? readBlock(genesisBytes) : null;
+		LocalBlock tip = readBlocks ? readBlock(tipBytes) : null;
+		if(readBlocks && !genesis.getHash().equals(network.getParams().getGenesisBlock().getHash())) {
+			throw new IOException("UTXO snapshot has the wrong genesis block");
+		}
+		
+		long count = data.readLong();
+		if(count < 0) {
+			throw new IOException("UTXO snapshot has a negative number of UTXOs");
+		}
+		byte[] txId = new byte[HASH_LENGTH];
+		byte[] address = new byte[ADDRESS_LENGTH];
+		for(long itr = 0; itr < count; itr++) {
+			data.readFully(txId);
+			int index = data.readInt();
+			data.readFully(address);
+			long megas = data.readLong();
+			String script = new String(readBytes(data, MAX_SCRIPT_BYTES), StandardCharsets.UTF_8);
+			try {
+				sink.accept(new UTXO(network, new Hash(txId), index, new Address(address.clone()), Token.valueOfInMegas(megas), script));
+			} catch(InvalidNetworkException e) {
+				throw new IOException("UTXO snapshot has an address from an unknown network");
+			}
+		}
+		
+		dis.on(false);
+		byte[] expected = digest.digest();
+		byte[] stored = new byte[HASH_LENGTH];
+		data.readFully(stored);
+		if(!MessageDigest.isEqual(expected, stored)) {
+			throw new IOException("UTXO snapshot failed its checksum");
+		} else if(!MessageDigest.isEqual(expected, checksum.getBytes())) {
+			throw new IOException("UTXO snapshot is not the one with checksum " + checksum);
+		}
+		return new LocalBlock[] { genesis, tip };
+	}
+	
+	private static void clear(UTXOStore uStore) {
+		List<Hash> utxoIds = new ArrayList<>();
+		uStore.forEachUtxo(utxo -> utxoIds.add(utxo.getUtxoId()));
+		utxoIds.forEach(utxoId -> uStore.remove(utxoId));
+		uStore.flush();
+	}
+	
+	private static void writeBlock(DataOutputStream dos, LocalBlock block) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(out);
+		oos.writeObject(block);
+		oos.close();
+		writeBytes(dos, out.toByteArray());
+	}
+	
+	private static LocalBlock readBlock(byte[] bytes) throws IOException {
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+			@Override
+			protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+				if(!BLOCK_CLASSES.contains(desc.getName())) {
+					throw new InvalidClassException(desc.getName(), "not part of a block");
+				}
+				return super.resolveClass(desc);
+			}
+		};
+		try {
+			return (LocalBlock) ois.readObject();
+		} catch (ClassNotFoundException | ClassCastException e) {
+			throw new IOException("UTXO snapshot has an invalid block");
+		}
+	}
+	
+	private static void writeBytes(DataOutputStream dos, byte[] bytes) throws IOException {
+		dos.writeInt(bytes.length);
+		dos.write(bytes);
+	}
+	
+	private static byte[] readBytes(DataInputStream data, int max) throws IOException {
+		//the length comes from the file, so it is checked before anything that big is allocated
+		int length = data.readInt();
+		if(length < 0 || length > max) {
+			throw new IOException("UTXO snapshot has a field of " + length + " bytes");
+		}
+		byte[] bytes = new byte[length];
+		data.readFully(bytes);
+		return bytes;
+	}
+	
+	private static MessageDigest getDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-512/256", "BC");
+		} catch (NoSuchAlgorithmException | NoSuchProviderException e) {
+			e.printStackTrace();
+			System.exit(-1);
+		}
+		
+		return null;
+	}
+}
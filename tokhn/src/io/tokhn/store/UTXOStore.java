@@ -17,6 +17,7 @@
 package io.tokhn.store;
 
 import java.util.List;
+import java.util.function.Consumer;
 
 import io.tokhn.core.Address;
 import io.tokhn.core.UTXO;
@@ -27,7 +28,39 @@ public interface UTXOStore {
 	public void put(UTXO utxo);
 	public UTXO get(Hash utxoId);
 	public List<UTXO> getUtxos();
+	
+	/**
+	 * Hands every UTXO to the consumer one at a time, which unlike
+	 * {@link #getUtxos()} doesn't need the whole set in memory.
+	 */
+	public default void forEachUtxo(Consumer<UTXO> consumer) {
+		getUtxos().forEach(consumer);
+	}
+	
+	/**
+	 * 
+	 * @return The number of UTXOs
+	 */
+	public default long getSize() {
+		return getUtxos().size();
+	}
+	
 	public List<UTXO> getUtxosForAddress(Address address);
 	public void remove(Hash utxoId);
 	public Network getNetwork();
+	
+	/**
+	 * Called once all the changes for a block have been made.
+	 * 
+	 * @return {@code true} if every change so far is durable
+	 */
+	public default boolean commit() {
+		return true;
+	}
+	
+	/**
+	 * Writes out any changes the store is still buffering.
+	 */
+	public default void flush() {
+	}
 }
\ No newline at end of file
@@ -18,9 +18,12 @@ package io.tokhn.store;
 
 import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.Collection;
+import java.util.Iterator;
 import java.util.List;
 
 import io.tokhn.core.UTXO;
+import io.tokhn.core.WalletDelta;
 import io.tokhn.node.Network;
 import io.tokhn.util.Hash;
 
@@ -28,7 +31,46 @@ public interface WalletStore {
 	public PrivateKey getPrivateKey();
 	public PublicKey getPublicKey();
 	public void putKeys(PrivateKey privateKey, PublicKey publicKey);
+	/**
+	 * 
+	 * @return Every UTXO for the network, including locked ones
+	 */
 	public List<UTXO> getUtxos(Network network);
+	/**
+	 * 
+	 * @return The UTXOs for the network that aren't locked and are no bigger than maxAmount, largest first and read as they are needed
+	 */
+	public Iterator<UTXO> getSpendableUtxos(Network network, long maxAmount);
+	public List<UTXO> getLockedUtxos(Network network);
+	/**
+	 * Keeps a UTXO from being selected again while the transaction spending
+	 * it isn't in a block yet. A lock that outlives the transaction is let go
+	 * by {@link #applyDelta} or {@link #reset} once it is old enough.
+	 */
+	public void lockUtxo(Hash utxoId);
+	public void unlockUtxo(Hash utxoId);
+	public void lockUtxos(Collection<Hash> utxoIds);
+	public void unlockUtxos(Collection<Hash> utxoIds);
+	/**
+	 * 
+	 * @return The delta of the block the network is synced to or {@code null} if it was never synced
+	 */
+	public WalletDelta getLastDelta(Network network);
+	/**
+	 * Applies the delta and remembers it as the latest, all in one commit.
+	 */
+	public void applyDelta(Network network, WalletDelta delta);
+	/**
+	 * Undoes the latest delta and forgets it, all in one commit.
+	 * 
+	 * @return The delta undone or {@code null} if there are none left to undo
+	 */
+	public WalletDelta rollbackDelta(Network network);
+	/**
+	 * Replaces every UTXO for the network and starts the deltas over from base.
+	 * Locks are kept for the UTXOs that are still there.
+	 */
+	public void reset(Network network, List<UTXO> utxos, WalletDelta base);
 	public UTXO getUtxo(Hash utxoId);
 	public void putUtxo(UTXO utxo);
 	public void removeUtxo(Hash utxoId);
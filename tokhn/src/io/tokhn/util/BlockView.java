@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.util;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import io.tokhn.core.Block;
+import io.tokhn.core.Transaction;
+import io.tokhn.grpc.BlockModel;
+import io.tokhn.node.Network;
+
+/*
+ * A Block backed by the BlockModel it arrived in. The hashes and
+ * transactions are only decoded when something asks for them and then kept,
+ * so a block we already have costs no more than decoding its hash.
+ * 
+ * It is written out as a plain Block, so stores never see the model.
+ */
+public class BlockView extends Block {
+	private static final long serialVersionUID = -3305843180632245419L;
+	private final transient BlockModel model;
+	private volatile Hash hash = null;
+	private volatile Hash previousHash = null;
+	private volatile List<Transaction> transactions = null;
+	
+	public BlockView(BlockModel model) {
+		super(Network.valueOf(model.getNetwork().name()), model.getIndex(), null, null, model.getTimestamp(), null, model.getDifficulty(), model.getNonce());
+		this.model = model;
+	}
+	
+	@Override
+	public Hash getHash() {
+		if(hash == null) {
+			hash = GRPC.toHash(model.getRawHash(), model.getHash());
+		}
+		return hash;
+	}
+	
+	@Override
+	public Hash getPreviousHash() {
+		if(previousHash == null) {
+			previousHash = GRPC.toHash(model.getRawPreviousHash(), model.getPreviousHash());
+		}
+		return previousHash;
+	}
+	
+	/**
+	 * 
+	 * @return Views of the transactions, which decode themselves as they are used
+	 */
+	@Override
+	public List<Transaction> getTransactions() {
+		if(transactions == null) {
+			transactions = model.getTransactionsList().stream().map(tx -> new TransactionView(tx)).collect(Collectors.toList());
+		}
+		return transactions;
+	}
+	
+	/**
+	 * 
+	 * @return The model this block was read from, which can be relayed as is
+	 */
+	public BlockModel getModel() {
+		return model;
+	}
+	
+	private Object writeReplace() {
+		return new Block(getNetwork(), getIndex(), getHash(), getPreviousHash(), getTimestamp(), getTransactions(), getDifficulty(), getNonce());
+	}
+}
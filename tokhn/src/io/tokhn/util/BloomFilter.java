@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.util;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/*
+ * A Bloom filter over byte strings, used by light clients to subscribe to
+ * their addresses without naming them. The bit positions come from one
+ * SHA-512/256 hash of the data split into two halves and combined, so a
+ * filter built by a client matches the same way on any node.
+ */
+public class BloomFilter {
+	//big enough for a few thousand addresses at a 0.1% false positive rate
+	public static final int MAX_BYTES = 36000;
+	public static final int MAX_HASHES = 50;
+	private final byte[] bits;
+	private final int hashes;
+	
+	/**
+	 * Sizes the filter for the number of elements and false positive rate,
+	 * within {@link #MAX_BYTES} and {@link #MAX_HASHES}.
+	 */
+	public BloomFilter(int elements, double falsePositiveRate) {
+		double ln2 = Math.log(2);
+		int size = (int) Math.ceil(-Math.max(elements, 1) * Math.log(falsePositiveRate) / (ln2 * ln2) / 8);
+		bits = new byte[Math.max(1, Math.min(size, MAX_BYTES))];
+		hashes = (int) Math.max(1, Math.min(Math.round(bits.length * 8 / (double) Math.max(elements, 1) * ln2), MAX_HASHES));
+	}
+	
+	public BloomFilter(byte[] bits, int hashes) {
+		if(bits.length == 0 || bits.length > MAX_BYTES) {
+			throw new IllegalArgumentException("Bloom filter must be between 1 and " + MAX_BYTES + " bytes");
+		}
+		if(hashes < 1 || hashes > MAX_HASHES) {
+			throw new IllegalArgumentException("Bloom filter must use between 1 and " + MAX_HASHES + " hashes");
+		}
+		this.bits = Arrays.copyOf(bits, bits.length);
+		this.hashes = hashes;
+	}
+	
+	public void add(byte[] data) {
+		ByteBuffer digest = ByteBuffer.wrap(Hash.of(data).getBytes());
+		long h1 = digest.getLong();
+		long h2 = digest.getLong();
+		for(int itr = 0; itr < hashes; itr++) {
+			int bit = index(h1, h2, itr);
+			bits[bit >>> 3] |= 1 << (bit & 7);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return {@code false} if the data was never added, otherwise it probably was
+	 */
+	public boolean mightContain(byte[] data) {
+		ByteBuffer digest = ByteBuffer.wrap(Hash.of(data).getBytes());
+		long h1 = digest.getLong();
+		long h2 = digest.getLong();
+		for(int itr = 0; itr < hashes; itr++) {
+			int bit = index(h1, h2, itr);
+			if((bits[bit >>> 3] & (1 << (bit & 7))) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	public byte[] getBits() {
+		return Arrays.copyOf(bits, bits.length);
+	}
+	
+	public int getHashes() {
+		return hashes;
+	}
+	
+	private int index(long h1, long h2, int itr) {
+		return (int) Long.remainderUnsigned(h1 + itr * h2, bits.length * 8L);
+	}
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.util;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import io.tokhn.core.Address;
+import io.tokhn.core.Block;
+import io.tokhn.core.Blockchain;
+import io.tokhn.core.InvalidChainException;
+import io.tokhn.core.LocalBlock;
+import io.tokhn.core.TXO;
+import io.tokhn.core.Token;
+import io.tokhn.core.Transaction;
+import io.tokhn.node.Network;
+import io.tokhn.store.HeapBlockStore;
+import io.tokhn.store.HeapUTXOStore;
+
+/*
+ * Generates TEST chains for load testing. The keys, and so everything else,
+ * come from the seed, so the same settings always give the same blocks with
+ * the same hashes. Timestamps follow the genesis block at the block
+ * generation interval, which keeps the difficulty where it starts.
+ * 
+ * Every block is added to a scratch Blockchain as it is mined, so replaying
+ * the blocks in order into an empty TEST chain ends at the same tip. Forks
+ * branch off a few blocks back from the tip, either as a stale branch that
+ * only ties the main chain or as one a block longer that reorganizes it.
+ * 
+ * TXI.verify can't check signatures yet, so no transaction can spend and the
+ * regular transactions only create outputs, which have to be worth nothing.
+ * Scripts on those outputs are stored and relayed but never executed.
+ */
+public class ChainGenerator {
+	public static final Network NETWORK = Network.TEST;
+	public static final String SCRIPT = "function handleTx(tx) { return true; }";
+	private final Random random;
+	private final List<Address> addresses = new ArrayList<>();
+	private final Set<Hash> accepted = new HashSet<>();
+	private final int height;
+	private final int transactions;
+	private final int outputs;
+	private final double scripts;
+	private final Fork fork;
+	private final int forkInterval;
+	private final int forkDepth;
+	private Hash tip = null;
+	
+	public enum Fork {
+		//a single chain
+		NONE,
+		//a branch as long as the main chain, which stays behind it
+		STALE,
+		//a branch one block longer than the main chain, which takes over
+		REORG
+	}
+	
+	/**
+	 * 
+	 * @param height The index of the last block on the main chain
+	 * @param transactions The regular transactions in each block besides the reward
+	 * @param outputs The outputs of each regular transaction, at least two
+	 * @param addressCount The number of addresses outputs and rewards go to
+	 * @param scripts The fraction of outputs with a script
+	 * @param forkInterval The number of main chain blocks between forks
+	 * @param forkDepth The number of main chain blocks a fork branches off behind the tip
+	 */
+	public ChainGenerator(long seed, int height, int transactions, int outputs, int addressCount, double scripts, Fork fork, int forkInterval, int forkDepth) {
+		if(addressCount < 1) {
+			throw new IllegalArgumentException("At least one address is required");
+		} else if(outputs < 2) {
+			//a transaction with one output and no inputs is a reward
+			throw new IllegalArgumentException("Regular transactions need at least two outputs");
+		} else if(fork != Fork.NONE && (forkInterval < 1 || forkDepth < 1)) {
+			throw new IllegalArgumentException("Fork interval and depth must be at least one");
+		}
+		this.random = new Random(seed);
+		this.height = height;
+		this.transactions = transactions;
+		this.outputs = outputs;
+		this.scripts = scripts;
+		this.fork = fork;
+		this.forkInterval = forkInterval;
+		this.forkDepth = forkDepth;
+		
+		try {
+			SecureRandom keyRandom = SecureRandom.getInstance("SHA1PRNG");
+			//seeding before the first use replaces the system seed, which is what makes the keys repeatable
+			keyRandom.setSeed(seed);
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("ECDSA", "BC");
+			generator.initialize(new ECGenParameterSpec("prime192v1"), keyRandom);
+			for(int itr = 0; itr < addressCount; itr++) {
+				addresses.add(new Address(generator.generateKeyPair().getPublic(), NETWORK));
+			}
+		} catch(NoSuchAlgorithmException | NoSuchProviderException | InvalidAlgorithmParameterException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * 
+	 * @return The blocks in the order they have to be added, without the genesis block
+	 */
+	public List<Block> generate() throws InvalidChainException {
+		try(Blockchain scratch = new Blockchain(NETWORK, new HeapBlockStore(NETWORK), new HeapUTXOStore(NETWORK))) {
+			List<Block> blocks = new ArrayList<>();
+			while(scratch.getLatestBlock().getIndex() < height) {
+				LocalBlock tip = scratch.getLatestBlock();
+				if(fork != Fork.NONE && tip.getIndex() > forkDepth && tip.getIndex() % forkInterval == 0 && blocks.get(blocks.size() - 1).getHash().equals(tip.getHash())) {
+					//a reorg ends a block past the tip, which mustn't go past the height
+					int length = fork == Fork.REORG && tip.getIndex() < height ? forkDepth + 1 : forkDepth;
+					LocalBlock parent = tip;
+					for(int itr = 0; itr < forkDepth; itr++) {
+						parent = scratch.getBlock(parent.getPreviousHash());
+					}
+					for(int itr = 0; itr < length; itr++) {
+						Block block = mine(scratch, parent);
+						add(scratch, block, blocks);
+						parent = scratch.getBlock(block.getHash());
+					}
+				}
+				add(scratch, mine(scratch, scratch.getLatestBlock()), blocks);
+			}
+			tip = scratch.getLatestBlock().getHash();
+			return blocks;
+		}
+	}
+	
+	/**
+	 * 
+	 * @return Whether adding the generated block extended or reorganized the chain, rather than leaving it on a branch
+	 */
+	public boolean isAccepted(Hash hash) {
+		return accepted.contains(hash);
+	}
+	
+	/**
+	 * 
+	 * @return Hash of the latest block once the chain is generated
+	 */
+	public Hash getTip() {
+		return tip;
+	}
+	
+	public List<Address> getAddresses() {
+		return addresses;
+	}
+	
+	private void add(Blockchain scratch, Block block, List<Block> blocks) {
+		if(scratch.addBlockToChain(block)) {
+			accepted.add(block.getHash());
+		} else if(scratch.getBlock(block.getHash()) == null) {
+			//branch blocks aren't added to the main chain but they are kept
+			throw new IllegalStateException("Generated " + block + " was rejected");
+		}
+		blocks.add(block);
+	}
+	
+	private Block mine(Blockchain scratch, LocalBlock parent) {
+		long timestamp = parent.getTimestamp() + NETWORK.getParams().getBlockGenerationInterval();
+		int difficulty = scratch.getDifficulty();
+		List<Transaction> txs = new LinkedList<>();
+		//Transaction.rewardOf would stamp the reward with the current time
+		List<TXO> reward = new ArrayList<>();
+		reward.add(new TXO(getAddress(), Token.valueOfInOnes(scratch.getReward())));
+		txs.add(new Transaction(timestamp, new ArrayList<>(), reward));
+		for(int itr = 0; itr < transactions; itr++) {
+			List<TXO> txos = new ArrayList<>();
+			for(int txo = 0; txo < outputs; txo++) {
+				txos.add(new TXO(getAddress(), Token.ZERO, random.nextDouble() < scripts ? SCRIPT : ""));
+			}
+			txs.add(new Transaction(timestamp, new ArrayList<>(), txos));
+		}
+		
+		Block block = null;
+		for(long nonce = 0; block == null || !Block.hashMatchesDifficulty(block.getHash(), difficulty); nonce++) {
+			block = new Block(NETWORK, parent.getIndex() + 1, parent.getHash(), timestamp, txs, difficulty, nonce);
+		}
+		return block;
+	}
+	
+	private Address getAddress() {
+		return addresses.get(random.nextInt(addresses.size()));
+	}
+}
@@ -17,78 +17,185 @@
 package io.tokhn.util;
 
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
 import java.util.stream.Collectors;
 
 import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
 
+import io.grpc.stub.StreamObserver;
 import io.tokhn.core.Address;
+import io.tokhn.core.AddressHistory;
 import io.tokhn.core.Block;
+import io.tokhn.core.CompactBlock;
 import io.tokhn.core.TXI;
 import io.tokhn.core.TXO;
 import io.tokhn.core.Token;
 import io.tokhn.core.Transaction;
 import io.tokhn.core.UTXO;
+import io.tokhn.grpc.AddressHistoryModel;
+import io.tokhn.grpc.BlockConfirmationModel;
 import io.tokhn.grpc.BlockModel;
+import io.tokhn.grpc.BloomFilterModel;
+import io.tokhn.grpc.CompactBlockModel;
+import io.tokhn.grpc.MetricModel;
 import io.tokhn.grpc.NetworkModel;
+import io.tokhn.grpc.PrefilledTransactionModel;
+import io.tokhn.grpc.TokhnServiceGrpc.TokhnServiceStub;
 import io.tokhn.grpc.TransactionModel;
 import io.tokhn.grpc.TxiModel;
 import io.tokhn.grpc.TxoModel;
 import io.tokhn.grpc.UtxoModel;
 import io.tokhn.node.InvalidNetworkException;
 import io.tokhn.node.Network;
+import io.tokhn.util.Metrics.Counter;
+import io.tokhn.util.Metrics.Gauge;
+import io.tokhn.util.Metrics.Histogram;
+import io.tokhn.util.Metrics.Meter;
+import io.tokhn.util.Metrics.Metric;
 
 public class GRPC {
+	//older peers only read the hex and Base58 string fields, so they are filled in unless every peer is known to read the bytes
+	private static volatile boolean legacyStrings = true;
 	
+	public static void setLegacyStrings(boolean legacyStrings) {
+		GRPC.legacyStrings = legacyStrings;
+	}
+	
+	public static boolean isLegacyStrings() {
+		return legacyStrings;
+	}
+	
+	/**
+	 * 
+	 * @return A view that only decodes the fields that get used
+	 */
 	public static Block transform(BlockModel block) {
-		return new Block(Network.valueOf(block.getNetwork().name()), block.getIndex(), new Hash(block.getHash()), new Hash(block.getPreviousHash()), block.getTimestamp(), block.getTransactionsList().stream().map(tx -> transform(tx)).collect(Collectors.toList()), block.getDifficulty(), block.getNonce());
+		return new BlockView(block);
+	}
+	
+	public static Hash getHash(BlockModel block) {
+		return toHash(block.getRawHash(), block.getHash());
+	}
+	
+	public static Hash getHash(CompactBlockModel block) {
+		return toHash(block.getRawHash(), block.getHash());
+	}
+	
+	/**
+	 * 
+	 * @return A block holding only the matching transactions, which is enough to apply to a wallet but not to validate
+	 */
+	public static Block transform(Network network, BlockConfirmationModel confirmation) {
+		return new Block(network, confirmation.getIndex(), toHash(confirmation.getRawHash(), confirmation.getHash()), toHash(confirmation.getRawPreviousHash(), confirmation.getPreviousHash()), 0, confirmation.getTransactionsList().stream().map(tx -> transform(tx)).collect(Collectors.toList()), 0, 0);
+	}
+	
+	public static BlockConfirmationModel transform(Block block, List<Transaction> matching) {
+		BlockConfirmationModel.Builder builder = BlockConfirmationModel.newBuilder()
+				.setIndex(block.getIndex())
+				.setRawHash(toBytes(block.getHash()))
+				.setRawPreviousHash(toBytes(block.getPreviousHash()))
+				.addAllTransactions(transform(block.getNetwork(), matching));
+		if(legacyStrings) {
+			builder.setHash(block.getHash().toString()).setPreviousHash(block.getPreviousHash().toString());
+		}
+		return builder.build();
 	}
 	
 	public static BlockModel transform(Block block) {
-		return BlockModel.newBuilder()
+		if(block instanceof BlockView && !legacyStrings) {
+			//nothing to encode, we can send what we were sent
+			return ((BlockView) block).getModel();
+		}
+		
+		BlockModel.Builder builder = BlockModel.newBuilder()
 				.setNetwork(NetworkModel.valueOf(block.getNetwork().name()))
 				.setIndex(block.getIndex())
-				.setHash(block.getHash().toString())
-				.setPreviousHash(block.getPreviousHash().toString())
+				.setRawHash(toBytes(block.getHash()))
+				.setRawPreviousHash(toBytes(block.getPreviousHash()))
 				.setTimestamp(block.getTimestamp())
 				.addAllTransactions(transform(block.getNetwork(), block.getTransactions()))
 				.setDifficulty(block.getDifficulty())
+				.setNonce(block.getNonce());
+		if(legacyStrings) {
+			builder.setHash(block.getHash().toString()).setPreviousHash(block.getPreviousHash().toString());
+		}
+		return builder.build();
+	}
+	
+	public static CompactBlock transform(CompactBlockModel block) {
+		Map<Integer, Transaction> prefilled = new TreeMap<>();
+		block.getPrefilledList().forEach(p -> prefilled.put(p.getPosition(), transform(p.getTransaction())));
+		return new CompactBlock(Network.valueOf(block.getNetwork().name()), block.getIndex(), getHash(block), toHash(block.getRawPreviousHash(), block.getPreviousHash()), block.getTimestamp(), block.getDifficulty(), block.getNonce(), block.getShortIdsList(), prefilled);
+	}
+	
+	public static CompactBlockModel transform(CompactBlock block) {
+		CompactBlockModel.Builder builder = CompactBlockModel.newBuilder()
+				.setNetwork(NetworkModel.valueOf(block.getNetwork().name()))
+				.setIndex(block.getIndex())
+				.setRawHash(toBytes(block.getHash()))
+				.setRawPreviousHash(toBytes(block.getPreviousHash()))
+				.setTimestamp(block.getTimestamp())
+				.setDifficulty(block.getDifficulty())
 				.setNonce(block.getNonce())
-				.build();
+				.addAllShortIds(block.getShortIds())
+				.addAllPrefilled(block.getPrefilled().entrySet().stream().map(e -> PrefilledTransactionModel.newBuilder().setPosition(e.getKey()).setTransaction(transform(block.getNetwork(), e.getValue())).build()).collect(Collectors.toList()));
+		if(legacyStrings) {
+			builder.setHash(block.getHash().toString()).setPreviousHash(block.getPreviousHash().toString());
+		}
+		return builder.build();
 	}
 	
+	/**
+	 * 
+	 * @return A view that only decodes the fields that get used
+	 */
 	public static Transaction transform(TransactionModel tx) {
-		return new Transaction(new Hash(tx.getId()), tx.getTimestamp(), Transaction.Type.valueOf(tx.getType().name()), tx.getTxisList().stream().map(txi -> transform(txi)).collect(Collectors.toList()), tx.getTxosList().stream().map(txo -> transform(txo)).collect(Collectors.toList()));
+		return new TransactionView(tx);
 	}
 	
 	public static TransactionModel transform(Network network, Transaction tx) {
-		return TransactionModel.newBuilder()
+		if(tx instanceof TransactionView && !legacyStrings) {
+			//nothing to encode, we can send what we were sent
+			return ((TransactionView) tx).getModel();
+		}
+		
+		TransactionModel.Builder builder = TransactionModel.newBuilder()
 				.setNetwork(NetworkModel.valueOf(network.name()))
-				.setId(tx.getId().toString())
+				.setRawId(toBytes(tx.getId()))
 				.setTimestamp(tx.getTimestamp())
 				.setType(TransactionModel.Type.valueOf(tx.getType().name()))
 				.addAllTxis(tx.getTxis().stream().map(txi -> transform(txi)).collect(Collectors.toList()))
-				.addAllTxos(tx.getTxos().stream().map(txo -> transform(txo)).collect(Collectors.toList()))
-				.build();
+				.addAllTxos(tx.getTxos().stream().map(txo -> transform(txo)).collect(Collectors.toList()));
+		if(legacyStrings) {
+			builder.setId(tx.getId().toString());
+		}
+		return builder.build();
 	}
 	
 	public static TXI transform(TxiModel txi) {
-		return new TXI(new Hash(txi.getSourceTxId()), txi.getSourceTxoIndex(), txi.getScript(), txi.getSignature().toByteArray());
+		return new TXI(toHash(txi.getRawSourceTxId(), txi.getSourceTxId()), txi.getSourceTxoIndex(), txi.getScript(), txi.getSignature().toByteArray());
 	}
 	
 	public static TxiModel transform(TXI txi) {
-		return TxiModel.newBuilder()
-				.setSourceTxId(txi.getSourceTxId().toString())
+		TxiModel.Builder builder = TxiModel.newBuilder()
+				.setRawSourceTxId(toBytes(txi.getSourceTxId()))
 				.setSourceTxoIndex(txi.getSourceTxoIndex())
 				.setScript(txi.getScript())
-				.setSignature(ByteString.copyFrom(txi.getSignature()))
-				.build();
+				.setSignature(ByteString.copyFrom(txi.getSignature()));
+		if(legacyStrings) {
+			builder.setSourceTxId(txi.getSourceTxId().toString());
+		}
+		return builder.build();
 	}
 	
 	public static TXO transform(TxoModel txo) {
 		Address address = null;
 		
 		try {
-			address = new Address(txo.getAddress());
+			address = toAddress(txo.getRawAddress(), txo.getAddress());
 			return new TXO(address, Token.valueOfInMegas(txo.getAmount()), txo.getScript());
 		} catch (InvalidNetworkException e) {
 			System.err.println(e);
@@ -98,26 +205,135 @@ public class GRPC {
 	}
 	
 	public static TxoModel transform(TXO txo) {
-		return TxoModel.newBuilder()
-				.setAddress(txo.getAddress().toString())
+		TxoModel.Builder builder = TxoModel.newBuilder()
+				.setRawAddress(toBytes(txo.getAddress()))
 				.setAmount(txo.getAmount().getValue())
-				.setScript(txo.getScript())
-				.build();
+				.setScript(txo.getScript());
+		if(legacyStrings) {
+			builder.setAddress(txo.getAddress().toString());
+		}
+		return builder.build();
 	}
 	
 	public static UtxoModel transform(UTXO utxo) {
-		return UtxoModel.newBuilder()
+		UtxoModel.Builder builder = UtxoModel.newBuilder()
 				.setNetwork(NetworkModel.valueOf(utxo.getNetwork().name()))
-				.setUtxoId(utxo.getUtxoId().toString())
-				.setSourceTxId(utxo.getSourceTxoId().toString())
+				.setRawUtxoId(toBytes(utxo.getUtxoId()))
+				.setRawSourceTxId(toBytes(utxo.getSourceTxoId()))
 				.setSourceTxoIndex(utxo.getSourceTxoIndex())
-				.setAddress(utxo.getAddress().toString())
+				.setRawAddress(toBytes(utxo.getAddress()))
 				.setAmount(utxo.getAmount().getValue())
-				.setScript(utxo.getScript())
+				.setScript(utxo.getScript());
+		if(legacyStrings) {
+			builder.setUtxoId(utxo.getUtxoId().toString()).setSourceTxId(utxo.getSourceTxoId().toString()).setAddress(utxo.getAddress().toString());
+		}
+		return builder.build();
+	}
+	
+	public static UTXO transform(UtxoModel utxo) {
+		try {
+			return new UTXO(Network.valueOf(utxo.getNetwork().name()), toHash(utxo.getRawSourceTxId(), utxo.getSourceTxId()), utxo.getSourceTxoIndex(), toAddress(utxo.getRawAddress(), utxo.getAddress()), Token.valueOfInMegas(utxo.getAmount()), utxo.getScript());
+		} catch (InvalidNetworkException e) {
+			System.err.println(e);
+		}
+		
+		return null;
+	}
+	
+	public static BloomFilter transform(BloomFilterModel filter) {
+		return new BloomFilter(filter.getBits().toByteArray(), filter.getHashes());
+	}
+	
+	public static BloomFilterModel transform(BloomFilter filter) {
+		return BloomFilterModel.newBuilder()
+				.setBits(ByteString.copyFrom(filter.getBits()))
+				.setHashes(filter.getHashes())
+				.build();
+	}
+	
+	public static AddressHistoryModel transform(AddressHistory history) {
+		return AddressHistoryModel.newBuilder()
+				.setTxId(history.getTxId().toString())
+				.setBlockIndex(history.getBlockIndex())
+				.setPosition(history.getPosition())
+				.setDelta(history.getDelta())
 				.build();
 	}
 	
+	public static MetricModel transform(String name, Metric metric) {
+		MetricModel.Builder builder = MetricModel.newBuilder().setName(name).setType(MetricModel.Type.valueOf(metric.getType().name()));
+		switch(metric.getType()) {
+		case COUNTER:
+			return builder.setValue(((Counter) metric).getCount()).build();
+		case GAUGE:
+			return builder.setValue(((Gauge) metric).getValue()).build();
+		case METER:
+			return builder.setValue(((Meter) metric).getCount()).setRate(((Meter) metric).getRate()).build();
+		default:
+			Histogram histogram = (Histogram) metric;
+			return builder.setValue(histogram.getCount()).setMean(histogram.getMean()).setP50(histogram.getPercentile(0.5)).setP99(histogram.getPercentile(0.99)).setMax(histogram.getMax()).build();
+		}
+	}
+	
+	/**
+	 * 
+	 * @return The hash from the bytes field, or from the hex string field if an older peer sent it
+	 */
+	public static Hash toHash(ByteString bytes, String hex) {
+		return bytes.isEmpty() ? new Hash(hex) : new Hash(bytes.toByteArray());
+	}
+	
+	/**
+	 * 
+	 * @return The address from the bytes field, or from the Base58 string field if an older peer sent it
+	 */
+	public static Address toAddress(ByteString bytes, String base58) throws InvalidNetworkException {
+		return bytes.isEmpty() ? new Address(base58) : new Address(bytes.toByteArray());
+	}
+	
+	/*
+	 * hashes and addresses never change their bytes once made, so they can be
+	 * wrapped instead of copied
+	 */
+	public static ByteString toBytes(Hash hash) {
+		return UnsafeByteOperations.unsafeWrap(hash.getBytes());
+	}
+	
+	public static ByteString toBytes(Address address) {
+		return UnsafeByteOperations.unsafeWrap(address.getBytes());
+	}
+	
 	public static List<TransactionModel> transform(Network network, List<Transaction> txs) {
 		return txs.stream().map(tx -> transform(network, tx)).collect(Collectors.toList());
 	}
+	
+	/**
+	 * Sends the transactions to a node over a single StreamTransactions call.
+	 * 
+	 * @return Completes once the node closes its side of the stream
+	 */
+	public static CompletableFuture<Void> submit(TokhnServiceStub stub, Network network, List<Transaction> txs) {
+		CompletableFuture<Void> done = new CompletableFuture<>();
+		StreamObserver<TransactionModel> observer = stub.streamTransactions(new StreamObserver<TransactionModel>() {
+			@Override
+			public void onNext(TransactionModel transactionModel) {
+				//the node relays everyone's transactions back, but we only came to send ours
+			}
+			
+			@Override
+			public void onError(Throwable t) {
+				done.completeExceptionally(t);
+			}
+			
+			@Override
+			public void onCompleted() {
+				done.complete(null);
+			}
+		});
+		for(Transaction tx : txs) {
+			observer.onNext(transform(network, tx));
+		}
+		observer.onCompleted();
+		return done;
+	}
 }
\ No newline at end of file
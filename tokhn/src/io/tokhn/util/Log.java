@@ -0,0 +1,129 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.util;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+ * Leveled logging that hands lines to a single writer thread, so the
+ * threads handling blocks and calls never wait on the console. Formatting
+ * happens on the writer too, which means the arguments should be things
+ * that don't change after they are logged. If the writer falls too far
+ * behind, lines are dropped and counted instead of blocking.
+ */
+public class Log {
+	private static final int QUEUE_SIZE = 10000;
+	private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+	private static final LongAdder dropped = new LongAdder();
+	private static volatile Level level = Level.INFO;
+	
+	public enum Level {
+		ERROR,
+		WARN,
+		INFO,
+		DEBUG
+	}
+	
+	static {
+		Thread writer = new Thread(() -> {
+			try {
+				while(true) {
+					queue.take().write();
+				}
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}, "log");
+		writer.setDaemon(true);
+		writer.start();
+		
+		//whatever is still queued gets written on the way down
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				List<Entry> remaining = new ArrayList<>();
+				queue.drainTo(remaining);
+				remaining.forEach(Entry::write);
+			}
+		});
+		
+		Metrics.gauge("log.queue", () -> queue.size());
+		Metrics.gauge("log.dropped", () -> dropped.sum());
+	}
+	
+	public static void setLevel(Level level) {
+		Log.level = level;
+	}
+	
+	public static boolean isEnabled(Level level) {
+		return level.compareTo(Log.level) <= 0;
+	}
+	
+	public static void error(String format, Object... args) {
+		log(Level.ERROR, format, args);
+	}
+	
+	public static void warn(String format, Object... args) {
+		log(Level.WARN, format, args);
+	}
+	
+	public static void info(String format, Object... args) {
+		log(Level.INFO, format, args);
+	}
+	
+	public static void debug(String format, Object... args) {
+		log(Level.DEBUG, format, args);
+	}
+	
+	public static long getDropped() {
+		return dropped.sum();
+	}
+	
+	private static void log(Level level, String format, Object[] args) {
+		if(isEnabled(level) && !queue.offer(new Entry(level, format, args))) {
+			dropped.increment();
+		}
+	}
+	
+	private static class Entry {
+		private final Instant timestamp = Instant.now();
+		private final String thread = Thread.currentThread().getName();
+		private final Level level;
+		private final String format;
+		private final Object[] args;
+		
+		public Entry(Level level, String format, Object[] args) {
+			this.level = level;
+			this.format = format;
+			this.args = args;
+		}
+		
+		public void write() {
+			String line = String.format("%s %-5s [%s] %s", timestamp, level, thread, String.format(format, args));
+			if(level.compareTo(Level.WARN) <= 0) {
+				System.err.println(line);
+			} else {
+				System.out.println(line);
+			}
+		}
+	}
+}
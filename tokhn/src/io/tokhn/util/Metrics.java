@@ -0,0 +1,285 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.util;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/*
+ * The node's counters, gauges, meters and histograms, by name. Metrics are
+ * created the first time they are asked for and the same one comes back
+ * every time after, so anything can look one up instead of passing them
+ * around. Recording only touches striped adders, so it is cheap enough
+ * for the hot paths.
+ * 
+ * Names are dotted, and start with the network for metrics of a single
+ * chain, like TKHN.block.validation.
+ */
+public class Metrics {
+	private static final long TICK_SECONDS = 5;
+	private static final SortedMap<String, Metric> metrics = new ConcurrentSkipListMap<>();
+	private static final ScheduledExecutorService ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread t = new Thread(r, "metrics");
+		t.setDaemon(true);
+		return t;
+	});
+	
+	static {
+		ticker.scheduleAtFixedRate(() -> {
+			metrics.values().stream().filter(m -> m instanceof Meter).forEach(m -> ((Meter) m).tick());
+		}, TICK_SECONDS, TICK_SECONDS, TimeUnit.SECONDS);
+		
+		Runtime runtime = Runtime.getRuntime();
+		gauge("jvm.heap.used", () -> runtime.totalMemory() - runtime.freeMemory());
+		gauge("jvm.heap.max", () -> runtime.maxMemory());
+	}
+	
+	public enum Type {
+		COUNTER,
+		GAUGE,
+		METER,
+		HISTOGRAM
+	}
+	
+	public interface Metric {
+		public Type getType();
+	}
+	
+	public static Counter counter(String name) {
+		return get(name, new Counter());
+	}
+	
+	public static Meter meter(String name) {
+		return get(name, new Meter());
+	}
+	
+	public static Histogram histogram(String name) {
+		return get(name, new Histogram());
+	}
+	
+	/**
+	 * Registers a gauge, replacing any gauge already registered under the
+	 * name, since the thing it reads from may have been recreated.
+	 */
+	public static void gauge(String name, DoubleSupplier supplier) {
+		metrics.put(name, new Gauge(supplier));
+	}
+	
+	/**
+	 * 
+	 * @return Every metric whose name starts with the prefix, sorted by name
+	 */
+	public static SortedMap<String, Metric> getAll(String prefix) {
+		if(prefix == null || prefix.isEmpty()) {
+			return metrics;
+		}
+		return metrics.subMap(prefix, prefix + Character.MAX_VALUE);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T extends Metric> T get(String name, T metric) {
+		Metric existing = metrics.putIfAbsent(name, metric);
+		if(existing == null) {
+			return metric;
+		} else if(existing.getClass() != metric.getClass()) {
+			throw new IllegalArgumentException(name + " is already a " + existing.getType());
+		}
+		return (T) existing;
+	}
+	
+	public static class Counter implements Metric {
+		private final LongAdder count = new LongAdder();
+		
+		public void increment() {
+			count.increment();
+		}
+		
+		public void add(long n) {
+			count.add(n);
+		}
+		
+		public long getCount() {
+			return count.sum();
+		}
+		
+		@Override
+		public Type getType() {
+			return Type.COUNTER;
+		}
+	}
+	
+	public static class Gauge implements Metric {
+		private final DoubleSupplier supplier;
+		
+		public Gauge(DoubleSupplier supplier) {
+			this.supplier = supplier;
+		}
+		
+		public double getValue() {
+			return supplier.getAsDouble();
+		}
+		
+		@Override
+		public Type getType() {
+			return Type.GAUGE;
+		}
+	}
+	
+	/*
+	 * counts events and keeps a rate per second that is an exponentially
+	 * weighted average over about the last minute, which is how load
+	 * averages work
+	 */
+	public static class Meter implements Metric {
+		private static final double ALPHA = 1 - Math.exp(-TICK_SECONDS / 60d);
+		private final LongAdder count = new LongAdder();
+		private final LongAdder uncounted = new LongAdder();
+		private volatile double rate = -1;
+		
+		public void mark() {
+			count.increment();
+			uncounted.increment();
+		}
+		
+		public void mark(long n) {
+			count.add(n);
+			uncounted.add(n);
+		}
+		
+		public long getCount() {
+			return count.sum();
+		}
+		
+		/**
+		 * 
+		 * @return Events per second over about the last minute
+		 */
+		public double getRate() {
+			return Math.max(rate, 0);
+		}
+		
+		private void tick() {
+			double instant = uncounted.sumThenReset() / (double) TICK_SECONDS;
+			//the first tick starts the average where it is instead of ramping up from nothing
+			rate = rate < 0 ? instant : rate + ALPHA * (instant - rate);
+		}
+		
+		@Override
+		public Type getType() {
+			return Type.METER;
+		}
+	}
+	
+	/*
+	 * values go into buckets by powers of two, which keeps recording to a
+	 * couple of adds while percentiles are still within a factor of two,
+	 * plenty to tell a slow lookup from a fast one
+	 */
+	public static class Histogram implements Metric {
+		private static final int BUCKETS = 64;
+		private final LongAdder[] buckets = new LongAdder[BUCKETS];
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+		
+		public Histogram() {
+			for(int itr = 0; itr < BUCKETS; itr++) {
+				buckets[itr] = new LongAdder();
+			}
+		}
+		
+		public void update(long value) {
+			value = Math.max(value, 0);
+			buckets[BUCKETS - Long.numberOfLeadingZeros(value)].increment();
+			count.increment();
+			sum.add(value);
+			max.accumulate(value);
+		}
+		
+		/**
+		 * Records the microseconds since the start, which is from {@link System#nanoTime()}.
+		 */
+		public void updateSince(long start) {
+			update((System.nanoTime() - start) / 1000);
+		}
+		
+		public long getCount() {
+			return count.sum();
+		}
+		
+		public double getMean() {
+			long n = count.sum();
+			return n == 0 ? 0 : (double) sum.sum() / n;
+		}
+		
+		public long getMax() {
+			return max.get();
+		}
+		
+		/**
+		 * 
+		 * @param percentile Between 0 and 1
+		 * @return The upper bound of the bucket the percentile falls in
+		 */
+		public long getPercentile(double percentile) {
+			long[] counts = new long[BUCKETS];
+			long total = 0;
+			for(int itr = 0; itr < BUCKETS; itr++) {
+				counts[itr] = buckets[itr].sum();
+				total += counts[itr];
+			}
+			
+			long rank = (long) Math.ceil(percentile * total);
+			long seen = 0;
+			for(int itr = 0; itr < BUCKETS; itr++) {
+				seen += counts[itr];
+				if(seen >= rank && counts[itr] > 0) {
+					//nothing recorded is bigger than the max, which is tighter than the bucket for the top one
+					return Math.min(itr == 0 ? 0 : (1L << itr) - 1, getMax());
+				}
+			}
+			return 0;
+		}
+		
+		@Override
+		public Type getType() {
+			return Type.HISTOGRAM;
+		}
+	}
+	
+	public static String toString(Map.Entry<String, Metric> entry) {
+		Metric metric = entry.getValue();
+		switch(metric.getType()) {
+		case COUNTER:
+			return String.format("%s %d", entry.getKey(), ((Counter) metric).getCount());
+		case GAUGE:
+			return String.format("%s %.2f", entry.getKey(), ((Gauge) metric).getValue());
+		case METER:
+			return String.format("%s %d (%.2f/s)", entry.getKey(), ((Meter) metric).getCount(), ((Meter) metric).getRate());
+		default:
+			Histogram histogram = (Histogram) metric;
+			return String.format("%s %d (mean %.2f, p50 %d, p99 %d, max %d)", entry.getKey(), histogram.getCount(), histogram.getMean(), histogram.getPercentile(0.5), histogram.getPercentile(0.99), histogram.getMax());
+		}
+	}
+}
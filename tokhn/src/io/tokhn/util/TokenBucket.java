@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.util;
+
+/*
+ * A bucket that refills at a steady rate up to its capacity, and pays for
+ * work out of what has built up. A cost bigger than the capacity is let
+ * through once the bucket is full and paid back afterwards, so no request
+ * is refused forever just for being big.
+ */
+public class TokenBucket {
+	private final double rate;
+	private final double capacity;
+	private double tokens;
+	private long last = System.nanoTime();
+	
+	/**
+	 * 
+	 * @param rate The tokens added each second
+	 * @param capacity The most tokens the bucket holds, which is also the largest burst it allows
+	 */
+	public TokenBucket(double rate, double capacity) {
+		this.rate = rate;
+		this.capacity = capacity;
+		tokens = capacity;
+	}
+	
+	/**
+	 * 
+	 * @return Whether the cost was taken while still leaving the reserve behind
+	 */
+	public synchronized boolean tryTake(double cost, double reserve) {
+		refill();
+		if(tokens - Math.min(cost, capacity - reserve) < reserve) {
+			return false;
+		}
+		tokens -= cost;
+		return true;
+	}
+	
+	/*
+	 * takes the cost no matter what, going into debt if we have to, which
+	 * holds back anything using tryTake until it is paid off
+	 */
+	public synchronized void take(double cost) {
+		refill();
+		tokens = Math.max(tokens - cost, -capacity);
+	}
+	
+	public synchronized void refund(double cost) {
+		tokens = Math.min(tokens + cost, capacity);
+	}
+	
+	public synchronized double getTokens() {
+		refill();
+		return tokens;
+	}
+	
+	public synchronized boolean isFull() {
+		return getTokens() >= capacity;
+	}
+	
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(tokens + (now - last) * rate / 1_000_000_000d, capacity);
+		last = now;
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018 Matt Liotta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.tokhn.util;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import io.tokhn.core.TXI;
+import io.tokhn.core.TXO;
+import io.tokhn.core.Transaction;
+import io.tokhn.grpc.TransactionModel;
+
+/*
+ * A Transaction backed by the TransactionModel it arrived in, decoding the
+ * id, inputs and outputs the first time each is asked for. Seeing whether we
+ * already have a transaction only decodes its id.
+ * 
+ * It is written out as a plain Transaction, so stores never see the model.
+ */
+public class TransactionView extends Transaction {
+	private static final long serialVersionUID = 4862187095870446418L;
+	private final transient TransactionModel model;
+	private volatile Hash id = null;
+	private volatile List<TXI> txis = null;
+	private volatile List<TXO> txos = null;
+	
+	public TransactionView(TransactionModel model) {
+		super(null, model.getTimestamp(), Transaction.Type.valueOf(model.getType().name()), null, null);
+		this.model = model;
+	}
+	
+	@Override
+	public Hash getId() {
+		if(id == null) {
+			id = GRPC.toHash(model.getRawId(), model.getId());
+		}
+		return id;
+	}
+	
+	@Override
+	public List<TXI> getTxis() {
+		if(txis == null) {
+			txis = model.getTxisList().stream().map(txi -> GRPC.transform(txi)).collect(Collectors.toList());
+		}
+		return txis;
+	}
+	
+	@Override
+	public List<TXO> getTxos() {
+		if(txos == null) {
+			txos = model.getTxosList().stream().map(txo -> GRPC.transform(txo)).collect(Collectors.toList());
+		}
+		return txos;
+	}
+	
+	/**
+	 * 
+	 * @return The model this transaction was read from, which can be relayed as is
+	 */
+	public TransactionModel getModel() {
+		return model;
+	}
+	
+	private Object writeReplace() {
+		return new Transaction(getId(), getTimestamp(), getType(), getTxis(), getTxos());
+	}
+}